@@ -0,0 +1,51 @@
+package nl.tudelft.ewi.build.jaxrs.models;
+
+import java.util.UUID;
+
+import lombok.Data;
+
+/**
+ * A {@code BuildRecord} is the entry of a finished build in the build
+ * history.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Data
+public class BuildRecord {
+
+	private UUID uuid;
+
+	private BuildRequest request;
+
+	/**
+	 * The {@link BuildResult}, without the log lines.
+	 */
+	private BuildResult result;
+
+	/**
+	 * Exit code of the build command, or {@code null} if the build command
+	 * did not terminate.
+	 */
+	private Integer exitCode;
+
+	/**
+	 * Times at which the build entered its states, in milliseconds since the
+	 * epoch, or {@code null} for states it did not reach.
+	 */
+	private Long submittedAt;
+
+	private Long stagingAt;
+
+	private Long runningAt;
+
+	private Long uploadingAt;
+
+	private Long doneAt;
+
+	/**
+	 * Name of the file in the history directory that holds the full log, or
+	 * {@code null} if the log was not stored.
+	 */
+	private String logFile;
+
+}
@@ -1,6 +1,7 @@
 package nl.tudelft.ewi.build.jaxrs.models;
 
 import java.util.List;
+import java.util.UUID;
 
 import lombok.Data;
 
@@ -10,8 +11,32 @@ public class BuildResult {
 	public static enum Status {
 		SUCCEEDED, FAILED;
 	}
+
+	public static enum FailureReason {
+		NON_ZERO_EXIT, OUT_OF_MEMORY, TIMED_OUT, CANCELLED, ERROR;
+	}
 	
 	private Status status;
+
+	/**
+	 * Reason why the build failed, or {@code null} if it succeeded.
+	 */
+	private FailureReason failureReason;
+
+	/**
+	 * UUID of the build, with which the full log can be read.
+	 */
+	private UUID uuid;
+
+	/**
+	 * The first and last lines of the log. When the log has more lines, a
+	 * line in between tells how many lines are omitted.
+	 */
 	private List<String> logLines;
+
+	/**
+	 * Number of lines in the full log.
+	 */
+	private Integer logLineCount;
 	
 }
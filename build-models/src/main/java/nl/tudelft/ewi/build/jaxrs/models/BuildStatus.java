@@ -0,0 +1,81 @@
+package nl.tudelft.ewi.build.jaxrs.models;
+
+import java.util.UUID;
+
+import lombok.Data;
+
+/**
+ * The {@code BuildStatus} describes the state of a build that was accepted
+ * by the build server.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Data
+public class BuildStatus {
+
+	/**
+	 * The build is {@code STAGING} while its sources are prepared and its
+	 * container is provisioned, and {@code UPLOADING} while the output of
+	 * its container is collected after the build command has terminated.
+	 */
+	public static enum State {
+		QUEUED, STAGING, RUNNING, UPLOADING, DONE;
+	}
+
+	private UUID uuid;
+
+	private State state;
+
+	/**
+	 * Zero based position in the build queue, or {@code null} when the build
+	 * is not queued.
+	 */
+	private Integer queuePosition;
+
+	/**
+	 * Estimated number of seconds until the build starts, or {@code null}
+	 * when no estimate is available yet.
+	 */
+	private Long estimatedWaitSeconds;
+
+	/**
+	 * Number of log lines recorded for the build.
+	 */
+	private int logLines;
+
+	/**
+	 * Number of bytes of heap allocated for the log lines of the build.
+	 */
+	private long logMemoryBytes;
+
+	/**
+	 * Number of bytes of the log that were spilled to disk.
+	 */
+	private long logSpilledBytes;
+
+	/**
+	 * Times at which the build entered its states, in milliseconds since the
+	 * epoch, or {@code null} for states it did not reach yet.
+	 */
+	private Long submittedAt;
+
+	private Long stagingAt;
+
+	private Long runningAt;
+
+	private Long uploadingAt;
+
+	private Long doneAt;
+
+	/**
+	 * The {@link ProvisioningTimings} once the build has started, or
+	 * {@code null} while it is queued.
+	 */
+	private ProvisioningTimings provisioning;
+
+	/**
+	 * The {@link BuildResult} once the build is done.
+	 */
+	private BuildResult result;
+
+}
@@ -0,0 +1,62 @@
+package nl.tudelft.ewi.build.jaxrs.models;
+
+import lombok.Data;
+
+/**
+ * The {@code CallbackStatistics} describe the delivery of build results to
+ * callback URLs, since the build server started.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Data
+public class CallbackStatistics {
+
+	/**
+	 * Number of results that are not delivered yet, including the results
+	 * that wait for a retry.
+	 */
+	private int pending;
+
+	/**
+	 * Number of requests to callback URLs that are currently in progress.
+	 */
+	private int active;
+
+	private long delivered;
+
+	/**
+	 * Number of results that were not delivered within the configured number
+	 * of attempts. Results in the outbox are retried after that as well.
+	 */
+	private long failed;
+
+	private long attempts;
+
+	private long failedAttempts;
+
+	/**
+	 * Total size of the serialized results, before compression.
+	 */
+	private long serializedBytes;
+
+	/**
+	 * Total size of the request bodies sent to callback URLs.
+	 */
+	private long sentBytes;
+
+	/**
+	 * Average time from the end of a build until its result was delivered.
+	 */
+	private Long averageDeliveryMillis;
+
+	/**
+	 * Longest time from the end of a build until its result was delivered.
+	 */
+	private Long maximumDeliveryMillis;
+
+	/**
+	 * Average duration of a request to a callback URL.
+	 */
+	private Long averageAttemptMillis;
+
+}
@@ -0,0 +1,46 @@
+package nl.tudelft.ewi.build.jaxrs.models;
+
+import lombok.Data;
+
+/**
+ * The {@code ContainerPoolStatistics} describe how often builds for an image
+ * could claim a warm container, and how long it took until the container
+ * produced its first output with and without a warm container.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Data
+public class ContainerPoolStatistics {
+
+	private String image;
+
+	/**
+	 * Number of started containers waiting for a build.
+	 */
+	private int idleContainers;
+
+	/**
+	 * Number of warm containers the pool currently aims for, based on the
+	 * recent demand for the image.
+	 */
+	private int targetSize;
+
+	private long hits;
+
+	private long misses;
+
+	private double hitRate;
+
+	/**
+	 * Average time from provisioning the build environment until the first
+	 * output, for builds that claimed a warm container.
+	 */
+	private Long averageTimeToFirstLogMillisOnHit;
+
+	/**
+	 * Average time from provisioning the build environment until the first
+	 * output, for builds that created a new container.
+	 */
+	private Long averageTimeToFirstLogMillisOnMiss;
+
+}
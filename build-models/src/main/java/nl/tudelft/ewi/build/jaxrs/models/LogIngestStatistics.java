@@ -0,0 +1,52 @@
+package nl.tudelft.ewi.build.jaxrs.models;
+
+import lombok.Data;
+
+/**
+ * The {@code LogIngestStatistics} describe the throughput with which the
+ * output of the build containers is ingested, since the build server started.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Data
+public class LogIngestStatistics {
+
+	/**
+	 * Number of threads that ingest the output.
+	 */
+	private int threads;
+
+	/**
+	 * Number of containers of which the output is currently ingested.
+	 */
+	private int subscriptions;
+
+	/**
+	 * Number of times the output of a container was requested.
+	 */
+	private long polls;
+
+	/**
+	 * Number of lines ingested, counted by their line endings. A frame of
+	 * the output may hold part of a line, or several lines.
+	 */
+	private long lines;
+
+	private long bytes;
+
+	private double linesPerSecond;
+
+	private double bytesPerSecond;
+
+	/**
+	 * Lines ingested per second of CPU time of the ingest threads, which is
+	 * the throughput a single core would reach.
+	 */
+	private double linesPerCpuSecond;
+
+	/**
+	 * Bytes ingested per second of CPU time of the ingest threads.
+	 */
+	private double bytesPerCpuSecond;
+
+}
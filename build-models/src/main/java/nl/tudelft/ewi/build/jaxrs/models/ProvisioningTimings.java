@@ -0,0 +1,49 @@
+package nl.tudelft.ewi.build.jaxrs.models;
+
+import lombok.Data;
+
+/**
+ * The {@code ProvisioningTimings} describe how long the steps took that
+ * preceded the first output of a build. A new container is created while the
+ * sources are staged, so the steps may overlap. A step that was not taken,
+ * or was not finished yet, is {@code null}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Data
+public class ProvisioningTimings {
+
+	/**
+	 * Milliseconds spent preparing the sources, or waiting for the sources
+	 * that were prefetched while the build was queued.
+	 */
+	private Long stagingMillis;
+
+	/**
+	 * Milliseconds spent verifying that the image of the build is present.
+	 */
+	private Long imageCheckMillis;
+
+	/**
+	 * Milliseconds spent creating the container.
+	 */
+	private Long createMillis;
+
+	/**
+	 * Milliseconds spent starting the container, or the build command in a
+	 * warm container.
+	 */
+	private Long startMillis;
+
+	/**
+	 * Milliseconds from the start of the build until its first output.
+	 */
+	private Long timeToFirstLogMillis;
+
+	/**
+	 * Milliseconds saved by creating the container while the sources were
+	 * staged, compared to taking the steps one after another.
+	 */
+	private Long savedMillis;
+
+}
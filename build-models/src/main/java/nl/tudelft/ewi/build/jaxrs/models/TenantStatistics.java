@@ -0,0 +1,47 @@
+package nl.tudelft.ewi.build.jaxrs.models;
+
+import lombok.Data;
+
+/**
+ * The {@code TenantStatistics} describe the share of the build server that a
+ * tenant received, and can be used to tune the weights and concurrency caps
+ * of the tenants.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Data
+public class TenantStatistics {
+
+	private String tenant;
+
+	/**
+	 * Relative share of the container slots when multiple tenants have
+	 * queued builds.
+	 */
+	private int weight;
+
+	/**
+	 * Maximum number of running builds for this tenant, or {@code null} when
+	 * the tenant is only limited by the number of container slots.
+	 */
+	private Integer maximumConcurrentJobs;
+
+	private int runningBuilds;
+
+	private int queuedBuilds;
+
+	private long startedBuilds;
+
+	private long rejectedBuilds;
+
+	/**
+	 * Average time between scheduling and starting a build, in milliseconds.
+	 */
+	private long averageWaitMillis;
+
+	/**
+	 * Longest time between scheduling and starting a build, in milliseconds.
+	 */
+	private long maximumWaitMillis;
+
+}
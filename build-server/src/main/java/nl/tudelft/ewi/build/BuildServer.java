@@ -9,11 +9,12 @@ import lombok.extern.slf4j.Slf4j;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jgit.transport.JschConfigSessionFactory;
 import org.eclipse.jgit.transport.OpenSshConfig.Host;
 import org.eclipse.jgit.transport.SshSessionFactory;
 import org.jboss.resteasy.plugins.guice.GuiceResteasyBootstrapServletContextListener;
-import org.jboss.resteasy.plugins.server.servlet.HttpServletDispatcher;
+import org.jboss.resteasy.plugins.server.servlet.HttpServlet30Dispatcher;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
 import com.google.common.collect.ImmutableList;
@@ -21,6 +22,9 @@ import com.google.inject.Injector;
 import com.google.inject.Module;
 import com.jcraft.jsch.Session;
 
+import nl.tudelft.ewi.build.builds.BuildManager;
+import nl.tudelft.ewi.build.callbacks.CallbackDispatcher;
+
 @Slf4j
 public class BuildServer {
 	
@@ -38,6 +42,7 @@ public class BuildServer {
 	public BuildServer(Config config) throws IOException {
 		log.info("Starting build-server on port: {}", config.getHttpPort());
 		this.server = new Server(config.getHttpPort());
+		server.setStopAtShutdown(true);
 		server.setHandler(new BuildServerHandler(config));
 	}
 	
@@ -61,6 +66,11 @@ public class BuildServer {
 				
 				@Override
 				protected void withInjector(Injector injector) {
+					// Stopped in this order, so that the results of the builds
+					// that terminated are returned before the dispatcher stops
+					addLifeCycleListener(injector.getInstance(BuildManager.class));
+					addLifeCycleListener(injector.getInstance(CallbackDispatcher.class));
+
 					// TODO: Fix this...
 					SshSessionFactory.setInstance(new JschConfigSessionFactory() {
 						@Override
@@ -71,7 +81,9 @@ public class BuildServer {
 				}
 			});
 			
-			addServlet(HttpServletDispatcher.class, "/");
+			// Suspended requests do not hold a thread
+			ServletHolder servletHolder = addServlet(HttpServlet30Dispatcher.class, "/");
+			servletHolder.setAsyncSupported(true);
 		}
 	}
 	
@@ -12,6 +12,7 @@ import com.spotify.docker.client.DockerClient;
 
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.callbacks.CallbackDispatcher;
 import nl.tudelft.ewi.build.jaxrs.json.MappingModule;
 
 import org.jboss.resteasy.plugins.guice.ext.JaxrsModule;
@@ -47,6 +48,9 @@ public class BuildServerModule extends AbstractModule {
 				.readTimeoutMillis(DefaultDockerClient.NO_TIMEOUT)
 				.build());
 		
+		// Created right away to deliver the results of recovered builds
+		bind(CallbackDispatcher.class).asEagerSingleton();
+
 		findResourcesWith(Path.class);
 		findResourcesWith(Provider.class);
 	}
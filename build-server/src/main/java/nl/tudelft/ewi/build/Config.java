@@ -1,11 +1,26 @@
 package nl.tudelft.ewi.build;
 
+import nl.tudelft.ewi.build.builds.TenantKey;
+
+import java.util.List;
 
 public interface Config {
 
 	int getHttpPort();
 	
 	int getMaximumConcurrentJobs();
+
+	int getMaximumQueuedJobs();
+
+	int getMaximumPrefetchedJobs();
+
+	int getStagingThreads();
+
+	int getUploadThreads();
+
+	int getCleanupThreads();
+
+	int getStageQueueSize();
 	
 	String getStagingDirectory();
 
@@ -15,4 +30,76 @@ public interface Config {
 
 	String getDockerUser();
 
+	int getCloneTimeout();
+
+	int getContainerStartTimeout();
+
+	int getIdleTimeout();
+
+	boolean isVirtualThreadsEnabled();
+
+	TenantKey getTenantKey();
+
+	int getTenantWeight(String tenant);
+
+	int getTenantMaximumConcurrentJobs(String tenant);
+
+	List<String> getPooledImages();
+
+	int getMaximumPoolSize();
+
+	int getMonitorInterval();
+
+	int getLogIngestThreads();
+
+	int getLogPollInterval();
+
+	long getLogHeapThreshold();
+
+	int getRetainedResults();
+
+	int getResultRetention();
+
+	String getHistoryDirectory();
+
+	long getHistorySegmentSize();
+
+	int getHistoryRetention();
+
+	int getHistoryMaximumRecords();
+
+	double getHistoryCompactionThreshold();
+
+	int getCallbackConnections();
+
+	int getCallbackConnectionsPerHost();
+
+	int getCallbackAttempts();
+
+	int getCallbackBackoff();
+
+	int getCallbackTimeout();
+
+	String getCallbackOutboxDirectory();
+
+	int getCallbackRetention();
+
+	List<String> getCallbackBatchHosts();
+
+	int getCallbackBatchSize();
+
+	int getCallbackBatchWindow();
+
+	List<String> getCallbackGzipHosts();
+
+	String getGitMirrorDirectory();
+
+	long getGitMirrorMaximumSize();
+
+	String getCheckoutStoreDirectory();
+
+	long getCheckoutStoreMaximumSize();
+
+	String getCheckoutLinkMode();
+
 }
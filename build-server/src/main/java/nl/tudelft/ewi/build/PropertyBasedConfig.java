@@ -2,9 +2,14 @@ package nl.tudelft.ewi.build;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.List;
 import java.util.Properties;
 
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
 import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.builds.TenantKey;
 
 @Slf4j
 public class PropertyBasedConfig implements Config {
@@ -35,6 +40,36 @@ public class PropertyBasedConfig implements Config {
 		return Integer.parseInt(properties.getProperty("docker.max-containers"));
 	}
 
+	@Override
+	public int getMaximumQueuedJobs() {
+		return Integer.parseInt(properties.getProperty("docker.max-queued", "0"));
+	}
+
+	@Override
+	public int getMaximumPrefetchedJobs() {
+		return Integer.parseInt(properties.getProperty("docker.max-prefetched", "2"));
+	}
+
+	@Override
+	public int getStagingThreads() {
+		return Integer.parseInt(properties.getProperty("pipeline.staging-threads", "2"));
+	}
+
+	@Override
+	public int getUploadThreads() {
+		return Integer.parseInt(properties.getProperty("pipeline.upload-threads", "2"));
+	}
+
+	@Override
+	public int getCleanupThreads() {
+		return Integer.parseInt(properties.getProperty("pipeline.cleanup-threads", "2"));
+	}
+
+	@Override
+	public int getStageQueueSize() {
+		return Integer.parseInt(properties.getProperty("pipeline.queue-size", "64"));
+	}
+
 	@Override
 	public String getStagingDirectory() {
 		return properties.getProperty("docker.staging-directory");
@@ -55,4 +90,201 @@ public class PropertyBasedConfig implements Config {
 		return properties.getProperty("docker.user", "root");
 	}
 
+	@Override
+	public int getCloneTimeout() {
+		return Integer.parseInt(properties.getProperty("timeout.clone", "0"));
+	}
+
+	@Override
+	public int getContainerStartTimeout() {
+		return Integer.parseInt(properties.getProperty("timeout.container-start", "0"));
+	}
+
+	@Override
+	public int getIdleTimeout() {
+		return Integer.parseInt(properties.getProperty("timeout.idle", "0"));
+	}
+
+	@Override
+	public boolean isVirtualThreadsEnabled() {
+		return Boolean.parseBoolean(properties.getProperty("executor.virtual-threads", "true"));
+	}
+
+	@Override
+	public TenantKey getTenantKey() {
+		String tenantKey = properties.getProperty("scheduler.tenant-key", "repository");
+		return TenantKey.valueOf(tenantKey.trim().toUpperCase().replace('-', '_'));
+	}
+
+	@Override
+	public int getTenantWeight(String tenant) {
+		return Integer.parseInt(getTenantProperty(tenant, "weight", "1"));
+	}
+
+	@Override
+	public int getTenantMaximumConcurrentJobs(String tenant) {
+		return Integer.parseInt(getTenantProperty(tenant, "max-containers", "0"));
+	}
+
+	@Override
+	public List<String> getPooledImages() {
+		return Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings()
+				.split(properties.getProperty("pool.images", "")));
+	}
+
+	@Override
+	public int getMaximumPoolSize() {
+		return Integer.parseInt(properties.getProperty("pool.max-size", "0"));
+	}
+
+	@Override
+	public int getMonitorInterval() {
+		return Integer.parseInt(properties.getProperty("docker.monitor-interval", "1000"));
+	}
+
+	@Override
+	public int getLogIngestThreads() {
+		return Integer.parseInt(properties.getProperty("logs.ingest-threads", "2"));
+	}
+
+	@Override
+	public int getLogPollInterval() {
+		return Integer.parseInt(properties.getProperty("logs.poll-interval", "250"));
+	}
+
+	@Override
+	public long getLogHeapThreshold() {
+		return Long.parseLong(properties.getProperty("logs.heap-threshold", "262144"));
+	}
+
+	@Override
+	public int getRetainedResults() {
+		return Integer.parseInt(properties.getProperty("results.retained", "100"));
+	}
+
+	@Override
+	public int getResultRetention() {
+		return Integer.parseInt(properties.getProperty("results.retention", "3600"));
+	}
+
+	@Override
+	public String getHistoryDirectory() {
+		String stagingDirectory = getStagingDirectory();
+		return properties.getProperty("history.directory",
+				stagingDirectory != null ? stagingDirectory + "/.history" : null);
+	}
+
+	@Override
+	public long getHistorySegmentSize() {
+		return Long.parseLong(properties.getProperty("history.segment-size", "16777216"));
+	}
+
+	@Override
+	public int getHistoryRetention() {
+		return Integer.parseInt(properties.getProperty("history.retention", "30"));
+	}
+
+	@Override
+	public int getHistoryMaximumRecords() {
+		return Integer.parseInt(properties.getProperty("history.max-records", "100000"));
+	}
+
+	@Override
+	public double getHistoryCompactionThreshold() {
+		return Double.parseDouble(properties.getProperty("history.compaction-threshold", "0.5"));
+	}
+
+	@Override
+	public int getCallbackConnections() {
+		return Integer.parseInt(properties.getProperty("callback.connections", "20"));
+	}
+
+	@Override
+	public int getCallbackConnectionsPerHost() {
+		return Integer.parseInt(properties.getProperty("callback.connections-per-host", "4"));
+	}
+
+	@Override
+	public int getCallbackAttempts() {
+		return Integer.parseInt(properties.getProperty("callback.attempts", "5"));
+	}
+
+	@Override
+	public int getCallbackBackoff() {
+		return Integer.parseInt(properties.getProperty("callback.backoff", "5000"));
+	}
+
+	@Override
+	public int getCallbackTimeout() {
+		return Integer.parseInt(properties.getProperty("callback.timeout", "30000"));
+	}
+
+	@Override
+	public String getCallbackOutboxDirectory() {
+		String stagingDirectory = getStagingDirectory();
+		return properties.getProperty("callback.outbox-directory",
+				stagingDirectory != null ? stagingDirectory + "/.outbox" : null);
+	}
+
+	@Override
+	public int getCallbackRetention() {
+		return Integer.parseInt(properties.getProperty("callback.retention", "24"));
+	}
+
+	@Override
+	public List<String> getCallbackBatchHosts() {
+		return Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings()
+				.split(properties.getProperty("callback.batch-hosts", "")));
+	}
+
+	@Override
+	public int getCallbackBatchSize() {
+		return Integer.parseInt(properties.getProperty("callback.batch-size", "50"));
+	}
+
+	@Override
+	public int getCallbackBatchWindow() {
+		return Integer.parseInt(properties.getProperty("callback.batch-window", "1000"));
+	}
+
+	@Override
+	public List<String> getCallbackGzipHosts() {
+		return Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings()
+				.split(properties.getProperty("callback.gzip-hosts", "")));
+	}
+
+	@Override
+	public String getGitMirrorDirectory() {
+		String stagingDirectory = getStagingDirectory();
+		return properties.getProperty("git.mirror-directory",
+				stagingDirectory != null ? stagingDirectory + "/.mirrors" : null);
+	}
+
+	@Override
+	public long getGitMirrorMaximumSize() {
+		return Long.parseLong(properties.getProperty("git.mirror-max-size", "10737418240"));
+	}
+
+	@Override
+	public String getCheckoutStoreDirectory() {
+		String stagingDirectory = getStagingDirectory();
+		return properties.getProperty("staging.checkout-directory",
+				stagingDirectory != null ? stagingDirectory + "/.checkouts" : null);
+	}
+
+	@Override
+	public long getCheckoutStoreMaximumSize() {
+		return Long.parseLong(properties.getProperty("staging.checkout-max-size", "5368709120"));
+	}
+
+	@Override
+	public String getCheckoutLinkMode() {
+		return properties.getProperty("staging.link-mode", "auto");
+	}
+
+	private String getTenantProperty(String tenant, String key, String defaultValue) {
+		String value = properties.getProperty("scheduler." + key, defaultValue);
+		return properties.getProperty("scheduler.tenant." + tenant + "." + key, value);
+	}
+
 }
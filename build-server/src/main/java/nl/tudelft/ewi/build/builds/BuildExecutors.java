@@ -0,0 +1,96 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory methods for the executors used by the {@link BuildManager}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+final class BuildExecutors {
+
+	private BuildExecutors() {
+	}
+
+	/**
+	 * Create the executor that runs the builds. Every build blocks its thread
+	 * while it clones the repository and follows the container. When
+	 * {@code virtualThreads} is set and the JVM supports virtual threads
+	 * (Java 21 or newer), each build runs on its own virtual thread. Otherwise
+	 * the builds run on a cached pool of platform threads, of which at most
+	 * one per running build is in use, and a second one while the container
+	 * of a build is created.
+	 *
+	 * @param virtualThreads whether to prefer virtual threads
+	 * @return the executor for the builds
+	 */
+	static ListeningExecutorService newBuildExecutor(final boolean virtualThreads) {
+		if(virtualThreads) {
+			ExecutorService executor = newVirtualThreadPerTaskExecutor();
+			if(executor != null) {
+				log.info("Running builds on virtual threads");
+				return MoreExecutors.listeningDecorator(executor);
+			}
+			log.info("Virtual threads are not supported by this JVM, running builds on platform threads");
+		}
+
+		return MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setNameFormat("build-%d").build()));
+	}
+
+	/**
+	 * Create the executor of a stage of the build pipeline, such as the
+	 * prefetching of sources or the upload of results. A stage runs on a
+	 * fixed number of platform threads, so that a burst of builds queues for
+	 * the stage instead of competing for the disk or network all at once.
+	 * The queue of the stage is bounded as well. A task that does not fit,
+	 * or that is submitted once the stage is shut down, is rejected with a
+	 * {@link RejectedExecutionException}. Tasks are never run by the
+	 * submitting thread, which may be a thread that reads the output of the
+	 * containers.
+	 *
+	 * @param name name of the stage, used for the names of the threads
+	 * @param threads the number of threads of the stage
+	 * @param queueSize the maximum number of tasks waiting for a thread
+	 * @return the executor for the stage
+	 */
+	static ListeningExecutorService newStageExecutor(final String name, final int threads, final int queueSize) {
+		int poolSize = Math.max(1, threads);
+		return MoreExecutors.listeningDecorator(new ThreadPoolExecutor(poolSize, poolSize,
+				0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+				new ThreadFactoryBuilder().setNameFormat(name + "-%d").build(),
+				new RejectedExecutionHandler() {
+
+					@Override
+					public void rejectedExecution(final Runnable task, final ThreadPoolExecutor executor) {
+						throw new RejectedExecutionException("The " + name + " stage is "
+								+ (executor.isShutdown() ? "shut down" : "full"));
+					}
+
+				}));
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,490 @@
+package nl.tudelft.ewi.build.builds;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.jaxrs.json.MappingModule;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRecord;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRequest;
+import nl.tudelft.ewi.build.jaxrs.models.GitSource;
+
+/**
+ * The {@code BuildHistory} is an append-only store of {@link BuildRecord}s on
+ * disk. Records are appended as lines of JSON to segment files, and the full
+ * log of a build is stored in a file of its own. The history keeps an index
+ * in memory of the position of every record by build UUID, repository URL,
+ * commit id and time, which is rebuilt from the segments when the history is
+ * opened. A record that was partially written before a crash is discarded.
+ *
+ * Records older than the retention period, and the oldest records beyond the
+ * maximum number of records, are removed from the index. A segment is
+ * compacted once the fraction of its records that is still in the index drops
+ * below the compaction threshold, by appending these records to the current
+ * segment and deleting the old segment.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class BuildHistory {
+
+	private static final Pattern SEGMENT_NAME = Pattern.compile("history-(\\d+)\\.jsonl");
+	private static final String LOG_DIRECTORY = "logs";
+	private static final byte LINE_TERMINATOR = '\n';
+
+	private final File directory;
+	private final File logDirectory;
+	private final ObjectMapper mapper;
+	private final long segmentSize;
+	private final long retentionMillis;
+	private final int maxRecords;
+	private final double compactionThreshold;
+
+	// Guarded by this
+	private final Map<UUID, Entry> entries = Maps.newHashMap();
+	private final ListMultimap<String, Entry> byRepository = ArrayListMultimap.create();
+	private final ListMultimap<String, Entry> byCommit = ArrayListMultimap.create();
+	private final NavigableSet<Entry> byTime = Sets.newTreeSet();
+	private final NavigableMap<Integer, Segment> segments = Maps.newTreeMap();
+	private Segment current;
+	private long sequence;
+
+	/**
+	 * Open a {@code BuildHistory}.
+	 * @param directory the directory for the segment and log files
+	 * @param segmentSize the size in bytes after which a new segment is started
+	 * @param retentionDays the number of days a record is kept, zero or less
+	 * 		to keep records regardless of their age
+	 * @param maxRecords the maximum number of records, zero or less for no
+	 * 		maximum
+	 * @param compactionThreshold the fraction of the records of a segment
+	 * 		below which the segment is compacted
+	 * @throws IOException if the history could not be read
+	 */
+	public BuildHistory(final File directory, final long segmentSize, final int retentionDays,
+			final int maxRecords, final double compactionThreshold) throws IOException {
+		Preconditions.checkNotNull(directory);
+		Preconditions.checkArgument(segmentSize > 0);
+		this.directory = directory;
+		this.logDirectory = new File(directory, LOG_DIRECTORY);
+		this.segmentSize = segmentSize;
+		this.retentionMillis = TimeUnit.DAYS.toMillis(Math.max(0, retentionDays));
+		this.maxRecords = maxRecords;
+		this.compactionThreshold = compactionThreshold;
+		this.mapper = new ObjectMapper();
+		mapper.registerModule(new MappingModule());
+		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+		if(!logDirectory.isDirectory() && !logDirectory.mkdirs()) {
+			throw new IOException("Could not create history directory " + logDirectory);
+		}
+
+		synchronized (this) {
+			load();
+			expire();
+			roll();
+			compact();
+		}
+		log.info("Opened build history with {} records in {}", entries.size(), directory);
+	}
+
+	private void load() throws IOException {
+		File[] files = directory.listFiles();
+		for(File file : files != null ? files : new File[0]) {
+			Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+			if(matcher.matches()) {
+				int number = Integer.parseInt(matcher.group(1));
+				segments.put(number, new Segment(number, file));
+			}
+		}
+
+		for(Segment segment : segments.values()) {
+			byte[] data = segment.read(0, (int) segment.size);
+			int start = 0;
+			for(int i = 0; i < data.length; i++) {
+				if(data[i] == LINE_TERMINATOR) {
+					load(segment, data, start, i - start);
+					start = i + 1;
+				}
+			}
+			if(start < data.length) {
+				log.warn("Discarding incomplete record at {} in {}", start, segment.file);
+				segment.truncate(start);
+			}
+		}
+	}
+
+	private void load(final Segment segment, final byte[] data, final int offset, final int length) {
+		segment.records++;
+		try {
+			BuildRecord record = mapper.readValue(data, offset, length, BuildRecord.class);
+			add(new Entry(record, sequence++, segment, offset, length));
+		}
+		catch (IOException e) {
+			log.warn("Skipping unreadable record at " + offset + " in " + segment.file, e);
+		}
+	}
+
+	/**
+	 * Record a finished build.
+	 * @param record the {@link BuildRecord} of the build
+	 * @param logBuffer the log of the build, or {@code null} to not store the log
+	 * @throws IOException if the record could not be written
+	 */
+	public void record(final BuildRecord record, final LogBuffer logBuffer) throws IOException {
+		Preconditions.checkNotNull(record.getUuid());
+		if(logBuffer != null) {
+			String logFile = record.getUuid() + ".log";
+			try(OutputStream outputStream = new BufferedOutputStream(
+					new FileOutputStream(new File(logDirectory, logFile)))) {
+				logBuffer.writeTo(outputStream);
+			}
+			record.setLogFile(logFile);
+		}
+
+		byte[] bytes = mapper.writeValueAsBytes(record);
+		synchronized (this) {
+			if(current.size > 0 && current.size + bytes.length + 1 > segmentSize) {
+				roll();
+				compact();
+			}
+			long offset = current.append(bytes);
+			current.records++;
+			add(new Entry(record, sequence++, current, offset, bytes.length));
+			expire();
+		}
+	}
+
+	/**
+	 * @param uuid {@link UUID} that identifies the build
+	 * @return the {@link BuildRecord} of the build, or {@code null} if the
+	 * 		build is not in the history
+	 * @throws IOException if the record could not be read
+	 */
+	public synchronized BuildRecord get(final UUID uuid) throws IOException {
+		Entry entry = entries.get(uuid);
+		return entry != null ? read(entry) : null;
+	}
+
+	/**
+	 * @param uuid {@link UUID} that identifies the build
+	 * @return the file with the full log of the build, or {@code null} if the
+	 * 		build is not in the history or its log was not stored
+	 */
+	public synchronized File getLogFile(final UUID uuid) {
+		Entry entry = entries.get(uuid);
+		if(entry == null || entry.logFile == null) {
+			return null;
+		}
+		return new File(logDirectory, entry.logFile);
+	}
+
+	/**
+	 * @param repositoryUrl the URL of the repository
+	 * @param limit the maximum number of records
+	 * @return the most recent builds of a repository, most recent first
+	 * @throws IOException if a record could not be read
+	 */
+	public synchronized List<BuildRecord> findByRepository(final String repositoryUrl, final int limit)
+			throws IOException {
+		return read(Ordering.natural().reverse().sortedCopy(byRepository.get(repositoryUrl)), limit);
+	}
+
+	/**
+	 * @param commitId the id of the commit
+	 * @param limit the maximum number of records
+	 * @return the most recent builds of a commit, most recent first
+	 * @throws IOException if a record could not be read
+	 */
+	public synchronized List<BuildRecord> findByCommit(final String commitId, final int limit)
+			throws IOException {
+		return read(Ordering.natural().reverse().sortedCopy(byCommit.get(commitId)), limit);
+	}
+
+	/**
+	 * @param from the start of the range, in milliseconds since the epoch
+	 * @param to the end of the range, exclusive
+	 * @param limit the maximum number of records
+	 * @return the most recent builds that finished in the range, most recent
+	 * 		first
+	 * @throws IOException if a record could not be read
+	 */
+	public synchronized List<BuildRecord> findRecent(final long from, final long to, final int limit)
+			throws IOException {
+		if(from >= to) {
+			return Lists.newArrayList();
+		}
+		Entry fromBound = new Entry(from, Long.MIN_VALUE);
+		Entry toBound = new Entry(to, Long.MIN_VALUE);
+		return read(byTime.subSet(fromBound, true, toBound, false).descendingSet(), limit);
+	}
+
+	/**
+	 * @return the number of records in the history
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Close the segment files.
+	 */
+	public synchronized void close() {
+		for(Segment segment : segments.values()) {
+			segment.close();
+		}
+	}
+
+	private List<BuildRecord> read(final Collection<Entry> entries, final int limit) throws IOException {
+		List<BuildRecord> records = Lists.newArrayList();
+		for(Entry entry : entries) {
+			if(records.size() >= limit) {
+				break;
+			}
+			records.add(read(entry));
+		}
+		return records;
+	}
+
+	private BuildRecord read(final Entry entry) throws IOException {
+		return mapper.readValue(entry.segment.read(entry.offset, entry.length), BuildRecord.class);
+	}
+
+	private void add(final Entry entry) {
+		Entry previous = entries.put(entry.uuid, entry);
+		if(previous != null) {
+			// A record that was copied by a compaction that did not complete
+			unindex(previous);
+		}
+		if(entry.repositoryUrl != null) {
+			byRepository.put(entry.repositoryUrl, entry);
+		}
+		if(entry.commitId != null) {
+			byCommit.put(entry.commitId, entry);
+		}
+		byTime.add(entry);
+		entry.segment.live++;
+	}
+
+	private void unindex(final Entry entry) {
+		if(entry.repositoryUrl != null) {
+			byRepository.remove(entry.repositoryUrl, entry);
+		}
+		if(entry.commitId != null) {
+			byCommit.remove(entry.commitId, entry);
+		}
+		byTime.remove(entry);
+		entry.segment.live--;
+	}
+
+	/**
+	 * Remove the records that fall outside the retention policy.
+	 */
+	private void expire() {
+		long cutoff = retentionMillis > 0 ? System.currentTimeMillis() - retentionMillis : Long.MIN_VALUE;
+		while(!byTime.isEmpty()) {
+			Entry oldest = byTime.first();
+			if(oldest.doneAt >= cutoff && (maxRecords <= 0 || entries.size() <= maxRecords)) {
+				break;
+			}
+			entries.remove(oldest.uuid);
+			unindex(oldest);
+			if(oldest.logFile != null) {
+				File logFile = new File(logDirectory, oldest.logFile);
+				if(!logFile.delete() && logFile.exists()) {
+					log.warn("Failed to delete log {}", logFile);
+				}
+			}
+		}
+	}
+
+	private void roll() throws IOException {
+		int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		File file = new File(directory, String.format("history-%08d.jsonl", number));
+		current = new Segment(number, file);
+		segments.put(number, current);
+	}
+
+	/**
+	 * Delete the segments without records in the index, and move the records
+	 * of sparse segments to the current segment.
+	 */
+	private void compact() throws IOException {
+		for(Segment segment : Lists.newArrayList(segments.values())) {
+			if(segment == current) {
+				continue;
+			}
+			else if(segment.live > 0 && segment.live >= segment.records * compactionThreshold) {
+				continue;
+			}
+
+			// Records are moved in order, so that they are loaded in order
+			for(Entry entry : byTime) {
+				if(entry.segment == segment) {
+					byte[] bytes = segment.read(entry.offset, entry.length);
+					entry.offset = current.append(bytes);
+					entry.segment = current;
+					segment.live--;
+					current.records++;
+					current.live++;
+				}
+			}
+			log.info("Compacted history segment {}", segment.file);
+			segments.remove(segment.number);
+			segment.close();
+			if(!segment.file.delete() && segment.file.exists()) {
+				log.warn("Failed to delete history segment {}", segment.file);
+			}
+		}
+	}
+
+	/**
+	 * The position of a record, with the fields by which it is indexed.
+	 */
+	private static final class Entry implements Comparable<Entry> {
+
+		private final UUID uuid;
+		private final String repositoryUrl;
+		private final String commitId;
+		private final String logFile;
+		private final long doneAt;
+		private final long sequence;
+
+		// Changed by a compaction
+		private Segment segment;
+		private long offset;
+		private int length;
+
+		Entry(final BuildRecord record, final long sequence, final Segment segment,
+				final long offset, final int length) {
+			this.uuid = record.getUuid();
+			this.logFile = record.getLogFile();
+			this.doneAt = record.getDoneAt() != null ? record.getDoneAt() : 0;
+			this.sequence = sequence;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+
+			BuildRequest request = record.getRequest();
+			if(request != null && request.getSource() instanceof GitSource) {
+				GitSource source = (GitSource) request.getSource();
+				this.repositoryUrl = source.getRepositoryUrl();
+				this.commitId = source.getCommitId();
+			}
+			else {
+				this.repositoryUrl = null;
+				this.commitId = null;
+			}
+		}
+
+		/**
+		 * Create a bound for a range of entries.
+		 */
+		Entry(final long doneAt, final long sequence) {
+			this.uuid = null;
+			this.repositoryUrl = null;
+			this.commitId = null;
+			this.logFile = null;
+			this.doneAt = doneAt;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(final Entry other) {
+			int result = Longs.compare(doneAt, other.doneAt);
+			return result != 0 ? result : Longs.compare(sequence, other.sequence);
+		}
+
+	}
+
+	/**
+	 * A {@code Segment} is a file to which records are appended.
+	 */
+	private static final class Segment {
+
+		private final int number;
+		private final File file;
+		private final FileChannel channel;
+		private long size;
+
+		// Number of records in the segment, and the number of those in the index
+		private int records;
+		private int live;
+
+		Segment(final int number, final File file) throws IOException {
+			this.number = number;
+			this.file = file;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.size = channel.size();
+		}
+
+		/**
+		 * Append a record and force it to disk.
+		 * @return the offset of the record
+		 */
+		long append(final byte[] bytes) throws IOException {
+			long offset = size;
+			ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+			buffer.put(bytes).put(LINE_TERMINATOR).flip();
+			while(buffer.hasRemaining()) {
+				size += channel.write(buffer, size);
+			}
+			channel.force(false);
+			return offset;
+		}
+
+		byte[] read(final long offset, final int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, offset + buffer.position()) < 0) {
+					throw new EOFException("Unexpected end of " + file);
+				}
+			}
+			return buffer.array();
+		}
+
+		void truncate(final long size) throws IOException {
+			channel.truncate(size);
+			this.size = size;
+		}
+
+		void close() {
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				log.warn("Failed to close history segment " + file, e);
+			}
+		}
+
+	}
+
+}
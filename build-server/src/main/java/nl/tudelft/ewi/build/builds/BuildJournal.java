@@ -0,0 +1,122 @@
+package nl.tudelft.ewi.build.builds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.jaxrs.json.MappingModule;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRecord;
+
+/**
+ * The {@code BuildJournal} keeps a file for every scheduled build that did not
+ * finish yet, so that the builds can be recovered when the server restarts.
+ * An entry is a {@link BuildRecord} without a result, and is written to a
+ * temporary file that is moved in place once it is on disk, so that an entry
+ * is either complete or absent after a crash.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class BuildJournal {
+
+	private static final String SUFFIX = ".json";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	private final File directory;
+	private final ObjectMapper mapper;
+
+	/**
+	 * Open a {@code BuildJournal}.
+	 * @param directory the directory for the entries
+	 * @throws IOException if the directory could not be created
+	 */
+	public BuildJournal(final File directory) throws IOException {
+		Preconditions.checkNotNull(directory);
+		this.directory = directory;
+		this.mapper = new ObjectMapper();
+		mapper.registerModule(new MappingModule());
+		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create journal directory " + directory);
+		}
+	}
+
+	/**
+	 * Write the entry of a build, replacing its previous entry.
+	 * @param record the {@link BuildRecord} of the build
+	 * @throws IOException if the entry could not be written
+	 */
+	public void write(final BuildRecord record) throws IOException {
+		File file = getFile(record.getUuid());
+		File temporary = new File(directory, file.getName() + TEMPORARY_SUFFIX);
+		try(FileOutputStream outputStream = new FileOutputStream(temporary)) {
+			outputStream.write(mapper.writeValueAsBytes(record));
+			outputStream.getChannel().force(true);
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Remove the entry of a build.
+	 * @param uuid {@link UUID} that identifies the build
+	 */
+	public void remove(final UUID uuid) {
+		File file = getFile(uuid);
+		if(file.exists() && !file.delete()) {
+			log.warn("Failed to remove journal entry {}", file);
+		}
+	}
+
+	/**
+	 * Read the entries of the builds that did not finish. Entries that can
+	 * not be read are removed.
+	 * @return the {@link BuildRecord}s, in the order in which the builds were
+	 * 		submitted
+	 */
+	public List<BuildRecord> read() {
+		List<BuildRecord> records = Lists.newArrayList();
+		File[] files = directory.listFiles();
+		for(File file : files != null ? files : new File[0]) {
+			if(file.getName().endsWith(TEMPORARY_SUFFIX)) {
+				file.delete();
+			}
+			else if(file.getName().endsWith(SUFFIX)) {
+				try {
+					records.add(mapper.readValue(file, BuildRecord.class));
+				}
+				catch (IOException e) {
+					log.warn("Discarding unreadable journal entry " + file, e);
+					file.delete();
+				}
+			}
+		}
+
+		Collections.sort(records, new Comparator<BuildRecord>() {
+			@Override
+			public int compare(final BuildRecord a, final BuildRecord b) {
+				return Long.compare(a.getSubmittedAt() != null ? a.getSubmittedAt() : 0,
+						b.getSubmittedAt() != null ? b.getSubmittedAt() : 0);
+			}
+		});
+		return records;
+	}
+
+	private File getFile(final UUID uuid) {
+		return new File(directory, uuid + SUFFIX);
+	}
+
+}
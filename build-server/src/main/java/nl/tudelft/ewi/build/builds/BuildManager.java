@@ -1,60 +1,173 @@
 package nl.tudelft.ewi.build.builds;
 
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
+import com.google.common.collect.ObjectArrays;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningScheduledExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.spotify.docker.client.DockerClient;
-import com.spotify.docker.client.DockerClient.AttachParameter;
+import com.spotify.docker.client.DockerClient.ExecStartParameter;
+import com.spotify.docker.client.DockerClient.ListContainersParam;
 import com.spotify.docker.client.DockerException;
+import com.spotify.docker.client.ImageNotFoundException;
+import com.spotify.docker.client.LogMessage;
 import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.messages.Container;
 import com.spotify.docker.client.messages.ContainerConfig;
 import com.spotify.docker.client.messages.ContainerCreation;
 import com.spotify.docker.client.messages.ContainerExit;
+import com.spotify.docker.client.messages.ContainerState;
+import com.spotify.docker.client.messages.ExecState;
 import com.spotify.docker.client.messages.HostConfig;
 import lombok.extern.slf4j.Slf4j;
 import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.builds.ContainerPool.WarmContainer;
+import nl.tudelft.ewi.build.builds.DeadlineService.Deadline;
+import nl.tudelft.ewi.build.builds.LogIngester.Subscription;
 import nl.tudelft.ewi.build.extensions.instructions.BuildInstructionInterpreter;
 import nl.tudelft.ewi.build.extensions.instructions.BuildInstructionInterpreterRegistry;
 import nl.tudelft.ewi.build.extensions.staging.StagingDirectoryPreparer;
 import nl.tudelft.ewi.build.extensions.staging.StagingDirectoryPreparerRegistry;
 import nl.tudelft.ewi.build.jaxrs.models.BuildInstruction;
 import nl.tudelft.ewi.build.jaxrs.models.BuildRequest;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRecord;
 import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+import nl.tudelft.ewi.build.jaxrs.models.BuildResult.FailureReason;
 import nl.tudelft.ewi.build.jaxrs.models.BuildResult.Status;
+import nl.tudelft.ewi.build.jaxrs.models.BuildStatus;
+import nl.tudelft.ewi.build.jaxrs.models.BuildStatus.State;
+import nl.tudelft.ewi.build.jaxrs.models.ContainerPoolStatistics;
+import nl.tudelft.ewi.build.jaxrs.models.LogIngestStatistics;
+import nl.tudelft.ewi.build.jaxrs.models.ProvisioningTimings;
 import nl.tudelft.ewi.build.jaxrs.models.Source;
+import nl.tudelft.ewi.build.jaxrs.models.TenantStatistics;
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jetty.util.component.AbstractLifeCycle.AbstractLifeCycleListener;
 import org.eclipse.jetty.util.component.LifeCycle;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 @Singleton
 public class BuildManager extends AbstractLifeCycleListener implements LifeCycle.Listener {
 
-	private final static String WORK_DIR = "/workdir";
+	final static String WORK_DIR = "/workdir";
+
+	/**
+	 * Weight of the most recent build in the moving average of build durations.
+	 */
+	private final static double DURATION_SMOOTHING = 0.2;
+
+	/**
+	 * Directory in the staging directory to which logs are spilled.
+	 */
+	private final static String LOG_DIRECTORY = ".logs";
+
+	/**
+	 * Directory in the staging directory with the {@link BuildJournal}.
+	 */
+	private final static String JOURNAL_DIRECTORY = ".builds";
+
+	/**
+	 * Status of a container that was created but never started.
+	 */
+	private final static String CREATED_STATUS = "Created";
+
+	/**
+	 * Time to wait for the results of builds that already terminated to be
+	 * uploaded when the server stops.
+	 */
+	private final static long DRAIN_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * Time to wait for the container of a killed build to be removed, before
+	 * the kill is left to complete in the background.
+	 */
+	private final static long KILL_TIMEOUT_SECONDS = 10;
+
+	private final static long DEADLINE_TICK_MILLIS = 100;
+	private final static int DEADLINE_WHEEL_SIZE = 512;
+
+	/**
+	 * Runs the build command in a warm container with the output redirected
+	 * to the output of the container, so that the {@link LogIngester} reads it
+	 * from the container log.
+	 */
+	private final static String[] WARM_EXEC_PREFIX = {
+		"sh", "-c", "exec \"$0\" \"$@\" >/proc/1/fd/1 2>/proc/1/fd/2"
+	};
+
+	/**
+	 * The steps of provisioning a build of which the
+	 * {@link ProvisioningTimings} are recorded.
+	 */
+	private static enum Step {
+		STAGING, IMAGE_CHECK, CREATE, START, FIRST_LOG;
+	}
 
 	private final Config config;
 	private final DockerClient dockerClient;
 	private final StagingDirectoryPreparerRegistry stagingDirectoryPreparerRegistry;
 	private final BuildInstructionInterpreterRegistry buildInstructionInterpreterRegistry;
-	private final Map<UUID, ListenableFuture<BuildResult>> builds;
-	private final ListeningScheduledExecutorService executor;
+	private final ConcurrentMap<UUID, Build> builds;
+	private final FairShareScheduler<Build> scheduler;
+	private final TenantKey tenantKey;
+	private final AtomicLong averageBuildDuration;
+	private final ListeningExecutorService executor;
+	private final ListeningExecutorService stagingExecutor;
+	private final ListeningExecutorService uploadExecutor;
+	private final ListeningExecutorService cleanupExecutor;
+	private final Semaphore uploadPermits;
+	private final Queue<BuildTask> awaitingUpload;
+	private final DeadlineService deadlineService;
+	private final ContainerPool containerPool;
+	private final ContainerMonitor containerMonitor;
+	private final LogIngester logIngester;
+	private final File logDirectory;
+	private final Cache<UUID, Build> finishedBuilds;
+	private final BuildHistory history;
+	private final BuildJournal journal;
 
 	@Inject
 	public BuildManager(
@@ -68,36 +181,243 @@ public class BuildManager extends AbstractLifeCycleListener implements LifeCycle
 		this.dockerClient = dockerClient;
 		this.stagingDirectoryPreparerRegistry = stagingDirectoryPreparerRegistry;
 		this.buildInstructionInterpreterRegistry = buildInstructionInterpreterRegistry;
-		this.builds = Maps.newHashMap();
-		this.executor = MoreExecutors.listeningDecorator(Executors
-				.newScheduledThreadPool(2 * config.getMaximumConcurrentJobs()));
+		this.builds = Maps.newConcurrentMap();
+		this.scheduler = new FairShareScheduler<Build>(config);
+		this.tenantKey = config.getTenantKey() != null ? config.getTenantKey() : TenantKey.REPOSITORY;
+		this.averageBuildDuration = new AtomicLong(Double.doubleToLongBits(0));
+		this.executor = BuildExecutors.newBuildExecutor(config.isVirtualThreadsEnabled());
+		// A prefetch is skipped when the staging stage is full. Every build
+		// that holds a container slot fits in the cleanup stage, and a build
+		// keeps its slot until it fits in the upload stage, so that a slow
+		// upload holds back the admission of new builds.
+		int queueSize = Math.max(1, config.getStageQueueSize());
+		this.stagingExecutor = BuildExecutors.newStageExecutor("staging", config.getStagingThreads(), queueSize);
+		this.uploadExecutor = BuildExecutors.newStageExecutor("upload", config.getUploadThreads(), queueSize);
+		this.cleanupExecutor = BuildExecutors.newStageExecutor("cleanup", config.getCleanupThreads(),
+				Math.max(queueSize, config.getMaximumConcurrentJobs()));
+		// An upload releases its permit before its thread is done, so at most
+		// as many uploads as fit in the queue are handed to the stage
+		this.uploadPermits = new Semaphore(queueSize);
+		this.awaitingUpload = new ConcurrentLinkedQueue<>();
+		this.deadlineService = new DeadlineService(executor, DEADLINE_TICK_MILLIS, TimeUnit.MILLISECONDS, DEADLINE_WHEEL_SIZE);
+		this.journal = openJournal(config);
+
+		// Reap the leftovers of a previous run before new warm containers are created
+		List<BuildRecord> unfinished = journal != null ? journal.read() : Collections.<BuildRecord>emptyList();
+		Map<UUID, String> containers = reap(unfinished);
+
+		this.containerPool = new ContainerPool(config, dockerClient, executor);
+		this.containerMonitor = new ContainerMonitor(dockerClient, config.getMonitorInterval());
+		this.logIngester = new LogIngester(dockerClient, config.getLogIngestThreads(),
+				config.getLogPollInterval(), TimeUnit.MILLISECONDS);
+
+		// Logs spilled by a previous run can no longer be read
+		this.logDirectory = new File(config.getStagingDirectory(), LOG_DIRECTORY);
+		FileUtils.deleteQuietly(logDirectory);
+		this.finishedBuilds = CacheBuilder.newBuilder()
+				.maximumSize(Math.max(0, config.getRetainedResults()))
+				.expireAfterWrite(Math.max(0, config.getResultRetention()), TimeUnit.SECONDS)
+				.removalListener(new RemovalListener<UUID, Build>() {
+					@Override
+					public void onRemoval(RemovalNotification<UUID, Build> notification) {
+						notification.getValue().logBuffer.delete();
+					}
+				})
+				.build();
+		this.history = openHistory(config);
+		recover(unfinished, containers);
+	}
+
+	private static BuildJournal openJournal(final Config config) {
+		File directory = new File(config.getStagingDirectory(), JOURNAL_DIRECTORY);
+		try {
+			return new BuildJournal(directory);
+		}
+		catch (IOException e) {
+			log.error("Failed to open the build journal in " + directory + ", builds are not recovered", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Remove the containers and staging directories that were left behind by
+	 * a previous run of the server, except for the containers of the
+	 * unfinished builds in the {@link BuildJournal}.
+	 * @param unfinished the unfinished builds
+	 * @return the ids of the containers of the unfinished builds
+	 */
+	private Map<UUID, String> reap(final List<BuildRecord> unfinished) {
+		Set<UUID> uuids = Sets.newHashSet();
+		for(BuildRecord record : unfinished) {
+			uuids.add(record.getUuid());
+		}
+
+		Map<UUID, String> containers = Maps.newHashMap();
+		try {
+			for(Container container : dockerClient.listContainers(
+					ListContainersParam.allContainers(), ListContainersParam.withLabel(ContainerMonitor.LABEL))) {
+				Map<String, String> labels = container.labels();
+				if(labels == null || !labels.containsKey(ContainerMonitor.LABEL)) {
+					continue;
+				}
+
+				UUID uuid = parseUUID(labels.get(ContainerMonitor.LABEL));
+				String status = Strings.nullToEmpty(container.status());
+				if(uuids.contains(uuid) && !status.startsWith(CREATED_STATUS)) {
+					log.info("Found container {} of unfinished build {}", container.id(), uuid);
+					containers.put(uuid, container.id());
+					continue;
+				}
+
+				// Warm containers and builds in warm containers are not reattached
+				log.info("Removing orphaned container {}", container.id());
+				try {
+					dockerClient.removeContainer(container.id(), true);
+				}
+				catch (DockerException e) {
+					log.warn("Failed to remove orphaned container " + container.id(), e);
+				}
+			}
+		}
+		catch (DockerException | InterruptedException e) {
+			log.warn("Failed to list the containers of a previous run", e);
+		}
+
+		File[] directories = new File(config.getStagingDirectory()).listFiles();
+		for(File directory : directories != null ? directories : new File[0]) {
+			UUID uuid = parseUUID(directory.getName());
+			if(uuid != null && directory.isDirectory() && !containers.containsKey(uuid)) {
+				log.info("Removing orphaned staging directory {}", directory);
+				FileUtils.deleteQuietly(directory);
+			}
+		}
+		return containers;
+	}
+
+	/**
+	 * Schedule the unfinished builds of a previous run of the server. A
+	 * build of which the container still exists is reattached to its
+	 * container, other builds are started again.
+	 * @param unfinished the unfinished builds, in the order in which they
+	 * 		were submitted
+	 * @param containers the ids of the containers of the unfinished builds
+	 */
+	private void recover(final List<BuildRecord> unfinished, final Map<UUID, String> containers) {
+		for(BuildRecord record : unfinished) {
+			BuildRequest buildRequest = record.getRequest();
+			UUID uuid = record.getUuid();
+			long submitTime = record.getSubmittedAt() != null ? record.getSubmittedAt() : System.currentTimeMillis();
+			Build build = new Build(buildRequest, tenantKey.getTenantOf(config, buildRequest), uuid, submitTime);
+			String containerId = containers.get(uuid);
+			if(containerId != null) {
+				build.buildTask.buildRunner.reattach(containerId);
+			}
+			builds.put(uuid, build);
+
+			switch (scheduler.offer(build.tenant, build)) {
+				case STARTED:
+					log.info("Recovered build {} for {}", uuid, build.tenant);
+					if(!build.start()) {
+						release(build);
+					}
+					break;
+				case QUEUED:
+					log.info("Recovered and queued build {} for {}", uuid, build.tenant);
+					break;
+				default:
+					log.warn("Cancelling recovered build {}, the server no longer has capacity for it", uuid);
+					builds.remove(uuid, build);
+					build.cancel(true);
+					build.buildTask.buildRunner.remove();
+					finishedBuilds.put(uuid, build);
+			}
+		}
+		prefetch();
+	}
+
+	private static UUID parseUUID(final String value) {
+		try {
+			return value != null ? UUID.fromString(value) : null;
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static BuildHistory openHistory(final Config config) {
+		String directory = config.getHistoryDirectory();
+		if(Strings.isNullOrEmpty(directory)) {
+			log.info("Build history is disabled");
+			return null;
+		}
+		try {
+			return new BuildHistory(new File(directory), config.getHistorySegmentSize(),
+					config.getHistoryRetention(), config.getHistoryMaximumRecords(),
+					config.getHistoryCompactionThreshold());
+		}
+		catch (IOException e) {
+			log.error("Failed to open the build history in " + directory + ", builds are not recorded", e);
+			return null;
+		}
 	}
 	
 	/**
-	 * Schedule a new build
+	 * Schedule a new build. The build starts immediately if a container slot
+	 * is available and its tenant did not reach its cap, otherwise it is
+	 * queued for its tenant.
 	 * @param buildRequest {@link BuildRequest} object that describes the build
-	 * @return {@link UUID} which identifies the build
+	 * @return the {@link Build}, or {@code null} if both the container slots
+	 * 		and the build queue are full
 	 * @see #killBuild(UUID)
+	 * @see FairShareScheduler
 	 */
 	public Build schedule(final BuildRequest buildRequest) {
-		if(builds.size() >= config.getMaximumConcurrentJobs()) {
-			return null;
+		final Build build = new Build(buildRequest, tenantKey.getTenantOf(config, buildRequest),
+				UUID.randomUUID(), System.currentTimeMillis());
+		builds.put(build.getUUID(), build);
+		// Journalled before it starts, so that the entry is not removed before it is written
+		build.journal();
+
+		switch (scheduler.offer(build.tenant, build)) {
+			case STARTED:
+				if(!build.start()) {
+					// Killed before it started
+					release(build);
+				}
+				break;
+			case QUEUED:
+				log.info("Queued build {} for {}", build.getUUID(), build.tenant);
+				prefetch();
+				break;
+			default:
+				builds.remove(build.getUUID(), build);
+				build.forget();
+				return null;
 		}
-		
-		return new Build(buildRequest);
+
+		return build;
 	}
 
 	/**
-	 * Kill a scheduled build
+	 * Kill a scheduled build. A build that already started is given
+	 * {@link #KILL_TIMEOUT_SECONDS} seconds to have its container removed and
+	 * its container slot released. The killed build remains available through
+	 * {@link #findBuild(UUID)}, also while its container is still being
+	 * removed.
 	 * @param uuid {@link UUID} that identifies the build
+	 * @return true if the build terminated, false if its container is still
+	 * 		being removed
 	 * @see #schedule(BuildRequest)
 	 */
-	public void killBuild(final UUID uuid) {
-		final Future<BuildResult> build = builds.remove(uuid);
+	public boolean killBuild(final UUID uuid) {
+		final Build build = builds.remove(uuid);
 		if (build == null)
 			throw new IllegalArgumentException("Build does not exist!");
-		else
-			build.cancel(true);
+
+		scheduler.remove(build.tenant, build);
+		build.cancel(true);
+		finishedBuilds.put(uuid, build);
+		return !build.isStarted() || build.buildTask.awaitTermination(KILL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
 	}
 	
 	/**
@@ -106,202 +426,1414 @@ public class BuildManager extends AbstractLifeCycleListener implements LifeCycle
 	 * @return the {@link Future} for the build
 	 * @see #schedule(BuildRequest)
 	 */
-	public ListenableFuture<BuildResult> getBuild(final UUID uuid) {
+	public Build getBuild(final UUID uuid) {
 		return builds.get(uuid);
 	}
 
+	/**
+	 * @return the scheduled builds, including the builds that were recovered
+	 * 		after a restart
+	 */
+	public Collection<Build> getBuilds() {
+		return Collections.unmodifiableCollection(builds.values());
+	}
+
+	/**
+	 * Find a scheduled or recently finished build. Finished builds are
+	 * retained for {@link Config#getResultRetention()} seconds, and at most
+	 * {@link Config#getRetainedResults()} are retained.
+	 * @param uuid {@link UUID} that identifies the build
+	 * @return the {@link Build}, or {@code null} if the build does not exist
+	 * 		or is no longer retained
+	 */
+	public Build findBuild(final UUID uuid) {
+		Build build = builds.get(uuid);
+		if(build != null) {
+			return build;
+		}
+		return finishedBuilds.getIfPresent(uuid);
+	}
+
+	/**
+	 * Get the full log of a scheduled or recently finished build.
+	 * @param uuid {@link UUID} that identifies the build
+	 * @return the {@link LogBuffer} of the build, or {@code null} if the
+	 * 		build does not exist or is no longer retained
+	 */
+	public LogBuffer getLog(final UUID uuid) {
+		Build build = findBuild(uuid);
+		return build != null ? build.logBuffer : null;
+	}
+
+	/**
+	 * Wait for the log of a build to have more than a number of lines, to
+	 * follow the log of a running build.
+	 * @param uuid {@link UUID} that identifies the build
+	 * @param line the index of the line to wait for
+	 * @return a {@link ListenableFuture} for the {@link LogBuffer} of the
+	 * 		build, that completes when the line is available or the log is
+	 * 		complete, or {@code null} if the build does not exist or is no
+	 * 		longer retained
+	 */
+	public ListenableFuture<LogBuffer> followLog(final UUID uuid, final int line) {
+		final LogBuffer logBuffer = getLog(uuid);
+		if(logBuffer == null) {
+			return null;
+		}
+		// Readers are notified on the executor instead of the ingest threads
+		return Futures.transform(logBuffer.await(line), new Function<Void, LogBuffer>() {
+			@Override
+			public LogBuffer apply(final Void input) {
+				return logBuffer;
+			}
+		}, executor);
+	}
+
+	/**
+	 * Estimate the number of seconds until a build at the given position in
+	 * the queue is started, based on the moving average of recent build
+	 * durations.
+	 * @param queuePosition zero based position in the queue
+	 * @return the estimated wait in seconds, or {@code null} if no build has
+	 * 		completed yet
+	 */
+	public Long getEstimatedWaitSeconds(final int queuePosition) {
+		double average = Double.longBitsToDouble(averageBuildDuration.get());
+		if(average == 0) {
+			return null;
+		}
+		double slots = Math.max(1, config.getMaximumConcurrentJobs());
+		return (long) Math.ceil((queuePosition + 1) * average / slots / 1000);
+	}
+
+	/**
+	 * @return the {@link TenantStatistics} for every tenant that scheduled
+	 * 		builds recently
+	 */
+	public List<TenantStatistics> getTenantStatistics() {
+		return scheduler.getStatistics();
+	}
+
+	/**
+	 * @return the {@link ContainerPoolStatistics} for every pooled image
+	 */
+	public List<ContainerPoolStatistics> getContainerPoolStatistics() {
+		return containerPool.getStatistics();
+	}
+
+	/**
+	 * @return the {@link LogIngestStatistics} of the build output
+	 */
+	public LogIngestStatistics getLogIngestStatistics() {
+		return logIngester.getStatistics();
+	}
+
+	/**
+	 * Release the container slot of a build after its container was removed,
+	 * and hand it to the queued build that the {@link FairShareScheduler}
+	 * selects. The results of the build are uploaded after its slot is
+	 * released.
+	 * @param build the {@link Build} of which the container was removed
+	 */
+	private void release(final Build build) {
+		Build next = scheduler.release(build.tenant);
+		while(next != null) {
+			log.info("Starting queued build {} for {}", next.getUUID(), next.tenant);
+			if(next.start()) {
+				break;
+			}
+			// Cancelled after it was handed the slot, pass the slot on
+			next = scheduler.release(next.tenant);
+		}
+		prefetch();
+	}
+
+	/**
+	 * Move a build that is done to the finished builds.
+	 * @param build the {@link Build} that finished
+	 */
+	private void retire(final Build build) {
+		finishedBuilds.put(build.getUUID(), build);
+		builds.remove(build.getUUID(), build);
+		if(!build.isCancelled()) {
+			updateAverageBuildDuration(System.currentTimeMillis() - build.startTime);
+		}
+	}
+
+	/**
+	 * Prefetch the sources of the queued builds that are expected to start
+	 * next, up to {@link Config#getMaximumPrefetchedJobs()} builds, so that
+	 * they do not clone while they occupy a container slot.
+	 */
+	private void prefetch() {
+		Build build;
+		while((build = scheduler.prefetch()) != null) {
+			build.buildTask.buildRunner.prefetch();
+		}
+	}
+
+	/**
+	 * Hand the builds that wait for room in the upload stage to the stage,
+	 * and release their container slots.
+	 */
+	private void dispatchUploads() {
+		while(!awaitingUpload.isEmpty() && uploadPermits.tryAcquire()) {
+			BuildTask task = awaitingUpload.poll();
+			if(task == null) {
+				uploadPermits.release();
+				continue;
+			}
+			release(task.build);
+			task.upload();
+		}
+	}
+
+	private void updateAverageBuildDuration(final long duration) {
+		while(true) {
+			long current = averageBuildDuration.get();
+			double average = Double.longBitsToDouble(current);
+			double updated = average == 0 ? duration :
+				(1 - DURATION_SMOOTHING) * average + DURATION_SMOOTHING * duration;
+			if(averageBuildDuration.compareAndSet(current, Double.doubleToLongBits(updated))) {
+				return;
+			}
+		}
+	}
+
 	@Override
 	public void lifeCycleStopping(LifeCycle event) {
+		containerPool.stop();
 		executor.shutdown();
+		stagingExecutor.shutdown();
+		// The cleanup stage hands builds to the upload stage, so it is drained
+		// first. The results are then returned by the CallbackDispatcher, which
+		// stops after the BuildManager.
+		drain(cleanupExecutor);
+		drain(uploadExecutor);
+		deadlineService.stop();
+		containerMonitor.stop();
+		logIngester.stop();
+		finishedBuilds.invalidateAll();
+		if(history != null) {
+			history.close();
+		}
+	}
+
+	private static void drain(final ExecutorService stage) {
+		stage.shutdown();
+		try {
+			if(!stage.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				log.warn("Stopping the build pipeline before it has drained");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the {@link BuildHistory}, or {@code null} if the build history
+	 * 		is disabled
+	 */
+	public BuildHistory getHistory() {
+		return history;
 	}
 
 	/**
 	 * The {@link Build} class forms the {@link Future} for the
 	 * {@link BuildRequest}, which completes even if the build fails, or the
 	 * container exits abnormally due to an error, timeout or cancellation. In
-	 * this case the build {@link Status} is set to {@code FAILED}.
+	 * this case the build {@link Status} is set to {@code FAILED}. The build
+	 * timeout and the phase timeouts are enforced by the
+	 * {@link DeadlineService}, so that no thread has to wait for the
+	 * {@link BuildTask}.
 	 * 
 	 * @author Jan-Willem Gmelig Meyling
 	 *
 	 */
 	public class Build extends AbstractFuture<BuildResult>
-			implements ListenableFuture<BuildResult>, Runnable {
+			implements ListenableFuture<BuildResult> {
 
 		private final BuildRequest buildRequest;
+		private final String tenant;
 		private final BuildResult buildResult;
-		private final Logger logger;
+		private final LogBuffer logBuffer;
+		private final BuildResultLogger logger;
 		private final BuildTask buildTask;
+		private volatile State state;
+		private final long submitTime;
+		private volatile long startTime;
+		private volatile long runningTime;
+		private volatile long uploadingTime;
+		private volatile long doneTime;
+		// Null while queued, then claimed by either start() or the cancellation
+		// of the queued build, so that a build that is handed a container slot
+		// while it is cancelled does not run
+		private final AtomicReference<Boolean> started = new AtomicReference<Boolean>();
+		private final AtomicReference<String> expiry = new AtomicReference<String>();
+		private volatile Deadline deadline;
+		private volatile boolean outOfMemory;
+		private volatile Integer exitCode;
+
+		// Unlike the build itself, also completes with the result of a cancelled build
+		private final SettableFuture<BuildResult> result = SettableFuture.create();
 
-		Build(final BuildRequest buildRequest) {
+		Build(final BuildRequest buildRequest, final String tenant, final UUID uuid, final long submitTime) {
 			this.buildRequest = buildRequest;
+			this.tenant = tenant;
 			this.buildResult = new BuildResult();
-			this.logger = new BuildResultLogger(buildResult);
-			this.buildTask = new BuildTask(new BuildRunner(logger, buildRequest));
-			start();
+			this.buildResult.setUuid(uuid);
+			this.logBuffer = new LogBuffer(logDirectory, uuid.toString(), config.getLogHeapThreshold());
+			this.logger = new BuildResultLogger(buildResult, logBuffer);
+			this.buildTask = new BuildTask(this, new BuildRunner(this, uuid, logger, buildRequest));
+			this.state = State.QUEUED;
+			this.submitTime = submitTime;
 		}
 
-		private final void start() {
+		/**
+		 * Start the build in the container slot that was handed to it.
+		 * @return false if the build was cancelled while it was queued, in
+		 * 		which case the slot must be released again
+		 */
+		private boolean start() {
+			if(!started.compareAndSet(null, true)) {
+				Preconditions.checkState(!started.get(), "Build is already started!");
+				return false;
+			}
+			startTime = System.currentTimeMillis();
+			state = State.STAGING;
+
+			Integer timeout = buildRequest.getTimeout();
+			if(timeout != null) {
+				deadline = scheduleDeadline("[FATAL] Build timed out!", timeout);
+			}
+
 			executor.execute(buildTask);
-			executor.execute(this);
-			builds.put(getUUID(), this);
+			return true;
 		}
 
-		@Override
-		public void run() {
-			try {
-				Integer timeout = buildRequest.getTimeout();
-				ContainerExit exit = timeout == null || timeout == 0 ? buildTask.get()
-						: buildTask.get(timeout, TimeUnit.SECONDS);
-				Status status = exit.statusCode() == 0 ? Status.SUCCEEDED
-						: Status.FAILED;
-				buildResult.setStatus(status);
-			}
-			catch (TimeoutException e) {
+		/**
+		 * @return true if the build was started, false if it is queued or was
+		 * 		cancelled while it was queued
+		 */
+		boolean isStarted() {
+			return Boolean.TRUE.equals(started.get());
+		}
+
+		/**
+		 * Called once the build command has started.
+		 */
+		void running() {
+			runningTime = System.currentTimeMillis();
+			state = State.RUNNING;
+		}
+
+		/**
+		 * Called once the build command has terminated, while its output is
+		 * collected.
+		 */
+		void uploading() {
+			uploadingTime = System.currentTimeMillis();
+			state = State.UPLOADING;
+		}
+
+		/**
+		 * Schedule a {@link Deadline} that expires this build.
+		 * @param message the message that is logged when the build expires
+		 * @param seconds the timeout in seconds, zero or less disables the deadline
+		 * @return the {@link Deadline}, or {@code null} if it is disabled
+		 */
+		Deadline scheduleDeadline(final String message, final long seconds) {
+			if(seconds <= 0) {
+				return null;
+			}
+
+			return deadlineService.schedule(new Runnable() {
+				@Override
+				public void run() {
+					expire(message);
+				}
+			}, seconds, TimeUnit.SECONDS);
+		}
+
+		/**
+		 * Expire this build. This cancels the {@link BuildTask}, which kills
+		 * the container if it is already running.
+		 * @param message the message that is logged
+		 */
+		void expire(final String message) {
+			if(expiry.compareAndSet(null, message)) {
+				log.info("Build {} expired: {}", getUUID(), message);
 				buildTask.cancel(true);
-				logger.println("[FATAL] Build timed out!");
-				buildResult.setStatus(Status.FAILED);
-				log.info("Build timed out {}", getUUID());
+			}
+		}
+
+		/**
+		 * Complete this {@link Future} with the {@link BuildResult}. This is
+		 * called by the {@link BuildTask} once it has completed, thus
+		 * {@link BuildTask#get()} does not block.
+		 */
+		private void finish() {
+			cancelDeadline(deadline);
+
+			try {
+				ContainerExit exit = buildTask.get();
+				exitCode = exit.statusCode();
+				if(exit.statusCode() == 0) {
+					buildResult.setStatus(Status.SUCCEEDED);
+				}
+				else if(outOfMemory) {
+					fail(FailureReason.OUT_OF_MEMORY);
+					logger.println("[FATAL] Build ran out of memory!");
+					log.info("Build ran out of memory {}", getUUID());
+				}
+				else {
+					fail(FailureReason.NON_ZERO_EXIT);
+				}
 			}
 			catch (CancellationException e) {
-				logger.println("[FATAL] Build was cancelled!");
-				buildResult.setStatus(Status.FAILED);
-				log.info("Build cancelled " + getUUID());
+				String message = expiry.get();
+				if(message != null) {
+					fail(FailureReason.TIMED_OUT);
+					logger.println(message);
+					log.info("Build timed out {}", getUUID());
+				}
+				else {
+					fail(FailureReason.CANCELLED);
+					logger.println("[FATAL] Build was cancelled!");
+					log.info("Build cancelled " + getUUID());
+				}
 			}
 			catch (Throwable t) {
-				buildResult.setStatus(Status.FAILED);
+				fail(FailureReason.ERROR);
 				logger.println("[FATAL] An exception occured during the build!");
 				log.warn("Build task failed " + getUUID(), t);
 			}
 			finally {
 				logger.close();
-				builds.remove(getUUID());
+				buildResult.setLogLineCount(logger.getLineCount());
+				doneTime = System.currentTimeMillis();
+				state = State.DONE;
 			}
+			record();
+			result.set(buildResult);
 			set(buildResult);
+			// Listeners add the result to the callback outbox before the
+			// build is removed from the journal
+			forget();
+		}
+
+		private void fail(final FailureReason failureReason) {
+			buildResult.setStatus(Status.FAILED);
+			buildResult.setFailureReason(failureReason);
 		}
 
 		@Override
 		public boolean cancel(boolean mayInterruptIfRunning) {
 			if(super.cancel(mayInterruptIfRunning)) {
+				boolean queued = started.compareAndSet(null, false);
+				if(queued) {
+					// A queued build is done right away
+					fail(FailureReason.CANCELLED);
+					logger.println("[FATAL] Build was cancelled!");
+					logger.close();
+					buildResult.setLogLineCount(logger.getLineCount());
+					doneTime = System.currentTimeMillis();
+					state = State.DONE;
+					record();
+					forget();
+					result.set(buildResult);
+				}
 				// Cancel the build as well
 				buildTask.cancel(mayInterruptIfRunning);
+				if(queued) {
+					buildTask.buildRunner.discard();
+				}
 				return true;
 			}
 			return false;
 		}
 
+		/**
+		 * Record the finished build in the {@link BuildHistory}.
+		 */
+		private void record() {
+			if(history == null) {
+				return;
+			}
+
+			// The log lines are stored in a file of their own
+			BuildResult result = new BuildResult();
+			result.setUuid(buildResult.getUuid());
+			result.setStatus(buildResult.getStatus());
+			result.setFailureReason(buildResult.getFailureReason());
+			result.setLogLineCount(buildResult.getLogLineCount());
+
+			BuildRecord record = new BuildRecord();
+			record.setUuid(getUUID());
+			record.setRequest(buildRequest);
+			record.setResult(result);
+			record.setExitCode(exitCode);
+			record.setSubmittedAt(submitTime);
+			record.setStagingAt(toTimestamp(startTime));
+			record.setRunningAt(toTimestamp(runningTime));
+			record.setUploadingAt(toTimestamp(uploadingTime));
+			record.setDoneAt(toTimestamp(doneTime));
+			try {
+				history.record(record, logBuffer);
+			}
+			catch (IOException e) {
+				log.warn("Failed to record build " + getUUID() + " in the history", e);
+			}
+		}
+
+		/**
+		 * Write the entry of this build to the {@link BuildJournal}, so that
+		 * it is recovered if the server restarts before it is done.
+		 */
+		private void journal() {
+			if(journal == null) {
+				return;
+			}
+
+			BuildRecord record = new BuildRecord();
+			record.setUuid(getUUID());
+			record.setRequest(buildRequest);
+			record.setSubmittedAt(submitTime);
+			try {
+				journal.write(record);
+			}
+			catch (IOException e) {
+				log.warn("Failed to journal build " + getUUID() + ", it is not recovered after a restart", e);
+			}
+		}
+
+		/**
+		 * Remove the entry of this build from the {@link BuildJournal}.
+		 */
+		private void forget() {
+			if(journal != null) {
+				journal.remove(getUUID());
+			}
+		}
+
 		public UUID getUUID() {
 			return buildTask.getUUID();
 		}
 
+		/**
+		 * @return the {@link BuildRequest} of this build
+		 */
+		public BuildRequest getBuildRequest() {
+			return buildRequest;
+		}
+
+		/**
+		 * @return a {@link ListenableFuture} for the {@link BuildResult}, that
+		 * 		completes once the build is done, also when the build was
+		 * 		cancelled
+		 */
+		public ListenableFuture<BuildResult> getResult() {
+			return result;
+		}
+
+		/**
+		 * @return the current {@link BuildStatus} for this build
+		 */
+		public BuildStatus getBuildStatus() {
+			BuildStatus buildStatus = new BuildStatus();
+			buildStatus.setUuid(getUUID());
+			buildStatus.setState(state);
+			buildStatus.setLogLines(logger.getLineCount());
+			buildStatus.setLogMemoryBytes(logger.getMemoryUsage());
+			buildStatus.setLogSpilledBytes(logBuffer.getSpilledBytes());
+			buildStatus.setSubmittedAt(submitTime);
+			buildStatus.setStagingAt(toTimestamp(startTime));
+			buildStatus.setRunningAt(toTimestamp(runningTime));
+			buildStatus.setUploadingAt(toTimestamp(uploadingTime));
+			buildStatus.setDoneAt(toTimestamp(doneTime));
+			buildStatus.setProvisioning(buildTask.buildRunner.getTimings());
+
+			if(state == State.QUEUED) {
+				Integer position = scheduler.getQueuePosition(tenant, this);
+				if(position != null) {
+					buildStatus.setQueuePosition(position);
+					buildStatus.setEstimatedWaitSeconds(getEstimatedWaitSeconds(position));
+				}
+			}
+			else if(state == State.DONE) {
+				buildStatus.setResult(buildResult);
+			}
+			return buildStatus;
+		}
+
 	}
 
 	/**
-	 * The {@link BuildTask} wraps a {@link BuildRunner} in a {@link FutureTask}
-	 * , to enforce killing the container on cancellation and removing the
-	 * container after the {@link Future} is done.
+	 * The {@link IdleWatchdog} expires a {@link Build} that did not produce
+	 * any output for the idle timeout. Output only updates a timestamp, and
+	 * when the {@link Deadline} expires while output was produced in the mean
+	 * time, a new {@link Deadline} is scheduled for the remaining idle time.
 	 * 
 	 * @author Jan-Willem Gmelig Meyling
 	 *
 	 */
-	class BuildTask extends FutureTask<ContainerExit> {
+	class IdleWatchdog implements Runnable {
 
-		private final BuildRunner buildRunner;
+		private final Build build;
+		private final long timeoutSeconds;
+		private volatile long lastOutput;
+		private volatile boolean stopped;
+		private volatile Deadline deadline;
 
-		BuildTask(final BuildRunner buildRunner) {
-			super(buildRunner);
-			this.buildRunner = buildRunner;
+		IdleWatchdog(final Build build, final long timeoutSeconds) {
+			this.build = build;
+			this.timeoutSeconds = timeoutSeconds;
 		}
 
-		@Override
-	    protected void done() {
-			if(isCancelled()) {
-				buildRunner.kill();
+		void start() {
+			if(timeoutSeconds > 0) {
+				lastOutput = System.nanoTime();
+				deadline = deadlineService.schedule(this, timeoutSeconds, TimeUnit.SECONDS);
 			}
-			buildRunner.remove();
-			builds.remove(getUUID());
 		}
-		
-		public UUID getUUID() {
-			return buildRunner.getUUID();
+
+		void touch() {
+			lastOutput = System.nanoTime();
 		}
-		
-	}
 
-	/**
-	 * The {@link BuildRunner} is a {@link Callable} responsible for creating
-	 * and watching the Docker container.
-	 * 
-	 * @author Jan-Willem Gmelig Meyling
+		void stop() {
+			stopped = true;
+			cancelDeadline(deadline);
+		}
+
+		@Override
+		public void run() {
+			if(stopped) {
+				return;
+			}
+
+			long idle = System.nanoTime() - lastOutput;
+			long timeout = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+			if(idle >= timeout) {
+				build.expire(String.format("[FATAL] Build did not produce output for %d seconds!", timeoutSeconds));
+			}
+			else {
+				deadline = deadlineService.schedule(this, timeout - idle, TimeUnit.NANOSECONDS);
+			}
+		}
+
+	}
+
+	private static Long toTimestamp(final long time) {
+		return time != 0 ? time : null;
+	}
+
+	private static void cancelDeadline(final Deadline deadline) {
+		if(deadline != null) {
+			deadline.cancel();
+		}
+	}
+
+	/**
+	 * The {@link BuildTask} runs a {@link BuildRunner} and completes once the
+	 * build command has terminated, its output is ingested and its results are
+	 * uploaded. The executor thread is only used to provision the build
+	 * environment, after which the {@link ContainerMonitor} and the
+	 * {@link LogIngester} observe the build. On cancellation the container is
+	 * killed. Once the build command has terminated, the container is removed
+	 * and the container slot of the {@link Build} is released on the cleanup
+	 * executor, after which the results are uploaded on the upload executor,
+	 * the staging directory is removed and the {@link Build} is completed.
+	 *
+	 * @author Jan-Willem Gmelig Meyling
+	 *
+	 */
+	class BuildTask extends AbstractFuture<ContainerExit> implements Runnable {
+
+		private final Build build;
+		private final BuildRunner buildRunner;
+		private final CountDownLatch terminated = new CountDownLatch(1);
+		private final AtomicBoolean terminating = new AtomicBoolean(false);
+		private volatile ListenableFuture<ContainerExit> exit;
+		private volatile ContainerExit uploadedExit;
+
+		// Guarded by this
+		private Thread provisioningThread;
+
+		BuildTask(final Build build, final BuildRunner buildRunner) {
+			this.build = build;
+			this.buildRunner = buildRunner;
+		}
+
+		@Override
+		public void run() {
+			if(isDone()) {
+				// Cancelled before the build environment was provisioned
+				terminate(null, null);
+				return;
+			}
+
+			synchronized (this) {
+				provisioningThread = Thread.currentThread();
+			}
+
+			try {
+				ListenableFuture<ContainerExit> exit = buildRunner.start();
+				this.exit = exit;
+				// The exit may complete on a thread that reads the output of the
+				// containers, so terminate only hands the build to the cleanup stage
+				Futures.addCallback(exit, new FutureCallback<ContainerExit>() {
+
+					@Override
+					public void onSuccess(final ContainerExit result) {
+						terminate(result, null);
+					}
+
+					@Override
+					public void onFailure(final Throwable t) {
+						terminate(null, t);
+					}
+
+				});
+
+				if(isCancelled()) {
+					exit.cancel(false);
+				}
+			}
+			catch (Throwable t) {
+				terminate(null, t);
+			}
+			finally {
+				synchronized (this) {
+					provisioningThread = null;
+				}
+				// Do not leak an interrupt for the provisioning to the executor
+				Thread.interrupted();
+			}
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			if(!super.cancel(mayInterruptIfRunning)) {
+				return false;
+			}
+
+			buildRunner.kill();
+			if(mayInterruptIfRunning) {
+				synchronized (this) {
+					if(provisioningThread != null) {
+						provisioningThread.interrupt();
+					}
+				}
+			}
+
+			ListenableFuture<ContainerExit> exit = this.exit;
+			if(exit != null) {
+				exit.cancel(false);
+			}
+			return true;
+		}
+
+		/**
+		 * Remove the container and release its slot, then upload the results
+		 * of a build command that terminated and complete the build.
+		 * @param exit the exit of the build command, or {@code null} if it did
+		 * 		not terminate
+		 * @param failure the reason the build failed, or {@code null}
+		 */
+		private void terminate(final ContainerExit exit, final Throwable failure) {
+			if(!terminating.compareAndSet(false, true)) {
+				return;
+			}
+
+			try {
+				cleanupExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						cleanup(exit, failure);
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				stopped(e);
+			}
+		}
+
+		private void cleanup(final ContainerExit exit, final Throwable failure) {
+			try {
+				buildRunner.removeContainer();
+			}
+			finally {
+				if(exit != null && !isDone()) {
+					// The container slot is released once the upload stage has room
+					uploadedExit = exit;
+					awaitingUpload.add(this);
+					dispatchUploads();
+				}
+				else {
+					try {
+						release(build);
+					}
+					finally {
+						complete(exit, failure);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Upload the results of the build, with a permit of the upload stage.
+		 */
+		private void upload() {
+			final ContainerExit exit = uploadedExit;
+			try {
+				uploadExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						Throwable failure = null;
+						try {
+							buildRunner.upload();
+						}
+						catch (Throwable t) {
+							failure = t;
+						}
+						finally {
+							uploadPermits.release();
+						}
+						complete(failure == null ? exit : null, failure);
+						dispatchUploads();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				uploadPermits.release();
+				stopped(e);
+			}
+		}
+
+		/**
+		 * Terminate the build when the pipeline no longer accepts it, because
+		 * the server is stopping. A killed build is completed. Other builds
+		 * are left in the {@link BuildJournal}, so that the next run of the
+		 * server recovers them.
+		 */
+		private void stopped(final RejectedExecutionException e) {
+			if(!isCancelled()) {
+				log.warn("Leaving build {} to be recovered: {}", getUUID(), e.getMessage());
+				terminated.countDown();
+				return;
+			}
+
+			// The build may be terminated by its own provisioning thread,
+			// after it was interrupted for the kill
+			log.warn("Failed to remove the container of killed build {}: {}", getUUID(), e.getMessage());
+			boolean interrupted = Thread.interrupted();
+			try {
+				complete(null, e);
+			}
+			finally {
+				if(interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private void complete(final ContainerExit exit, final Throwable failure) {
+			try {
+				buildRunner.removeStagingDirectory();
+				if(exit != null) {
+					set(exit);
+				}
+				else if(failure != null) {
+					setException(failure);
+				}
+				retire(build);
+				build.finish();
+			}
+			finally {
+				terminated.countDown();
+			}
+		}
+
+		/**
+		 * Wait until the container is removed and the container slot is
+		 * released.
+		 * @param timeout the maximum time to wait
+		 * @param unit the unit of the timeout
+		 * @return true if the build terminated before the timeout elapsed
+		 */
+		boolean awaitTermination(final long timeout, final TimeUnit unit) {
+			try {
+				return terminated.await(timeout, unit);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		public UUID getUUID() {
+			return buildRunner.getUUID();
+		}
+
+	}
+
+	/**
+	 * The {@link BuildRunner} is responsible for creating and starting the
+	 * Docker container. When the {@link ContainerPool} has a warm container
+	 * for the image, the build command is executed in that container instead.
+	 * The output of the container is read by the {@link LogIngester}. The
+	 * sources of a queued build may be prefetched on the staging executor, in
+	 * which case the build does not clone once it is started. A new container
+	 * is created while the sources are staged, and started once both are
+	 * done.
+	 *
+	 * @author Jan-Willem Gmelig Meyling
 	 *
 	 */
-	class BuildRunner implements Callable<ContainerExit> {
+	class BuildRunner {
 
 		private final UUID uuid;
+		private final Build build;
 		private final Logger logger;
 		private final BuildRequest buildRequest;
 		private final AtomicReference<File> stagingDirectoryReference;
 		private final AtomicReference<String> containerId;
 		private final AtomicReference<Boolean> started;
+		private final AtomicBoolean killed;
+		private final IdleWatchdog idleWatchdog;
+		private volatile String pooledImage;
+		private volatile String execId;
+		private volatile Subscription subscription;
+		private volatile String reattachedContainerId;
+
+		// Guarded by itself
+		private final ProvisioningTimings timings = new ProvisioningTimings();
 
-		BuildRunner(final Logger logger, final BuildRequest buildRequest) {
+		// Guarded by this
+		private SettableFuture<File> staged;
+		private Thread stagingThread;
+		private boolean discarded;
+
+		BuildRunner(final Build build, final UUID uuid, final Logger logger, final BuildRequest buildRequest) {
 			this.stagingDirectoryReference = new AtomicReference<File>();
 			this.containerId = new AtomicReference<String>();
 			this.started = new AtomicReference<Boolean>(false);
+			this.killed = new AtomicBoolean(false);
+			this.build = build;
 			this.buildRequest = buildRequest;
-			this.uuid = UUID.randomUUID();
+			this.uuid = uuid;
 			this.logger = logger;
+			this.idleWatchdog = new IdleWatchdog(build, config.getIdleTimeout());
 		}
-		
-		@Override
-		public ContainerExit call() throws Exception {
-			if(!started.compareAndSet(false, true))
-				throw new IllegalStateException("DockerRunner is already running!");
 
-			File stagingDirectory = createStagingDirectory();
-			stagingDirectoryReference.set(stagingDirectory);
-			prepareStagingDirectory(stagingDirectory);
+		/**
+		 * Reattach to the container of a build that was started before the
+		 * server restarted, instead of provisioning a new build environment.
+		 * @param id the id of the container
+		 */
+		void reattach(final String id) {
+			reattachedContainerId = id;
+			containerId.set(id);
+			stagingDirectoryReference.set(new File(config.getStagingDirectory(), uuid.toString()));
+		}
 
-			String volume = String.format("%s:%s", stagingDirectory, WORK_DIR);
+		/**
+		 * Prefetch the sources of this build while it is queued. The staging
+		 * directory is prepared on the staging executor, and the plugins that
+		 * run before the build are run as well.
+		 */
+		void prefetch() {
+			final SettableFuture<File> staged = SettableFuture.create();
+			synchronized (this) {
+				if(discarded || this.staged != null) {
+					return;
+				}
+				this.staged = staged;
+			}
+
+			log.info("Prefetching the sources of queued build {}", uuid);
+			try {
+				stagingExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						prefetch(staged);
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				// The staging stage is full, so the sources are staged once
+				// the build starts instead
+				log.info("Skipped the prefetch of queued build {}: {}", uuid, e.getMessage());
+				synchronized (this) {
+					this.staged = null;
+				}
+				staged.cancel(false);
+			}
+		}
+
+		private void prefetch(final SettableFuture<File> staged) {
+			synchronized (this) {
+				if(discarded) {
+					staged.cancel(false);
+					return;
+				}
+				stagingThread = Thread.currentThread();
+			}
+
+			boolean discard;
+			try {
+				File stagingDirectory = createStagingDirectory();
+				stagingDirectoryReference.set(stagingDirectory);
+				stage(stagingDirectory);
+				staged.set(stagingDirectory);
+			}
+			catch (Throwable t) {
+				staged.setException(t);
+			}
+			finally {
+				synchronized (this) {
+					stagingThread = null;
+					discard = discarded;
+				}
+				// Do not leak an interrupt for the staging to the executor
+				Thread.interrupted();
+			}
+
+			if(discard) {
+				removeStagingDirectory();
+			}
+		}
+
+		/**
+		 * Remove the prefetched sources of a build that was cancelled while it
+		 * was queued. Sources that are still being prefetched are removed once
+		 * the prefetch stops.
+		 */
+		void discard() {
+			synchronized (this) {
+				discarded = true;
+				if(staged != null && !staged.isDone()) {
+					return;
+				}
+			}
+			removeStagingDirectory();
+		}
+
+		/**
+		 * Prepare the staging directory and run the plugins that run before
+		 * the build.
+		 */
+		private void stage(final File stagingDirectory) throws IOException {
+			Deadline cloneDeadline = build.scheduleDeadline(
+					"[FATAL] Preparing the sources timed out!", config.getCloneTimeout());
+			try {
+				prepareStagingDirectory(stagingDirectory);
+			}
+			finally {
+				cancelDeadline(cloneDeadline);
+			}
 
 			BuildInstructionInterpreter<BuildInstruction> buildInstructionInterpreter =
 					getBuildIntstructionInterpreter();
-			BuildInstruction buildInstruction = buildRequest.getInstruction();
-			buildInstructionInterpreter.runPluginBefores(buildInstruction, stagingDirectory);
+			buildInstructionInterpreter.runPluginBefores(buildRequest.getInstruction(), stagingDirectory);
+		}
 
-			ContainerConfig.Builder configBuilder = ContainerConfig.builder()
-					.image(buildInstructionInterpreter.getImage(buildInstruction))
-					.cmd(buildInstructionInterpreter.getCommand(buildInstruction).split(" "))
-					.hostConfig(HostConfig.builder().binds(volume).build())
-					.user(config.getDockerUser())
-					.volumes(volume)
-					.workingDir(WORK_DIR);
+		private synchronized ListenableFuture<File> getStaged() {
+			return staged;
+		}
+
+		/**
+		 * Wait for a step of the provisioning that runs on another thread,
+		 * such as the prefetch of the sources of this build.
+		 * @return the result of the step
+		 */
+		private <T> T await(final Future<T> step) throws Exception {
+			try {
+				return step.get();
+			}
+			catch (ExecutionException e) {
+				Throwables.propagateIfPossible(e.getCause(), Exception.class);
+				throw e;
+			}
+		}
+
+		/**
+		 * Move prefetched sources into the staging directory of a warm
+		 * container.
+		 */
+		private void moveStagingDirectory(final File source, final File target) throws IOException {
+			File[] files = source.listFiles();
+			for(File file : files != null ? files : new File[0]) {
+				Files.move(file.toPath(), new File(target, file.getName()).toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			FileUtils.deleteDirectory(source);
+		}
+
+		/**
+		 * Provision the build environment and start the build command.
+		 * @return a {@link ListenableFuture} for the exit of the build command,
+		 * 		which completes once its output is ingested
+		 */
+		public ListenableFuture<ContainerExit> start() throws Exception {
+			if(!started.compareAndSet(false, true))
+				throw new IllegalStateException("DockerRunner is already running!");
+
+			final BuildInstructionInterpreter<BuildInstruction> buildInstructionInterpreter =
+					getBuildIntstructionInterpreter();
+			final BuildInstruction buildInstruction = buildRequest.getInstruction();
+			final String image = buildInstructionInterpreter.getImage(buildInstruction);
+
+			final String reattachedId = reattachedContainerId;
+			if(reattachedId != null) {
+				// The output of the container is ingested from its start
+				log.info("Reattaching build {} to container {}", uuid, reattachedId);
+				build.running();
+				ListenableFuture<ContainerExit> termination = watchContainer(reattachedId);
+				// The container may have exited while the server was down
+				containerMonitor.check(reattachedId);
+				return ingest(reattachedId, termination, null);
+			}
+
+			final WarmContainer warmContainer = claimWarmContainer(image);
+			final String[] command = buildInstructionInterpreter.getCommand(buildInstruction).split(" ");
+			final long stagingStart = System.nanoTime();
+
+			// A new container does not need the sources until it is started, so
+			// it is created while the sources are staged
+			ListenableFuture<String> creation = null;
+			if(warmContainer == null) {
+				final File bindDirectory = new File(config.getStagingDirectory(), uuid.toString());
+				creation = executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						verifyImage(image);
+						return createContainer(image, command, bindDirectory);
+					}
+				});
+			}
+
+			try {
+				stage(warmContainer);
+			}
+			catch (Throwable t) {
+				if(creation != null) {
+					// The container is removed with the build once its id is known
+					awaitQuietly(creation);
+				}
+				throw t;
+			}
+			recordTiming(Step.STAGING, stagingStart);
 
-			String id;
+			final String id;
+			final long provisioningStart = System.nanoTime();
+			Deadline startDeadline = build.scheduleDeadline(
+					"[FATAL] Build environment did not start in time!", config.getContainerStartTimeout());
 
 			try {
-				log.info("Create container {}", config);
-				ContainerCreation creation = dockerClient.createContainer(configBuilder.build(), uuid.toString());
-				id = creation.id();
-				containerId.set(id);
-				log.info("Starting container {}", id);
-				dockerClient.startContainer(id);
+				if(warmContainer != null) {
+					id = warmContainer.getId();
+					startExec(id, warmContainer.getEntrypoint(), command);
+				}
+				else {
+					id = awaitCreation(creation);
+					recordSaving(stagingStart);
+					startContainer(id);
+				}
 			}
 			catch (DockerException | InterruptedException e) {
 				logger.println("[FATAL] Failed to provision build environment");
 				throw e;
 			}
+			finally {
+				cancelDeadline(startDeadline);
+			}
+
+			build.running();
+			ListenableFuture<ContainerExit> termination = warmContainer != null ?
+					watchExec(execId) : watchContainer(id);
+
+			return ingest(id, termination, new Runnable() {
+				@Override
+				public void run() {
+					containerPool.recordTimeToFirstLog(image, warmContainer != null,
+							TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - provisioningStart));
+					recordTiming(Step.FIRST_LOG, stagingStart);
+					log.info("Provisioned build {}: {}", uuid, getTimings());
+				}
+			});
+		}
+
+		/**
+		 * Stage the sources of this build, or wait for the sources that were
+		 * prefetched while it was queued.
+		 * @param warmContainer the claimed warm container, or {@code null}
+		 */
+		private void stage(final WarmContainer warmContainer) throws Exception {
+			final ListenableFuture<File> staged = getStaged();
+			if(staged != null) {
+				File prefetched = await(staged);
+				if(warmContainer != null) {
+					moveStagingDirectory(prefetched, warmContainer.getStagingDirectory());
+					stagingDirectoryReference.set(warmContainer.getStagingDirectory());
+				}
+			}
+			else {
+				File stagingDirectory = warmContainer != null ? warmContainer.getStagingDirectory()
+						: createStagingDirectory();
+				stagingDirectoryReference.set(stagingDirectory);
+				stage(stagingDirectory);
+			}
+		}
+
+		/**
+		 * Wait for the container that is created while the sources are
+		 * staged. When the wait is interrupted, the creation is still awaited,
+		 * so that the container is removed with the build.
+		 * @return the id of the container
+		 */
+		private String awaitCreation(final Future<String> creation) throws Exception {
+			try {
+				return await(creation);
+			}
+			catch (InterruptedException e) {
+				awaitQuietly(creation);
+				throw e;
+			}
+		}
+
+		private void awaitQuietly(final Future<?> step) {
+			try {
+				Uninterruptibles.getUninterruptibly(step);
+			}
+			catch (ExecutionException | CancellationException e) {
+				log.debug("Provisioning step of build {} failed", uuid);
+			}
+		}
+
+		private void recordTiming(final Step step, final long start) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			synchronized (timings) {
+				switch(step) {
+					case STAGING:
+						timings.setStagingMillis(millis);
+						break;
+					case IMAGE_CHECK:
+						timings.setImageCheckMillis(millis);
+						break;
+					case CREATE:
+						timings.setCreateMillis(millis);
+						break;
+					case START:
+						timings.setStartMillis(millis);
+						break;
+					case FIRST_LOG:
+						timings.setTimeToFirstLogMillis(millis);
+						break;
+				}
+			}
+		}
 
-			try(LogStream stream = dockerClient.attachContainer(id, AttachParameter.LOGS,
-					AttachParameter.STDERR, AttachParameter.STDOUT, AttachParameter.STREAM)) {
-				log.info("Attaching log for container {}", id);
-				while(stream.hasNext() && !Thread.currentThread().isInterrupted())
-					logger.consume(stream.next());
+		/**
+		 * Record the time saved by creating the container while the sources
+		 * were staged, once both are done.
+		 */
+		private void recordSaving(final long stagingStart) {
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stagingStart);
+			synchronized (timings) {
+				long sequential = timings.getStagingMillis() + timings.getImageCheckMillis()
+						+ timings.getCreateMillis();
+				timings.setSavedMillis(Math.max(0, sequential - elapsed));
 			}
+		}
 
-			log.info("Waiting for container to terminate {}", id);
-			ContainerExit exit = dockerClient.waitContainer(id);
-			buildInstructionInterpreter.runPluginAfters(buildInstruction, stagingDirectory);
-			return exit;
+		/**
+		 * @return the {@link ProvisioningTimings} of the steps taken so far,
+		 * 		or {@code null} if the build was not started
+		 */
+		ProvisioningTimings getTimings() {
+			if(!started.get()) {
+				return null;
+			}
+			ProvisioningTimings copy = new ProvisioningTimings();
+			synchronized (timings) {
+				copy.setStagingMillis(timings.getStagingMillis());
+				copy.setImageCheckMillis(timings.getImageCheckMillis());
+				copy.setCreateMillis(timings.getCreateMillis());
+				copy.setStartMillis(timings.getStartMillis());
+				copy.setTimeToFirstLogMillis(timings.getTimeToFirstLogMillis());
+				copy.setSavedMillis(timings.getSavedMillis());
+			}
+			return copy;
+		}
+
+		/**
+		 * Ingest the output of a started build command.
+		 * @param id the id of the container
+		 * @param termination a {@link ListenableFuture} for the exit of the
+		 * 		build command
+		 * @param firstLog called on the first output, or {@code null}
+		 * @return a {@link ListenableFuture} for the exit of the build command,
+		 * 		which completes once its output is ingested
+		 */
+		private ListenableFuture<ContainerExit> ingest(final String id,
+				final ListenableFuture<ContainerExit> termination, final Runnable firstLog) {
+			log.info("Ingesting log for container {}", id);
+			subscription = logIngester.subscribe(id, new LogIngester.Sink() {
+
+				private boolean first = firstLog != null;
+
+				@Override
+				public void consume(final LogMessage message) {
+					if(first) {
+						first = false;
+						firstLog.run();
+					}
+					logger.consume(message);
+					idleWatchdog.touch();
+				}
+
+			});
+			idleWatchdog.start();
+
+			return Futures.transform(termination, new AsyncFunction<ContainerExit, ContainerExit>() {
+
+				@Override
+				public ListenableFuture<ContainerExit> apply(final ContainerExit exit) {
+					log.info("Draining the output of container {}", id);
+					idleWatchdog.stop();
+					build.uploading();
+					return Futures.transform(subscription.drain(), new Function<Void, ContainerExit>() {
+
+						@Override
+						public ContainerExit apply(final Void input) {
+							return exit;
+						}
+
+					});
+				}
+
+			}, executor);
+		}
+
+		private ListenableFuture<ContainerExit> watchContainer(final String id) {
+			return Futures.transform(containerMonitor.watch(id), new Function<ContainerState, ContainerExit>() {
+
+				@Override
+				public ContainerExit apply(final ContainerState containerState) {
+					if(Boolean.TRUE.equals(containerState.oomKilled())) {
+						build.outOfMemory = true;
+					}
+					return new ContainerExit(containerState.exitCode());
+				}
+
+			});
+		}
+
+		private ListenableFuture<ContainerExit> watchExec(final String execId) {
+			return Futures.transform(containerMonitor.watchExec(execId), new Function<ExecState, ContainerExit>() {
+
+				@Override
+				public ContainerExit apply(final ExecState execState) {
+					return new ContainerExit(execState.exitCode());
+				}
+
+			});
+		}
+
+		private WarmContainer claimWarmContainer(final String image) {
+			if(!containerPool.isPooled(image)) {
+				return null;
+			}
+
+			pooledImage = image;
+			WarmContainer warmContainer = containerPool.claim(image);
+			if(warmContainer != null) {
+				containerId.set(warmContainer.getId());
+			}
+			return warmContainer;
+		}
+
+		/**
+		 * Verify that the image of the build is present, so that a build for
+		 * a missing image fails before its container is created.
+		 */
+		private void verifyImage(final String image) throws DockerException, InterruptedException {
+			long start = System.nanoTime();
+			try {
+				dockerClient.inspectImage(image);
+			}
+			catch (ImageNotFoundException e) {
+				logger.println("[FATAL] Image " + image + " is not available");
+				throw e;
+			}
+			recordTiming(Step.IMAGE_CHECK, start);
+		}
+
+		private String createContainer(final String image, final String[] command, final File stagingDirectory)
+				throws DockerException, InterruptedException {
+			long start = System.nanoTime();
+			String volume = String.format("%s:%s", stagingDirectory, WORK_DIR);
+			ContainerConfig containerConfig = ContainerConfig.builder()
+					.image(image)
+					.cmd(command)
+					.labels(ImmutableMap.of(ContainerMonitor.LABEL, uuid.toString()))
+					.hostConfig(HostConfig.builder().binds(volume).build())
+					.user(config.getDockerUser())
+					.volumes(volume)
+					.workingDir(WORK_DIR)
+					.build();
+
+			log.info("Create container {}", config);
+			ContainerCreation creation = dockerClient.createContainer(containerConfig, uuid.toString());
+			String id = creation.id();
+			containerId.set(id);
+			recordTiming(Step.CREATE, start);
+			return id;
+		}
+
+		private void startContainer(final String id) throws DockerException, InterruptedException {
+			if(killed.get()) {
+				throw new InterruptedException("Build was killed while provisioning");
+			}
+			long start = System.nanoTime();
+			log.info("Starting container {}", id);
+			dockerClient.startContainer(id);
+			recordTiming(Step.START, start);
+		}
+
+		/**
+		 * Execute the build command in a warm container, behind the
+		 * entrypoint of its image. The exec is started detached, and its
+		 * output goes to the output of the container.
+		 */
+		private void startExec(final String id, final List<String> entrypoint, final String[] command)
+				throws DockerException, InterruptedException {
+			if(killed.get()) {
+				throw new InterruptedException("Build was killed while provisioning");
+			}
+			long start = System.nanoTime();
+			log.info("Executing build in warm container {}", id);
+			String[] prefix = ObjectArrays.concat(WARM_EXEC_PREFIX,
+					entrypoint.toArray(new String[entrypoint.size()]), String.class);
+			execId = dockerClient.execCreate(id, ObjectArrays.concat(prefix, command, String.class));
+			try(LogStream stream = dockerClient.execStart(execId, ExecStartParameter.DETACH)) {
+				log.debug("Started exec {} in container {}", execId, id);
+			}
+			recordTiming(Step.START, start);
+		}
+
+		/**
+		 * Run the plugins that upload the results of the build. This is called
+		 * once the build command has terminated and the container is removed.
+		 */
+		void upload() {
+			BuildInstructionInterpreter<BuildInstruction> buildInstructionInterpreter =
+					getBuildIntstructionInterpreter();
+			buildInstructionInterpreter.runPluginAfters(buildRequest.getInstruction(),
+					stagingDirectoryReference.get());
 		}
 
 		/**
@@ -309,6 +1841,12 @@ public class BuildManager extends AbstractLifeCycleListener implements LifeCycle
 		 * and thus the container did not exit yet.
 		 */
 		public void kill() {
+			killed.set(true);
+			synchronized (this) {
+				if(stagingThread != null) {
+					stagingThread.interrupt();
+				}
+			}
 			String id = containerId.get();
 			if(id != null) {
 				log.info("Trying to kill container {}", id);
@@ -327,8 +1865,29 @@ public class BuildManager extends AbstractLifeCycleListener implements LifeCycle
 		 * was shared with the container. 
 		 */
 		public void remove() {
-			String id = containerId.get();
+			removeContainer();
+			removeStagingDirectory();
+		}
+
+		/**
+		 * Remove the Docker container, and return a warm container to the
+		 * {@link ContainerPool}.
+		 */
+		void removeContainer() {
+			idleWatchdog.stop();
+			Subscription subscription = this.subscription;
+			if(subscription != null) {
+				subscription.cancel();
+			}
+
+			String execId = this.execId;
+			if(execId != null) {
+				containerMonitor.unwatchExec(execId);
+			}
+
+			String id = containerId.getAndSet(null);
 			if(id != null) {
+				containerMonitor.unwatch(id);
 				log.info("Trying to remove container {}", id);
 				try {
 					dockerClient.removeContainer(id, true);
@@ -337,8 +1896,10 @@ public class BuildManager extends AbstractLifeCycleListener implements LifeCycle
 					log.info("Failed to remove container " + id, e);
 				}
 			}
-			
-			removeStagingDirectory();
+
+			if(pooledImage != null) {
+				containerPool.release(pooledImage);
+			}
 		}
 
 		protected File createStagingDirectory() throws IOException {
@@ -355,6 +1916,17 @@ public class BuildManager extends AbstractLifeCycleListener implements LifeCycle
 		}
 
 		protected void removeStagingDirectory() {
+			ListenableFuture<File> staged = getStaged();
+			if(staged != null) {
+				// Wait for a prefetch that was interrupted to stop writing
+				try {
+					Uninterruptibles.getUninterruptibly(staged);
+				}
+				catch (ExecutionException | CancellationException e) {
+					log.debug("Prefetch of build {} failed", uuid);
+				}
+			}
+
 			File dir = stagingDirectoryReference.get();
 			if(dir != null && dir.exists()) {
 				try {
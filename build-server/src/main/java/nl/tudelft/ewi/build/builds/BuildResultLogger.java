@@ -1,12 +1,9 @@
 package nl.tudelft.ewi.build.builds;
 
-import static com.google.common.base.Charsets.UTF_8;
-
-import java.util.List;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 import com.spotify.docker.client.LogMessage;
 
 import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
@@ -14,42 +11,110 @@ import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
 public class BuildResultLogger implements Logger {
 
 	private final static int MAX_LINE_LENGTH = 120;
-	private final static int MAX_LINE_COUNT = 10000;
 
-	private final List<String> lines;
+	/**
+	 * Number of lines at the start and at the end of the log that are
+	 * included in the {@link BuildResult}. The full log is kept in the
+	 * {@link LogBuffer}.
+	 */
+	private final static int INLINE_HEAD_LINES = 5000;
+	private final static int INLINE_TAIL_LINES = 5000;
+
+	/**
+	 * Size in bytes after which the log is truncated.
+	 */
+	private final static long MAX_LOG_SIZE = 256L * 1024 * 1024;
+
+	private final LogBuffer lines;
 	private final AtomicBoolean stopped = new AtomicBoolean(false);
-	
+
+	// Guarded by this
+	private final LineDecoder stdout = new LineDecoder(MAX_LINE_LENGTH);
+	private final LineDecoder stderr = new LineDecoder(MAX_LINE_LENGTH);
+
 	public BuildResultLogger(final BuildResult buildResult) {
+		this(buildResult, new LogBuffer());
+	}
+
+	public BuildResultLogger(final BuildResult buildResult, final LogBuffer lines) {
 		Preconditions.checkNotNull(buildResult);
-		this.lines = Lists.newArrayList();
-		buildResult.setLogLines(lines);
+		Preconditions.checkNotNull(lines);
+		this.lines = lines;
+		buildResult.setLogLines(lines.getHeadAndTail(INLINE_HEAD_LINES, INLINE_TAIL_LINES));
 	}
-	
-	public void println(String content) {
+
+	public synchronized void println(String content) {
+		// A message from the build server ends a partial line of the output
+		flush();
 		if(content.length() > MAX_LINE_LENGTH) {
 			content = content.substring(0, MAX_LINE_LENGTH);
 		}
-		synchronized(lines) {
-			if(this.lines.size() < MAX_LINE_COUNT) {
-				this.lines.add(content);
+		if(lines.getLength() < MAX_LOG_SIZE) {
+			lines.append(content);
+		}
+		else {
+			truncate();
+		}
+	}
+
+	private void truncate() {
+		lines.append("[WARN] Truncating log...");
+		stopped.set(true);
+	}
+
+	private void flush() {
+		for(LineDecoder decoder : new LineDecoder[] { stdout, stderr }) {
+			if(stopped.get()) {
+				return;
 			}
-			else {
-				this.lines.add("[WARN] Truncating log...");
-				this.close();
+			else if(lines.getLength() < MAX_LOG_SIZE) {
+				decoder.flush(lines);
+			}
+			else if(decoder.flush() != null) {
+				truncate();
 			}
 		}
 	}
 
 	@Override
-	public void close() {
+	public synchronized void close() {
+		// Keep the output after the last line terminator
+		flush();
 		stopped.set(true);
+		lines.close();
 	}
 
 	@Override
-	public void consume(LogMessage message) {
-		if(!stopped.get()) {
-			println(UTF_8.decode(message.content()).toString());
+	public synchronized void consume(LogMessage message) {
+		LineDecoder decoder = message.stream() == LogMessage.Stream.STDERR ? stderr : stdout;
+		ByteBuffer content = message.content();
+		while(!stopped.get()) {
+			if(lines.getLength() < MAX_LOG_SIZE) {
+				if(!decoder.decode(content, lines)) {
+					return;
+				}
+			}
+			else if(decoder.decode(content) != null) {
+				truncate();
+			}
+			else {
+				return;
+			}
 		}
 	}
-	
+
+	/**
+	 * @return the number of log lines
+	 */
+	public int getLineCount() {
+		return lines.size();
+	}
+
+	/**
+	 * @return the number of bytes of heap allocated for the log lines
+	 */
+	public long getMemoryUsage() {
+		return lines.getMemoryUsage();
+	}
+
 }
@@ -0,0 +1,272 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.ListContainersParam;
+import com.spotify.docker.client.DockerException;
+import com.spotify.docker.client.messages.Container;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.ContainerState;
+import com.spotify.docker.client.messages.ExecState;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@code ContainerMonitor} observes the containers of all builds from a
+ * single thread, and completes the future of a container once it died, with
+ * the final {@link ContainerState} of the container. The state tells whether
+ * the container was killed because it ran out of memory. Commands executed
+ * in warm containers are observed in the same way.
+ *
+ * The Docker client does not support the events API, so the monitor lists
+ * the containers labelled with {@link #LABEL} periodically to find the
+ * containers that died. A build can ask the monitor to {@link #check(String)}
+ * its container right away, for example after killing it.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class ContainerMonitor {
+
+	/**
+	 * Label of the containers created by the build server.
+	 */
+	public static final String LABEL = "nl.tudelft.ewi.build";
+
+	private static final long CHECK_INTERVAL_MILLIS = 100;
+
+	private final DockerClient dockerClient;
+	private final long pollIntervalMillis;
+	private final ConcurrentMap<String, SettableFuture<ContainerState>> watched;
+	private final ConcurrentMap<String, SettableFuture<ExecState>> watchedExecs;
+	private final Queue<String> checks;
+	private final Thread worker;
+	private final Object signal = new Object();
+
+	private volatile boolean stopped;
+
+	/**
+	 * Create and start a new {@code ContainerMonitor}.
+	 * @param dockerClient {@link DockerClient} to observe the containers with
+	 * @param pollIntervalMillis interval in which the containers are listed
+	 */
+	public ContainerMonitor(final DockerClient dockerClient, final long pollIntervalMillis) {
+		this.dockerClient = dockerClient;
+		this.pollIntervalMillis = pollIntervalMillis;
+		this.watched = Maps.newConcurrentMap();
+		this.watchedExecs = Maps.newConcurrentMap();
+		this.checks = Queues.newConcurrentLinkedQueue();
+		this.worker = new ThreadFactoryBuilder()
+				.setNameFormat("container-monitor-%d")
+				.setDaemon(true)
+				.build()
+				.newThread(new Worker());
+		this.worker.start();
+	}
+
+	/**
+	 * Watch a started container.
+	 * @param containerId the id of the container
+	 * @return a {@link ListenableFuture} for the final {@link ContainerState}
+	 * 		of the container
+	 */
+	public ListenableFuture<ContainerState> watch(final String containerId) {
+		return watch(watched, containerId);
+	}
+
+	/**
+	 * Watch a started exec.
+	 * @param execId the id of the exec
+	 * @return a {@link ListenableFuture} for the final {@link ExecState} of
+	 * 		the exec
+	 */
+	public ListenableFuture<ExecState> watchExec(final String execId) {
+		return watch(watchedExecs, execId);
+	}
+
+	private static <T> ListenableFuture<T> watch(final ConcurrentMap<String, SettableFuture<T>> futures,
+			final String id) {
+		SettableFuture<T> future = SettableFuture.create();
+		SettableFuture<T> previous = futures.putIfAbsent(id, future);
+		return previous != null ? previous : future;
+	}
+
+	/**
+	 * Stop watching a container.
+	 * @param containerId the id of the container
+	 */
+	public void unwatch(final String containerId) {
+		SettableFuture<ContainerState> future = watched.remove(containerId);
+		if(future != null) {
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * Stop watching an exec.
+	 * @param execId the id of the exec
+	 */
+	public void unwatchExec(final String execId) {
+		SettableFuture<ExecState> future = watchedExecs.remove(execId);
+		if(future != null) {
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * Check a watched container as soon as possible.
+	 * @param containerId the id of the container
+	 */
+	public void check(final String containerId) {
+		checks.add(containerId);
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+	}
+
+	/**
+	 * Stop the monitor. Pending futures are not completed.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	private final class Worker implements Runnable {
+
+		private final Set<String> pending = Sets.newHashSet();
+		private long lastPoll = System.currentTimeMillis();
+
+		@Override
+		public void run() {
+			while(!stopped) {
+				try {
+					await();
+
+					String containerId;
+					while((containerId = checks.poll()) != null) {
+						pending.add(containerId);
+					}
+
+					long now = System.currentTimeMillis();
+					if(now - lastPoll >= pollIntervalMillis) {
+						lastPoll = now;
+						if(!watched.isEmpty()) {
+							poll();
+						}
+						inspectExecs();
+					}
+
+					for(Iterator<String> iterator = pending.iterator(); iterator.hasNext();) {
+						if(inspect(iterator.next())) {
+							iterator.remove();
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					if(stopped) {
+						return;
+					}
+				}
+				catch (Throwable t) {
+					log.warn("Failed to monitor containers", t);
+				}
+			}
+		}
+
+		private void await() throws InterruptedException {
+			synchronized (signal) {
+				if(checks.isEmpty()) {
+					long remaining = pollIntervalMillis - (System.currentTimeMillis() - lastPoll);
+					long timeout = pending.isEmpty() ? remaining : Math.min(remaining, CHECK_INTERVAL_MILLIS);
+					if(timeout > 0) {
+						signal.wait(timeout);
+					}
+				}
+			}
+		}
+
+		private void poll() throws DockerException, InterruptedException {
+			List<Container> containers = dockerClient.listContainers(
+					ListContainersParam.allContainers(), ListContainersParam.withLabel(LABEL));
+			if(containers == null) {
+				return;
+			}
+
+			for(Container container : containers) {
+				String status = container.status();
+				if(watched.containsKey(container.id()) && status != null &&
+						(status.startsWith("Exited") || status.startsWith("Dead"))) {
+					pending.add(container.id());
+				}
+			}
+		}
+
+		/**
+		 * @return true if the container is no longer pending
+		 */
+		private boolean inspect(final String containerId) throws InterruptedException {
+			SettableFuture<ContainerState> future = watched.get(containerId);
+			if(future == null) {
+				return true;
+			}
+
+			ContainerState state;
+			try {
+				ContainerInfo info = dockerClient.inspectContainer(containerId);
+				state = info != null ? info.state() : null;
+			}
+			catch (DockerException e) {
+				watched.remove(containerId, future);
+				future.setException(e);
+				return true;
+			}
+
+			if(state != null && Boolean.TRUE.equals(state.running())) {
+				return false;
+			}
+
+			watched.remove(containerId, future);
+			if(state == null) {
+				future.setException(new DockerException("State of container " + containerId + " is unknown"));
+			}
+			else {
+				log.info("Container {} died with exit code {}", containerId, state.exitCode());
+				future.set(state);
+			}
+			return true;
+		}
+
+		private void inspectExecs() throws InterruptedException {
+			for(Map.Entry<String, SettableFuture<ExecState>> entry : watchedExecs.entrySet()) {
+				String execId = entry.getKey();
+				SettableFuture<ExecState> future = entry.getValue();
+				try {
+					ExecState state = dockerClient.execInspect(execId);
+					if(state != null && !Boolean.TRUE.equals(state.running()) && state.exitCode() != null) {
+						watchedExecs.remove(execId, future);
+						log.info("Exec {} exited with exit code {}", execId, state.exitCode());
+						future.set(state);
+					}
+				}
+				catch (DockerException e) {
+					watchedExecs.remove(execId, future);
+					future.setException(e);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,411 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerException;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.HostConfig;
+import com.spotify.docker.client.messages.ImageInfo;
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.jaxrs.models.ContainerPoolStatistics;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code ContainerPool} keeps started containers ready for the images in
+ * {@link Config#getPooledImages()}, so that a build does not have to wait
+ * for Docker to create and start its container. A warm container runs an
+ * idle process and already shares its own staging directory, in which the
+ * build prepares its sources. The build command is then executed in the
+ * container with {@link DockerClient#execCreate}, because the command of a
+ * container can not be changed once it is created. The idle process replaces
+ * the entrypoint of the image, so the entrypoint is kept with the container
+ * and executed in front of the build command, as in a container of its own.
+ * The image must provide {@code sh} and {@code cat}.
+ *
+ * Warm containers are used for a single build only. The pool is refilled in
+ * the background, up to the recent peak of concurrent builds for the image
+ * and at most {@link Config#getMaximumPoolSize()} containers.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class ContainerPool {
+
+	/**
+	 * Keeps the container running without output until it is killed.
+	 */
+	private static final String IDLE_ENTRYPOINT = "cat";
+
+	/**
+	 * Value of the {@link ContainerMonitor#LABEL} of warm containers.
+	 */
+	static final String POOL_LABEL_VALUE = "pool";
+
+	/**
+	 * Time after which the observed demand for an image is halved.
+	 */
+	private static final long DEMAND_HALF_LIFE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	private final Config config;
+	private final DockerClient dockerClient;
+	private final Executor executor;
+	private final int maximumSize;
+	private final Map<String, ImagePool> pools;
+
+	private volatile boolean stopped;
+
+	/**
+	 * Create a new {@code ContainerPool} and start warming containers.
+	 * @param config {@link Config} that provides the pooled images and the
+	 * 		maximum pool size
+	 * @param dockerClient {@link DockerClient} to create the containers with
+	 * @param executor {@link Executor} on which the containers are created
+	 */
+	public ContainerPool(final Config config, final DockerClient dockerClient, final Executor executor) {
+		this.config = config;
+		this.dockerClient = dockerClient;
+		this.executor = executor;
+		this.maximumSize = config.getMaximumPoolSize();
+		this.pools = Maps.newHashMap();
+
+		List<String> images = config.getPooledImages();
+		if(images != null && maximumSize > 0) {
+			for(String image : images) {
+				ImagePool pool = new ImagePool(image);
+				pools.put(image, pool);
+				pool.refill();
+			}
+		}
+	}
+
+	/**
+	 * @param image the image
+	 * @return true if warm containers are kept for the image
+	 */
+	public boolean isPooled(final String image) {
+		return pools.containsKey(image);
+	}
+
+	/**
+	 * Claim a warm container for a build. Every claim for a pooled image,
+	 * including a miss, must be followed by {@link #release(String)} once
+	 * the build has finished.
+	 * @param image the image for the build
+	 * @return a started {@link WarmContainer}, or {@code null} if no warm
+	 * 		container is available
+	 */
+	public WarmContainer claim(final String image) {
+		ImagePool pool = pools.get(image);
+		return pool != null ? pool.claim() : null;
+	}
+
+	/**
+	 * Release a claim on the pool after the build has finished.
+	 * @param image the image of the build
+	 */
+	public void release(final String image) {
+		ImagePool pool = pools.get(image);
+		if(pool != null) {
+			pool.active.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Record the time from provisioning the build environment until its first
+	 * output.
+	 * @param image the image of the build
+	 * @param hit whether the build claimed a warm container
+	 * @param millis the time until the first output in milliseconds
+	 */
+	public void recordTimeToFirstLog(final String image, final boolean hit, final long millis) {
+		ImagePool pool = pools.get(image);
+		if(pool != null) {
+			(hit ? pool.hitLatency : pool.missLatency).addAndGet(millis);
+			(hit ? pool.hitLatencyCount : pool.missLatencyCount).incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the {@link ContainerPoolStatistics} for every pooled image
+	 */
+	public List<ContainerPoolStatistics> getStatistics() {
+		List<ContainerPoolStatistics> statistics = Lists.newArrayListWithCapacity(pools.size());
+		for(ImagePool pool : pools.values()) {
+			statistics.add(pool.getStatistics());
+		}
+		return statistics;
+	}
+
+	/**
+	 * Stop refilling the pool and remove the warm containers.
+	 */
+	public void stop() {
+		stopped = true;
+		for(ImagePool pool : pools.values()) {
+			WarmContainer container;
+			while((container = pool.idle.poll()) != null) {
+				remove(container);
+			}
+		}
+	}
+
+	private void remove(final WarmContainer container) {
+		try {
+			dockerClient.removeContainer(container.getId(), true);
+		}
+		catch (DockerException | InterruptedException e) {
+			log.info("Failed to remove warm container " + container.getId(), e);
+		}
+
+		try {
+			FileUtils.deleteDirectory(container.getStagingDirectory());
+		}
+		catch (IOException e) {
+			log.warn("Failed to cleanup staging directory " + container.getStagingDirectory(), e);
+		}
+	}
+
+	/**
+	 * A {@code WarmContainer} is a started container for a single build,
+	 * which shares {@link #getStagingDirectory()} as its working directory.
+	 */
+	public static final class WarmContainer {
+
+		private final String id;
+		private final File stagingDirectory;
+		private final List<String> entrypoint;
+
+		WarmContainer(final String id, final File stagingDirectory, final List<String> entrypoint) {
+			this.id = id;
+			this.stagingDirectory = stagingDirectory;
+			this.entrypoint = entrypoint;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public File getStagingDirectory() {
+			return stagingDirectory;
+		}
+
+		/**
+		 * @return the entrypoint of the image, which is empty if the image has
+		 * 		none
+		 */
+		public List<String> getEntrypoint() {
+			return entrypoint;
+		}
+
+	}
+
+	private final class ImagePool {
+
+		private final String image;
+		private final Queue<WarmContainer> idle = Queues.newConcurrentLinkedQueue();
+		private final AtomicInteger pending = new AtomicInteger();
+		private final AtomicInteger active = new AtomicInteger();
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong hitLatency = new AtomicLong();
+		private final AtomicLong hitLatencyCount = new AtomicLong();
+		private final AtomicLong missLatency = new AtomicLong();
+		private final AtomicLong missLatencyCount = new AtomicLong();
+
+		// Guarded by this
+		private double demand = 1;
+		private long demandUpdated = System.currentTimeMillis();
+
+		ImagePool(final String image) {
+			this.image = image;
+		}
+
+		WarmContainer claim() {
+			recordDemand(active.incrementAndGet());
+
+			WarmContainer container;
+			while((container = idle.poll()) != null) {
+				if(isRunning(container)) {
+					hits.incrementAndGet();
+					refill();
+					return container;
+				}
+				log.info("Discarding warm container {} that is no longer running", container.getId());
+				discard(container);
+			}
+
+			misses.incrementAndGet();
+			refill();
+			return null;
+		}
+
+		void refill() {
+			if(stopped) {
+				return;
+			}
+
+			int target = getTargetSize();
+			while(true) {
+				int creating = pending.get();
+				if(idle.size() + creating >= target) {
+					break;
+				}
+				if(pending.compareAndSet(creating, creating + 1)) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								create();
+							}
+							finally {
+								pending.decrementAndGet();
+							}
+						}
+					});
+				}
+			}
+
+			while(idle.size() > target) {
+				WarmContainer container = idle.poll();
+				if(container == null) {
+					break;
+				}
+				discard(container);
+			}
+		}
+
+		private void create() {
+			if(stopped) {
+				return;
+			}
+
+			List<String> entrypoint;
+			try {
+				entrypoint = getEntrypoint();
+			}
+			catch (DockerException | InterruptedException e) {
+				log.warn("Failed to inspect the image " + image + " for a warm container", e);
+				return;
+			}
+
+			String name = UUID.randomUUID().toString();
+			File stagingDirectory = new File(config.getStagingDirectory(), name);
+			stagingDirectory.mkdirs();
+			String volume = String.format("%s:%s", stagingDirectory, BuildManager.WORK_DIR);
+
+			ContainerConfig containerConfig = ContainerConfig.builder()
+					.image(image)
+					.entrypoint(IDLE_ENTRYPOINT)
+					.labels(ImmutableMap.of(ContainerMonitor.LABEL, POOL_LABEL_VALUE))
+					.openStdin(true)
+					.hostConfig(HostConfig.builder().binds(volume).build())
+					.user(config.getDockerUser())
+					.volumes(volume)
+					.workingDir(BuildManager.WORK_DIR)
+					.build();
+
+			WarmContainer container = null;
+			try {
+				log.info("Creating warm container for {}", image);
+				String id = dockerClient.createContainer(containerConfig, name).id();
+				container = new WarmContainer(id, stagingDirectory, entrypoint);
+				dockerClient.startContainer(id);
+			}
+			catch (DockerException | InterruptedException e) {
+				log.warn("Failed to create warm container for " + image, e);
+				if(container != null) {
+					remove(container);
+				}
+				else {
+					FileUtils.deleteQuietly(stagingDirectory);
+				}
+				return;
+			}
+
+			idle.add(container);
+			if(stopped && idle.remove(container)) {
+				remove(container);
+			}
+		}
+
+		private List<String> getEntrypoint() throws DockerException, InterruptedException {
+			ImageInfo info = dockerClient.inspectImage(image);
+			ContainerConfig imageConfig = info != null ? info.config() : null;
+			List<String> entrypoint = imageConfig != null ? imageConfig.entrypoint() : null;
+			return entrypoint != null ? ImmutableList.copyOf(entrypoint) : ImmutableList.<String>of();
+		}
+
+		private boolean isRunning(final WarmContainer container) {
+			try {
+				ContainerInfo info = dockerClient.inspectContainer(container.getId());
+				return info != null && info.state() != null && Boolean.TRUE.equals(info.state().running());
+			}
+			catch (DockerException | InterruptedException e) {
+				log.warn("Failed to inspect warm container " + container.getId(), e);
+				return false;
+			}
+		}
+
+		private void discard(final WarmContainer container) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					remove(container);
+				}
+			});
+		}
+
+		private synchronized void recordDemand(final int concurrentBuilds) {
+			demand = Math.max(getDemand(), concurrentBuilds);
+			demandUpdated = System.currentTimeMillis();
+		}
+
+		private synchronized double getDemand() {
+			long elapsed = System.currentTimeMillis() - demandUpdated;
+			return demand * Math.pow(0.5, (double) elapsed / DEMAND_HALF_LIFE_MILLIS);
+		}
+
+		int getTargetSize() {
+			return (int) Math.min(maximumSize, Math.ceil(getDemand()));
+		}
+
+		ContainerPoolStatistics getStatistics() {
+			ContainerPoolStatistics statistics = new ContainerPoolStatistics();
+			statistics.setImage(image);
+			statistics.setIdleContainers(idle.size());
+			statistics.setTargetSize(getTargetSize());
+			long hitCount = hits.get();
+			long missCount = misses.get();
+			statistics.setHits(hitCount);
+			statistics.setMisses(missCount);
+			statistics.setHitRate(hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+			statistics.setAverageTimeToFirstLogMillisOnHit(average(hitLatency, hitLatencyCount));
+			statistics.setAverageTimeToFirstLogMillisOnMiss(average(missLatency, missLatencyCount));
+			return statistics;
+		}
+
+	}
+
+	private static Long average(final AtomicLong total, final AtomicLong count) {
+		long n = count.get();
+		return n == 0 ? null : total.get() / n;
+	}
+
+}
@@ -0,0 +1,298 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code DeadlineService} tracks the deadlines of all builds in a hashed
+ * timer wheel. Scheduling and cancelling a {@link Deadline} takes constant
+ * time, regardless of the number of pending deadlines, and no thread is
+ * blocked per deadline. A single worker thread advances the wheel every tick
+ * and hands expired tasks to an {@link Executor}, so that a task that kills a
+ * container does not delay the other deadlines.
+ *
+ * Deadlines expire at the first tick after their due time, so the precision
+ * of the service equals the tick duration.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class DeadlineService {
+
+	private static final int INIT = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private final Executor executor;
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long startTime;
+	private final Queue<Deadline> additions;
+	private final Queue<Deadline> cancellations;
+	private final AtomicInteger pending;
+	private final Thread worker;
+
+	private volatile boolean stopped;
+
+	/**
+	 * Create and start a new {@code DeadlineService}.
+	 * @param executor {@link Executor} that runs the expired tasks
+	 * @param tickDuration duration of a single tick
+	 * @param unit {@link TimeUnit} of the tick duration
+	 * @param wheelSize number of buckets in the wheel, rounded up to a power of two
+	 */
+	public DeadlineService(final Executor executor, final long tickDuration, final TimeUnit unit, final int wheelSize) {
+		Preconditions.checkNotNull(executor);
+		Preconditions.checkArgument(tickDuration > 0, "Tick duration must be positive");
+		Preconditions.checkArgument(wheelSize > 0 && wheelSize <= 1 << 30, "Invalid wheel size");
+
+		this.executor = executor;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheel = new Bucket[normalizeWheelSize(wheelSize)];
+		for(int i = 0; i < wheel.length; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = wheel.length - 1;
+		this.additions = Queues.newConcurrentLinkedQueue();
+		this.cancellations = Queues.newConcurrentLinkedQueue();
+		this.pending = new AtomicInteger();
+		this.startTime = System.nanoTime();
+		this.worker = new ThreadFactoryBuilder()
+				.setNameFormat("deadline-service-%d")
+				.setDaemon(true)
+				.build()
+				.newThread(new Worker());
+		this.worker.start();
+	}
+
+	private static int normalizeWheelSize(final int wheelSize) {
+		int size = 1;
+		while(size < wheelSize) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Schedule a task to run once the delay has passed.
+	 * @param task the task to run
+	 * @param delay the delay after which the task runs
+	 * @param unit {@link TimeUnit} of the delay
+	 * @return a {@link Deadline} that can be used to cancel the task
+	 */
+	public Deadline schedule(final Runnable task, final long delay, final TimeUnit unit) {
+		Preconditions.checkNotNull(task);
+		Preconditions.checkState(!stopped, "DeadlineService is stopped");
+
+		long deadline = System.nanoTime() + unit.toNanos(Math.max(0, delay)) - startTime;
+		Deadline result = new Deadline(task, deadline);
+		pending.incrementAndGet();
+		additions.add(result);
+		return result;
+	}
+
+	/**
+	 * @return the number of deadlines that did not expire and were not cancelled
+	 */
+	public int getPendingDeadlines() {
+		return pending.get();
+	}
+
+	/**
+	 * Stop the worker thread. Pending deadlines will not expire.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	/**
+	 * A {@code Deadline} is a handle for a task scheduled in the
+	 * {@link DeadlineService}.
+	 */
+	public final class Deadline {
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(INIT);
+
+		// Fields below are only accessed by the worker thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Deadline next;
+		private Deadline previous;
+
+		private Deadline(final Runnable task, final long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the task, if it did not expire yet.
+		 * @return true if the task was cancelled
+		 */
+		public boolean cancel() {
+			if(!state.compareAndSet(INIT, CANCELLED)) {
+				return false;
+			}
+			pending.decrementAndGet();
+			cancellations.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if(!state.compareAndSet(INIT, EXPIRED)) {
+				return;
+			}
+			pending.decrementAndGet();
+			try {
+				executor.execute(task);
+			}
+			catch (RejectedExecutionException e) {
+				log.warn("Failed to run expired task " + task, e);
+			}
+		}
+
+	}
+
+	/**
+	 * A {@code Bucket} is a doubly linked list of the deadlines that map to the
+	 * same slot in the wheel. It is only accessed by the worker thread.
+	 */
+	private static final class Bucket {
+
+		private Deadline head;
+		private Deadline tail;
+
+		void add(final Deadline deadline) {
+			deadline.bucket = this;
+			if(head == null) {
+				head = tail = deadline;
+			}
+			else {
+				tail.next = deadline;
+				deadline.previous = tail;
+				tail = deadline;
+			}
+		}
+
+		void remove(final Deadline deadline) {
+			if(deadline.previous != null) {
+				deadline.previous.next = deadline.next;
+			}
+			if(deadline.next != null) {
+				deadline.next.previous = deadline.previous;
+			}
+			if(deadline == head) {
+				head = deadline.next;
+			}
+			if(deadline == tail) {
+				tail = deadline.previous;
+			}
+			deadline.next = null;
+			deadline.previous = null;
+			deadline.bucket = null;
+		}
+
+		void expire(final long now) {
+			Deadline deadline = head;
+			while(deadline != null) {
+				Deadline next = deadline.next;
+				if(deadline.isCancelled()) {
+					remove(deadline);
+				}
+				else if(deadline.remainingRounds <= 0 && deadline.deadline <= now) {
+					remove(deadline);
+					deadline.expire();
+				}
+				else {
+					deadline.remainingRounds--;
+				}
+				deadline = next;
+			}
+		}
+
+	}
+
+	private final class Worker implements Runnable {
+
+		private long tick;
+
+		@Override
+		public void run() {
+			while(!stopped) {
+				long now = waitForNextTick();
+				if(now < 0) {
+					continue;
+				}
+
+				processCancellations();
+				transferAdditions();
+				wheel[(int) (tick & mask)].expire(now);
+				tick++;
+			}
+		}
+
+		private long waitForNextTick() {
+			long deadline = tickNanos * (tick + 1);
+			while(true) {
+				long now = System.nanoTime() - startTime;
+				long sleepNanos = deadline - now;
+				if(sleepNanos <= 0) {
+					return now;
+				}
+
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				}
+				catch (InterruptedException e) {
+					if(stopped) {
+						return -1;
+					}
+				}
+			}
+		}
+
+		private void processCancellations() {
+			Deadline deadline;
+			while((deadline = cancellations.poll()) != null) {
+				if(deadline.bucket != null) {
+					deadline.bucket.remove(deadline);
+				}
+			}
+		}
+
+		private void transferAdditions() {
+			Deadline deadline;
+			while((deadline = additions.poll()) != null) {
+				if(deadline.isCancelled()) {
+					continue;
+				}
+
+				long expiryTick = deadline.deadline / tickNanos;
+				deadline.remainingRounds = (expiryTick - tick) / wheel.length;
+				long targetTick = Math.max(expiryTick, tick);
+				wheel[(int) (targetTick & mask)].add(deadline);
+			}
+		}
+
+	}
+
+}
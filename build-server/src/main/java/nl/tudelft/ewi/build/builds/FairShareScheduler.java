@@ -0,0 +1,384 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.jaxrs.models.TenantStatistics;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code FairShareScheduler} decides which builds may occupy the container
+ * slots. Every tenant has its own queue, and the queued builds of the tenants
+ * are interleaved with start-time fair queuing: each build receives a virtual
+ * start tag that advances with the inverse of the weight of its tenant, and
+ * the queued build with the lowest start tag is started first. A tenant with
+ * weight two thus starts twice as many builds as a tenant with weight one
+ * while both have builds queued, and a tenant that was idle does not build up
+ * credit. A tenant can furthermore be capped to a maximum number of running
+ * builds.
+ *
+ * The sources of a limited number of queued builds can be prefetched while
+ * they wait for a container slot. {@link #prefetch()} selects the queued
+ * builds in the order in which they are expected to start, so that a tenant
+ * that queues many builds does not take the prefetch window of the others.
+ *
+ * The scheduler only does the bookkeeping; the caller starts the builds that
+ * it admits. All methods are synchronized, but none of them blocks or calls
+ * out to Docker.
+ *
+ * @param <T> type of the scheduled builds
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class FairShareScheduler<T> {
+
+	/**
+	 * Result of {@link FairShareScheduler#offer(String, Object)}.
+	 */
+	public enum Admission {
+		STARTED, QUEUED, REJECTED
+	}
+
+	/**
+	 * Idle tenants are forgotten once more than this number of tenants is
+	 * known, so that keying tenants by repository does not leak memory.
+	 */
+	private static final int MAXIMUM_TENANTS = 1024;
+
+	private final Config config;
+	private final int maximumRunning;
+	private final int maximumQueued;
+	private final int maximumPrefetched;
+	private final Map<String, Tenant> tenants;
+	private final Set<Tenant> backlogged;
+
+	private int running;
+	private int queued;
+	private int prefetched;
+	private double virtualTime;
+
+	/**
+	 * Create a new {@code FairShareScheduler}.
+	 * @param config {@link Config} that provides the number of container slots,
+	 * 		the size of the queue and prefetch window, and the weight and cap of
+	 * 		each tenant
+	 */
+	public FairShareScheduler(final Config config) {
+		this.config = config;
+		this.maximumRunning = config.getMaximumConcurrentJobs();
+		this.maximumQueued = config.getMaximumQueuedJobs();
+		this.maximumPrefetched = config.getMaximumPrefetchedJobs();
+		this.tenants = Maps.newTreeMap();
+		this.backlogged = Sets.newLinkedHashSet();
+	}
+
+	/**
+	 * Offer a build to the scheduler. The build may start immediately if a
+	 * container slot is available and its tenant is below its cap, otherwise
+	 * it is queued if the queue is not full.
+	 * @param tenantName tenant of the build
+	 * @param item the build
+	 * @return the {@link Admission} of the build
+	 */
+	public synchronized Admission offer(final String tenantName, final T item) {
+		Tenant tenant = getTenant(tenantName);
+		double startTag = Math.max(virtualTime, tenant.finishTag);
+
+		// No queued build can start at this point, so if this build can
+		// start, it does not overtake a build of another tenant.
+		if(running < maximumRunning && tenant.isBelowCap()) {
+			// Virtual time advances as if the build was polled, so that a tenant
+			// that builds alone does not run ahead of the tenants that arrive
+			virtualTime = startTag;
+			tenant.finishTag = startTag + tenant.getCost();
+			tenant.start(0);
+			running++;
+			return Admission.STARTED;
+		}
+
+		if(queued >= maximumQueued) {
+			tenant.rejected++;
+			evictIfIdle(tenant);
+			return Admission.REJECTED;
+		}
+
+		tenant.finishTag = startTag + tenant.getCost();
+		tenant.queue.add(new Entry<T>(item, startTag, System.nanoTime()));
+		backlogged.add(tenant);
+		queued++;
+		return Admission.QUEUED;
+	}
+
+	/**
+	 * Release the container slot of a build that was started.
+	 * @param tenantName tenant of the build
+	 * @return the queued build that may start in the released slot, or
+	 * 		{@code null} if no queued build can start
+	 */
+	public synchronized T release(final String tenantName) {
+		Tenant tenant = tenants.get(tenantName);
+		Preconditions.checkState(tenant != null && tenant.running > 0,
+				"No running builds for tenant %s", tenantName);
+
+		tenant.running--;
+		running--;
+		T next = poll();
+		evictIfIdle(tenant);
+		return next;
+	}
+
+	/**
+	 * Remove a queued build.
+	 * @param tenantName tenant of the build
+	 * @param item the build
+	 * @return true if the build was queued and is removed
+	 */
+	public synchronized boolean remove(final String tenantName, final T item) {
+		Tenant tenant = tenants.get(tenantName);
+		if(tenant == null) {
+			return false;
+		}
+
+		for(Iterator<Entry<T>> iterator = tenant.queue.iterator(); iterator.hasNext();) {
+			Entry<T> entry = iterator.next();
+			if(entry.item == item) {
+				iterator.remove();
+				queued--;
+				if(entry.prefetched) {
+					prefetched--;
+				}
+				if(tenant.queue.isEmpty()) {
+					backlogged.remove(tenant);
+				}
+				evictIfIdle(tenant);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Select the next queued build of which the sources should be prefetched.
+	 * This is the queued build with the lowest start tag that is not
+	 * prefetched yet, as long as fewer than the maximum number of queued
+	 * builds are prefetched.
+	 * @return the build to prefetch, or {@code null} if no build should be
+	 * 		prefetched
+	 */
+	public synchronized T prefetch() {
+		if(prefetched >= maximumPrefetched) {
+			return null;
+		}
+
+		Entry<T> selected = null;
+		for(Tenant tenant : backlogged) {
+			for(Entry<T> entry : tenant.queue) {
+				if(!entry.prefetched) {
+					if(selected == null || entry.startTag < selected.startTag) {
+						selected = entry;
+					}
+					break;
+				}
+			}
+		}
+		if(selected == null) {
+			return null;
+		}
+
+		selected.prefetched = true;
+		prefetched++;
+		return selected.item;
+	}
+
+	/**
+	 * Get the number of queued builds that start before a build, when no
+	 * tenant hits its cap.
+	 * @param tenantName tenant of the build
+	 * @param item the build
+	 * @return the zero based position of the build, or {@code null} if the
+	 * 		build is not queued
+	 */
+	public synchronized Integer getQueuePosition(final String tenantName, final T item) {
+		Tenant tenant = tenants.get(tenantName);
+		if(tenant == null) {
+			return null;
+		}
+
+		Entry<T> entry = null;
+		for(Entry<T> queuedEntry : tenant.queue) {
+			if(queuedEntry.item == item) {
+				entry = queuedEntry;
+				break;
+			}
+		}
+		if(entry == null) {
+			return null;
+		}
+
+		int position = 0;
+		for(Tenant other : backlogged) {
+			for(Entry<T> queuedEntry : other.queue) {
+				if(queuedEntry.startTag >= entry.startTag) {
+					break;
+				}
+				position++;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * @return the number of builds that occupy a container slot
+	 */
+	public synchronized int getRunningBuilds() {
+		return running;
+	}
+
+	/**
+	 * @return the number of queued builds
+	 */
+	public synchronized int getQueuedBuilds() {
+		return queued;
+	}
+
+	/**
+	 * @return the number of queued builds of which the sources are prefetched
+	 */
+	public synchronized int getPrefetchedBuilds() {
+		return prefetched;
+	}
+
+	/**
+	 * @return the {@link TenantStatistics} for every known tenant
+	 */
+	public synchronized List<TenantStatistics> getStatistics() {
+		List<TenantStatistics> statistics = Lists.newArrayListWithCapacity(tenants.size());
+		for(Tenant tenant : tenants.values()) {
+			statistics.add(tenant.getStatistics());
+		}
+		return statistics;
+	}
+
+	private T poll() {
+		if(running >= maximumRunning) {
+			return null;
+		}
+
+		Tenant selected = null;
+		for(Tenant tenant : backlogged) {
+			if(tenant.isBelowCap() && (selected == null ||
+					tenant.queue.peek().startTag < selected.queue.peek().startTag)) {
+				selected = tenant;
+			}
+		}
+		if(selected == null) {
+			return null;
+		}
+
+		Entry<T> entry = selected.queue.poll();
+		if(selected.queue.isEmpty()) {
+			backlogged.remove(selected);
+		}
+		queued--;
+		if(entry.prefetched) {
+			prefetched--;
+		}
+		running++;
+		virtualTime = Math.max(virtualTime, entry.startTag);
+		selected.start(System.nanoTime() - entry.enqueueTime);
+		return entry.item;
+	}
+
+	private Tenant getTenant(final String tenantName) {
+		Tenant tenant = tenants.get(tenantName);
+		if(tenant == null) {
+			tenant = new Tenant(tenantName,
+					Math.max(1, config.getTenantWeight(tenantName)),
+					config.getTenantMaximumConcurrentJobs(tenantName));
+			tenants.put(tenantName, tenant);
+		}
+		return tenant;
+	}
+
+	private void evictIfIdle(final Tenant tenant) {
+		if(tenants.size() > MAXIMUM_TENANTS && tenant.running == 0 && tenant.queue.isEmpty()) {
+			tenants.remove(tenant.name);
+		}
+	}
+
+	private static final class Entry<T> {
+
+		private final T item;
+		private final double startTag;
+		private final long enqueueTime;
+		private boolean prefetched;
+
+		Entry(final T item, final double startTag, final long enqueueTime) {
+			this.item = item;
+			this.startTag = startTag;
+			this.enqueueTime = enqueueTime;
+		}
+
+	}
+
+	private final class Tenant {
+
+		private final String name;
+		private final int weight;
+		private final int cap;
+		private final Queue<Entry<T>> queue = Queues.newArrayDeque();
+
+		private double finishTag;
+		private int running;
+		private long started;
+		private long rejected;
+		private long totalWaitNanos;
+		private long maximumWaitNanos;
+
+		Tenant(final String name, final int weight, final int cap) {
+			this.name = name;
+			this.weight = weight;
+			this.cap = cap;
+		}
+
+		double getCost() {
+			return 1d / weight;
+		}
+
+		boolean isBelowCap() {
+			return cap <= 0 || running < cap;
+		}
+
+		void start(final long waitNanos) {
+			running++;
+			started++;
+			totalWaitNanos += waitNanos;
+			maximumWaitNanos = Math.max(maximumWaitNanos, waitNanos);
+		}
+
+		TenantStatistics getStatistics() {
+			TenantStatistics statistics = new TenantStatistics();
+			statistics.setTenant(name);
+			statistics.setWeight(weight);
+			statistics.setMaximumConcurrentJobs(cap > 0 ? cap : null);
+			statistics.setRunningBuilds(running);
+			statistics.setQueuedBuilds(queue.size());
+			statistics.setStartedBuilds(started);
+			statistics.setRejectedBuilds(rejected);
+			statistics.setAverageWaitMillis(started == 0 ? 0 :
+					TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / started));
+			statistics.setMaximumWaitMillis(TimeUnit.NANOSECONDS.toMillis(maximumWaitNanos));
+			return statistics;
+		}
+
+	}
+
+}
@@ -0,0 +1,171 @@
+package nl.tudelft.ewi.build.builds;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The {@code LineDecoder} splits the UTF-8 encoded output of a container into
+ * lines. The frames of a Docker log do not follow line boundaries, so a
+ * partial line is kept until the rest of the line arrives in a later frame.
+ * Lines are truncated at a maximum number of code points, and the bytes after
+ * that are skipped without decoding them. The only allocation is the
+ * {@code String} for a completed line, and lines that are decoded into a
+ * {@link LogBuffer} are not allocated at all.
+ *
+ * A {@code LineDecoder} is not thread safe, and should be used for a single
+ * stream of a single container.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class LineDecoder {
+
+	private final int maximumLength;
+	private final byte[] line;
+	private int length;
+	private int codePoints;
+	private boolean truncated;
+	private boolean ascii = true;
+
+	/**
+	 * Create a new {@code LineDecoder}.
+	 * @param maximumLength maximum number of code points in a line
+	 */
+	public LineDecoder(final int maximumLength) {
+		Preconditions.checkArgument(maximumLength > 0);
+		this.maximumLength = maximumLength;
+		// A code point takes up to four bytes in UTF-8
+		this.line = new byte[maximumLength * 4];
+	}
+
+	/**
+	 * Decode the next line from a buffer. The position of the buffer is
+	 * advanced past the decoded line, so this method should be called until
+	 * it returns {@code null} to consume the entire buffer.
+	 * @param buffer the buffer with the output
+	 * @return the next completed line, without the line terminator, or
+	 * 		{@code null} if the buffer does not contain the end of a line
+	 */
+	public String decode(final ByteBuffer buffer) {
+		return scan(buffer) ? take() : null;
+	}
+
+	/**
+	 * Decode the next line from a buffer into a {@link LogBuffer}, without
+	 * creating a {@code String} for the line.
+	 * @param buffer the buffer with the output
+	 * @param target the {@link LogBuffer} to append the line to
+	 * @return true if a completed line was appended
+	 * @see #decode(ByteBuffer)
+	 */
+	public boolean decode(final ByteBuffer buffer, final LogBuffer target) {
+		if(scan(buffer)) {
+			target.append(line, 0, getLineLength());
+			reset();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Scan the buffer up to and including the next line terminator.
+	 * @return true if the end of a line was found
+	 */
+	private boolean scan(final ByteBuffer buffer) {
+		if(buffer.hasArray()) {
+			byte[] array = buffer.array();
+			int offset = buffer.arrayOffset();
+			int end = offset + buffer.limit();
+			for(int i = offset + buffer.position(); i < end; i++) {
+				if(array[i] == '\n') {
+					buffer.position(i + 1 - offset);
+					return true;
+				}
+				append(array[i]);
+			}
+			buffer.position(buffer.limit());
+			return false;
+		}
+
+		while(buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if(b == '\n') {
+				return true;
+			}
+			append(b);
+		}
+		return false;
+	}
+
+	private void append(final byte b) {
+		if(truncated) {
+			return;
+		}
+		if(length == line.length) {
+			// Malformed input, such as a run of continuation bytes
+			truncated = true;
+			return;
+		}
+		if((b & 0xC0) != 0x80) {
+			// Lead byte of a new code point
+			if(codePoints == maximumLength) {
+				truncated = true;
+				return;
+			}
+			codePoints++;
+		}
+		if(b < 0) {
+			ascii = false;
+		}
+		line[length++] = b;
+	}
+
+	/**
+	 * @return the partial line that was not terminated yet, or {@code null}
+	 * 		if there is none
+	 */
+	public String flush() {
+		return hasPartialLine() ? take() : null;
+	}
+
+	/**
+	 * Append the partial line that was not terminated yet, if any.
+	 * @param target the {@link LogBuffer} to append the line to
+	 * @return true if a partial line was appended
+	 */
+	public boolean flush(final LogBuffer target) {
+		if(hasPartialLine()) {
+			target.append(line, 0, getLineLength());
+			reset();
+			return true;
+		}
+		return false;
+	}
+
+	private boolean hasPartialLine() {
+		return length > 0 || truncated;
+	}
+
+	private int getLineLength() {
+		return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+	}
+
+	@SuppressWarnings("deprecation")
+	private String take() {
+		int end = getLineLength();
+		// An ASCII line is copied into the string directly, without a decoder
+		String result = ascii ? new String(line, 0, 0, end) : new String(line, 0, end, UTF_8);
+		reset();
+		return result;
+	}
+
+	private void reset() {
+		length = 0;
+		codePoints = 0;
+		truncated = false;
+		ascii = true;
+	}
+
+}
@@ -0,0 +1,393 @@
+package nl.tudelft.ewi.build.builds;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The {@code LogBuffer} stores the log lines of a build as UTF-8 bytes in
+ * fixed size chunks. This takes far less memory than a list of strings,
+ * which uses two bytes per character and an object per line. The buffer is a
+ * read only {@link List} of strings, in which a line is only decoded when it
+ * is read, for example when the {@code BuildResult} is serialized.
+ *
+ * Once the chunks in memory exceed the heap threshold, the oldest chunks are
+ * spilled to append-only segment files, which are memory mapped to read them
+ * back. The buffer keeps the offset of every {@value #INDEX_INTERVAL}th line,
+ * so that the index stays small for large logs as well.
+ *
+ * Readers that follow the log wait for new lines with {@link #await(int)}.
+ * All readers at the end of the log share a single future, which completes
+ * when the next line is appended, so that appending does not depend on the
+ * number of readers.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class LogBuffer extends AbstractList<String> implements RandomAccess {
+
+	static final int CHUNK_SIZE = 8192;
+	static final int CHUNKS_PER_SEGMENT = 128;
+	static final int INDEX_INTERVAL = 64;
+
+	private static final byte[] LINE_TERMINATOR = { '\n' };
+
+	private final File spillDirectory;
+	private final String name;
+	private final long heapThreshold;
+
+	// Spilled chunks are null
+	private final List<byte[]> chunks = Lists.newArrayList();
+	private final List<Segment> segments = Lists.newArrayList();
+	private int firstHeapChunk;
+	private long[] index = new long[16];
+	private int lineCount;
+	private long length;
+	private boolean spillFailed;
+	private boolean deleted;
+	private boolean closed;
+
+	// Completed when the next line is appended or the buffer is closed
+	private SettableFuture<Void> appended;
+
+	// Position after the last line that was read, to read lines in order
+	private int lastReadLine = -1;
+	private long lastReadEnd;
+
+	/**
+	 * Create a {@code LogBuffer} that keeps all lines in memory.
+	 */
+	public LogBuffer() {
+		this(null, null, 0);
+	}
+
+	/**
+	 * Create a {@code LogBuffer} that spills to disk.
+	 * @param spillDirectory the directory for the segment files
+	 * @param name the prefix for the names of the segment files
+	 * @param heapThreshold the number of bytes to keep in memory, zero or
+	 * 		less to keep all lines in memory
+	 */
+	public LogBuffer(final File spillDirectory, final String name, final long heapThreshold) {
+		this.spillDirectory = spillDirectory;
+		this.name = name;
+		this.heapThreshold = heapThreshold;
+	}
+
+	/**
+	 * Append a line.
+	 * @param line the line, without line terminator
+	 */
+	public void append(final String line) {
+		byte[] bytes = line.getBytes(UTF_8);
+		append(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Append a line of UTF-8 encoded bytes.
+	 * @param bytes the bytes
+	 * @param offset the offset of the line in the bytes
+	 * @param count the number of bytes of the line, without line terminator
+	 */
+	public synchronized void append(final byte[] bytes, final int offset, final int count) {
+		if(lineCount % INDEX_INTERVAL == 0) {
+			int entry = lineCount / INDEX_INTERVAL;
+			if(entry == index.length) {
+				index = Arrays.copyOf(index, entry * 2);
+			}
+			index[entry] = length;
+		}
+		lineCount++;
+
+		write(bytes, offset, count);
+		write(LINE_TERMINATOR, 0, 1);
+		spill();
+		notifyReaders();
+	}
+
+	/**
+	 * Mark the log as complete. Readers that wait for new lines are notified.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyReaders();
+	}
+
+	/**
+	 * @return true if no more lines will be appended
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Wait until a line is available or the log is complete. Listeners of
+	 * the future should be added with an executor that does not run them in
+	 * the thread that appends to the log.
+	 * @param line the index of the line to wait for
+	 * @return a {@link ListenableFuture} that completes when the log has more
+	 * 		than {@code line} lines or is closed
+	 */
+	public synchronized ListenableFuture<Void> await(final int line) {
+		if(line < lineCount || closed) {
+			return Futures.immediateFuture(null);
+		}
+		if(appended == null) {
+			appended = SettableFuture.create();
+		}
+		return appended;
+	}
+
+	private void notifyReaders() {
+		if(appended != null) {
+			appended.set(null);
+			appended = null;
+		}
+	}
+
+	private void write(final byte[] bytes, final int offset, final int count) {
+		int written = 0;
+		while(written < count) {
+			int position = (int) (length % CHUNK_SIZE);
+			if(position == 0 && length / CHUNK_SIZE == chunks.size()) {
+				chunks.add(new byte[CHUNK_SIZE]);
+			}
+			int n = Math.min(count - written, CHUNK_SIZE - position);
+			System.arraycopy(bytes, offset + written, chunks.get(getChunk(length)), position, n);
+			written += n;
+			length += n;
+		}
+	}
+
+	/**
+	 * Spill the oldest chunks until the chunks in memory fit the heap
+	 * threshold. The chunk that is being written always stays in memory.
+	 */
+	private void spill() {
+		if(spillDirectory == null || heapThreshold <= 0 || spillFailed || deleted) {
+			return;
+		}
+
+		int current = getChunk(length);
+		while(firstHeapChunk < current && (long) (chunks.size() - firstHeapChunk) * CHUNK_SIZE > heapThreshold) {
+			int chunk = firstHeapChunk;
+			try {
+				Segment segment = getSegment(chunk / CHUNKS_PER_SEGMENT);
+				segment.write(chunk % CHUNKS_PER_SEGMENT, chunks.get(chunk));
+			}
+			catch (IOException e) {
+				log.warn("Failed to spill log " + name + ", keeping it in memory", e);
+				spillFailed = true;
+				return;
+			}
+			chunks.set(chunk, null);
+			firstHeapChunk++;
+		}
+	}
+
+	private Segment getSegment(final int segment) throws IOException {
+		while(segments.size() <= segment) {
+			spillDirectory.mkdirs();
+			File file = new File(spillDirectory, String.format("%s.%d.log", name, segments.size()));
+			segments.add(new Segment(file));
+		}
+		return segments.get(segment);
+	}
+
+	private static int getChunk(final long position) {
+		return (int) (position / CHUNK_SIZE);
+	}
+
+	private byte getByte(final long position) {
+		int chunk = getChunk(position);
+		int offset = (int) (position % CHUNK_SIZE);
+		byte[] bytes = chunks.get(chunk);
+		if(bytes != null) {
+			return bytes[offset];
+		}
+		return segments.get(chunk / CHUNKS_PER_SEGMENT).read(chunk % CHUNKS_PER_SEGMENT, offset);
+	}
+
+	@Override
+	public synchronized String get(final int line) {
+		if(line < 0 || line >= lineCount) {
+			throw new IndexOutOfBoundsException("Index: " + line + ", Size: " + lineCount);
+		}
+
+		long start;
+		if(line == lastReadLine + 1 && lastReadLine >= 0) {
+			start = lastReadEnd;
+		}
+		else {
+			start = index[line / INDEX_INTERVAL];
+			for(int skip = line % INDEX_INTERVAL; skip > 0; start++) {
+				if(getByte(start) == '\n') {
+					skip--;
+				}
+			}
+		}
+
+		long end = start;
+		while(getByte(end) != '\n') {
+			end++;
+		}
+
+		byte[] bytes = new byte[(int) (end - start)];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = getByte(start + i);
+		}
+
+		lastReadLine = line;
+		lastReadEnd = end + 1;
+		return new String(bytes, UTF_8);
+	}
+
+	@Override
+	public synchronized int size() {
+		return lineCount;
+	}
+
+	/**
+	 * @return the size of the log in bytes
+	 */
+	public synchronized long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the number of bytes of heap allocated for the chunks and the
+	 * 		line index
+	 */
+	public synchronized long getMemoryUsage() {
+		return (long) (chunks.size() - firstHeapChunk) * CHUNK_SIZE + (long) index.length * 8;
+	}
+
+	/**
+	 * @return the number of bytes spilled to disk
+	 */
+	public synchronized long getSpilledBytes() {
+		return (long) firstHeapChunk * CHUNK_SIZE;
+	}
+
+	/**
+	 * A view on the first and last lines of the log. When lines are omitted,
+	 * the view contains a line that says how many.
+	 * @param head the number of lines at the start of the log
+	 * @param tail the number of lines at the end of the log
+	 * @return a read only {@link List} of the first and last lines
+	 */
+	public List<String> getHeadAndTail(final int head, final int tail) {
+		return new AbstractList<String>() {
+
+			@Override
+			public String get(final int line) {
+				synchronized (LogBuffer.this) {
+					int omitted = lineCount - head - tail;
+					if(omitted <= 0 || line < head) {
+						return LogBuffer.this.get(line);
+					}
+					else if(line == head) {
+						return String.format("[WARN] Omitted %d lines of the log...", omitted);
+					}
+					return LogBuffer.this.get(line - 1 + omitted);
+				}
+			}
+
+			@Override
+			public int size() {
+				synchronized (LogBuffer.this) {
+					return Math.min(lineCount, head + tail + 1);
+				}
+			}
+
+		};
+	}
+
+	/**
+	 * Write the log to a stream, as UTF-8 encoded lines.
+	 * @param outputStream the stream to write to
+	 * @throws IOException if the stream could not be written
+	 */
+	public synchronized void writeTo(final OutputStream outputStream) throws IOException {
+		byte[] spilled = new byte[CHUNK_SIZE];
+		for(int chunk = 0; chunk < chunks.size(); chunk++) {
+			int count = (int) Math.min(CHUNK_SIZE, length - (long) chunk * CHUNK_SIZE);
+			byte[] bytes = chunks.get(chunk);
+			if(bytes == null) {
+				segments.get(chunk / CHUNKS_PER_SEGMENT).read(chunk % CHUNKS_PER_SEGMENT, spilled);
+				bytes = spilled;
+			}
+			outputStream.write(bytes, 0, count);
+		}
+	}
+
+	/**
+	 * Delete the segment files of the buffer. Spilled lines can no longer be
+	 * read after the buffer is deleted.
+	 */
+	public synchronized void delete() {
+		deleted = true;
+		for(Segment segment : segments) {
+			segment.delete();
+		}
+	}
+
+	/**
+	 * A {@code Segment} is a memory mapped file that holds
+	 * {@value #CHUNKS_PER_SEGMENT} spilled chunks.
+	 */
+	private static final class Segment {
+
+		private final File file;
+		private final MappedByteBuffer buffer;
+
+		Segment(final File file) throws IOException {
+			this.file = file;
+			try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+				// The mapping remains valid after the file is closed
+				this.buffer = randomAccessFile.getChannel()
+						.map(MapMode.READ_WRITE, 0, (long) CHUNKS_PER_SEGMENT * CHUNK_SIZE);
+			}
+		}
+
+		void write(final int chunk, final byte[] bytes) {
+			buffer.position(chunk * CHUNK_SIZE);
+			buffer.put(bytes);
+		}
+
+		byte read(final int chunk, final int offset) {
+			return buffer.get(chunk * CHUNK_SIZE + offset);
+		}
+
+		void read(final int chunk, final byte[] bytes) {
+			ByteBuffer duplicate = buffer.duplicate();
+			duplicate.position(chunk * CHUNK_SIZE);
+			duplicate.get(bytes);
+		}
+
+		void delete() {
+			if(!file.delete() && file.exists()) {
+				log.warn("Failed to delete log segment {}", file);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,432 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.LogsParam;
+import com.spotify.docker.client.DockerException;
+import com.spotify.docker.client.LogMessage;
+import com.spotify.docker.client.LogStream;
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.jaxrs.models.LogIngestStatistics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code LogIngester} reads the output of all running containers from a
+ * small, fixed set of threads. The Docker client only offers blocking streams
+ * for following the output of a container, which would take a thread per
+ * container. Instead, the ingester polls the log of every container in turn,
+ * with a request that returns all output since the previous poll without
+ * waiting for more. The log lines are requested with their timestamps, so
+ * that lines which were already ingested are skipped. Frames without a
+ * timestamp cannot be deduplicated, so they are only ingested until the
+ * first frame with a timestamp is. The demultiplexed
+ * stdout and stderr frames are handed to the {@link Sink} of the container.
+ *
+ * Once the container has stopped, the subscription is drained: the log is
+ * polled until no new lines are returned, after which the future of
+ * {@link #subscribe(String, Sink)} completes.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class LogIngester {
+
+	/**
+	 * A {@code Sink} consumes the output of a single container.
+	 */
+	public interface Sink {
+
+		void consume(LogMessage message);
+
+	}
+
+	private final DockerClient dockerClient;
+	private final long pollIntervalNanos;
+	private final DelayQueue<Subscription> queue;
+	private final List<Thread> workers;
+	private final long startTime;
+	private final AtomicLong lines = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong polls = new AtomicLong();
+
+	private volatile boolean stopped;
+
+	/**
+	 * Create and start a new {@code LogIngester}.
+	 * @param dockerClient {@link DockerClient} to read the logs with
+	 * @param threads number of threads that read the logs
+	 * @param pollInterval interval in which the log of a container is polled
+	 * @param unit {@link TimeUnit} of the poll interval
+	 */
+	public LogIngester(final DockerClient dockerClient, final int threads, final long pollInterval,
+			final TimeUnit unit) {
+		Preconditions.checkArgument(threads > 0, "At least one thread is required");
+		this.dockerClient = dockerClient;
+		this.pollIntervalNanos = unit.toNanos(pollInterval);
+		this.queue = new DelayQueue<Subscription>();
+		this.workers = Lists.newArrayListWithCapacity(threads);
+		this.startTime = System.nanoTime();
+
+		ThreadFactory threadFactory = new ThreadFactoryBuilder()
+				.setNameFormat("log-ingester-%d")
+				.setDaemon(true)
+				.build();
+		for(int i = 0; i < threads; i++) {
+			Thread worker = threadFactory.newThread(new Worker());
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Start ingesting the output of a container.
+	 * @param containerId the id of the container
+	 * @param sink the {@link Sink} that consumes the output
+	 * @return the {@link Subscription} for the container
+	 */
+	public Subscription subscribe(final String containerId, final Sink sink) {
+		Subscription subscription = new Subscription(containerId, sink);
+		queue.add(subscription);
+		return subscription;
+	}
+
+	/**
+	 * @return the number of containers of which the output is ingested
+	 */
+	public int getSubscriptions() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the {@link LogIngestStatistics} since the ingester started
+	 */
+	public LogIngestStatistics getStatistics() {
+		double seconds = Math.max(1, System.nanoTime() - startTime) / 1e9;
+		double cpuSeconds = getCpuTime() / 1e9;
+		long lineCount = lines.get();
+		long byteCount = bytes.get();
+
+		LogIngestStatistics statistics = new LogIngestStatistics();
+		statistics.setThreads(workers.size());
+		statistics.setSubscriptions(getSubscriptions());
+		statistics.setPolls(polls.get());
+		statistics.setLines(lineCount);
+		statistics.setBytes(byteCount);
+		statistics.setLinesPerSecond(lineCount / seconds);
+		statistics.setBytesPerSecond(byteCount / seconds);
+		if(cpuSeconds > 0) {
+			statistics.setLinesPerCpuSecond(lineCount / cpuSeconds);
+			statistics.setBytesPerCpuSecond(byteCount / cpuSeconds);
+		}
+		return statistics;
+	}
+
+	private long getCpuTime() {
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if(!threadMXBean.isThreadCpuTimeSupported()) {
+			return 0;
+		}
+
+		long cpuTime = 0;
+		for(Thread worker : workers) {
+			cpuTime += Math.max(0, threadMXBean.getThreadCpuTime(worker.getId()));
+		}
+		return cpuTime;
+	}
+
+	/**
+	 * Stop the worker threads. Pending subscriptions do not complete.
+	 */
+	public void stop() {
+		stopped = true;
+		for(Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * Parse a RFC 3339 timestamp with nanosecond precision in UTC, as
+	 * prefixed to the log lines by Docker.
+	 * @param buffer the buffer that contains the timestamp, starting at its
+	 * 		position
+	 * @param end the exclusive end of the timestamp
+	 * @return the number of nanoseconds since the epoch, or {@code -1} if the
+	 * 		timestamp could not be parsed
+	 */
+	static long parseTimestamp(final ByteBuffer buffer, final int end) {
+		int position = buffer.position();
+		// 2006-01-02T15:04:05[.999999999]Z
+		if(end - position < 20 || buffer.get(position + 10) != 'T' || buffer.get(end - 1) != 'Z') {
+			return -1;
+		}
+
+		int year = digits(buffer, position, 4);
+		int month = digits(buffer, position + 5, 2);
+		int day = digits(buffer, position + 8, 2);
+		int hour = digits(buffer, position + 11, 2);
+		int minute = digits(buffer, position + 14, 2);
+		int second = digits(buffer, position + 17, 2);
+		if(year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+			return -1;
+		}
+
+		long nanos = 0;
+		int fraction = position + 19;
+		if(fraction < end - 1) {
+			if(buffer.get(fraction) != '.') {
+				return -1;
+			}
+			int scale = 100000000;
+			for(int i = fraction + 1; i < end - 1; i++, scale /= 10) {
+				int digit = buffer.get(i) - '0';
+				if(digit < 0 || digit > 9) {
+					return -1;
+				}
+				nanos += digit * scale;
+			}
+		}
+
+		long days = daysFromCivil(year, month, day);
+		long seconds = ((days * 24 + hour) * 60 + minute) * 60 + second;
+		return seconds * 1000000000L + nanos;
+	}
+
+	private static int digits(final ByteBuffer buffer, final int offset, final int length) {
+		int value = 0;
+		for(int i = offset; i < offset + length; i++) {
+			int digit = buffer.get(i) - '0';
+			if(digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * @return the number of days since the epoch for a date in the proleptic
+	 * 		Gregorian calendar
+	 */
+	private static long daysFromCivil(final int year, final int month, final int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	/**
+	 * A {@code Subscription} tracks the output of a single container that was
+	 * ingested so far.
+	 */
+	public final class Subscription implements Delayed {
+
+		private final String containerId;
+		private final Sink sink;
+		private final SettableFuture<Void> drained = SettableFuture.create();
+
+		private volatile boolean terminated;
+		private volatile boolean cancelled;
+		private volatile long nextPoll;
+
+		// Fields below are only accessed by the worker that holds the subscription
+		private long lastTimestamp = -1;
+		private int linesAtLastTimestamp;
+		private int framesWithoutTimestamp;
+
+		private Subscription(final String containerId, final Sink sink) {
+			this.containerId = containerId;
+			this.sink = sink;
+			this.nextPoll = System.nanoTime();
+		}
+
+		/**
+		 * Drain the remaining output, because the container has stopped.
+		 * @return a {@link ListenableFuture} that completes once all output
+		 * 		is ingested
+		 */
+		public ListenableFuture<Void> drain() {
+			terminated = true;
+			if(queue.remove(this)) {
+				nextPoll = System.nanoTime();
+				queue.add(this);
+			}
+			return drained;
+		}
+
+		/**
+		 * Stop ingesting the output of the container.
+		 */
+		public void cancel() {
+			cancelled = true;
+			queue.remove(this);
+			drained.cancel(false);
+		}
+
+		@Override
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(nextPoll - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(final Delayed other) {
+			long difference = nextPoll - ((Subscription) other).nextPoll;
+			return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+		}
+
+		/**
+		 * Poll the log of the container once.
+		 */
+		private void poll() throws InterruptedException {
+			boolean draining = terminated;
+			int ingested;
+
+			try {
+				ingested = read();
+			}
+			catch (DockerException | RuntimeException e) {
+				if(draining) {
+					log.warn("Failed to drain the output of container " + containerId, e);
+					drained.set(null);
+					return;
+				}
+				log.info("Failed to poll the output of container " + containerId, e);
+				ingested = -1;
+			}
+
+			if(cancelled) {
+				return;
+			}
+			if(draining && ingested == 0) {
+				drained.set(null);
+				return;
+			}
+
+			nextPoll = System.nanoTime() + (draining ? 0 : pollIntervalNanos);
+			queue.add(this);
+		}
+
+		/**
+		 * @return the number of new log frames
+		 */
+		private int read() throws DockerException, InterruptedException {
+			List<LogsParam> params = Lists.newArrayList(LogsParam.stdout(), LogsParam.stderr(),
+					LogsParam.timestamps());
+			if(lastTimestamp >= 0) {
+				params.add(LogsParam.since((int) TimeUnit.NANOSECONDS.toSeconds(lastTimestamp)));
+			}
+
+			polls.incrementAndGet();
+			int ingested = 0;
+			int skip = linesAtLastTimestamp;
+			int skipWithoutTimestamp = framesWithoutTimestamp;
+			try(LogStream stream = dockerClient.logs(containerId, params.toArray(new LogsParam[params.size()]))) {
+				while(stream.hasNext() && !cancelled) {
+					LogMessage message = stream.next();
+					ByteBuffer content = message.content();
+
+					int separator = indexOf(content, (byte) ' ');
+					long timestamp = separator < 0 ? -1 : parseTimestamp(content, separator);
+					if(timestamp >= 0) {
+						if(timestamp < lastTimestamp) {
+							continue;
+						}
+						else if(timestamp == lastTimestamp) {
+							if(skip > 0) {
+								skip--;
+								continue;
+							}
+							linesAtLastTimestamp++;
+						}
+						else {
+							lastTimestamp = timestamp;
+							linesAtLastTimestamp = 1;
+							skip = 0;
+						}
+						content.position(separator + 1);
+						message = new LogMessage(message.stream(), content.slice());
+					}
+					else if(lastTimestamp >= 0) {
+						// A frame without a timestamp cannot be told apart from
+						// one that an earlier poll already ingested
+						continue;
+					}
+					else if(skipWithoutTimestamp > 0) {
+						// The log is returned from the start until a frame with
+						// a timestamp was ingested
+						skipWithoutTimestamp--;
+						continue;
+					}
+					else {
+						framesWithoutTimestamp++;
+					}
+
+					ingested++;
+					lines.addAndGet(count(message.content(), (byte) '\n'));
+					bytes.addAndGet(message.content().remaining());
+					sink.consume(message);
+				}
+			}
+			return ingested;
+		}
+
+	}
+
+	private static int indexOf(final ByteBuffer buffer, final byte value) {
+		for(int i = buffer.position(); i < buffer.limit(); i++) {
+			if(buffer.get(i) == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int count(final ByteBuffer buffer, final byte value) {
+		int count = 0;
+		for(int i = buffer.position(); i < buffer.limit(); i++) {
+			if(buffer.get(i) == value) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private final class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			while(!stopped) {
+				try {
+					Subscription subscription = queue.take();
+					if(!subscription.cancelled) {
+						subscription.poll();
+					}
+				}
+				catch (InterruptedException e) {
+					if(stopped) {
+						return;
+					}
+				}
+				catch (Throwable t) {
+					log.warn("Failed to ingest container output", t);
+				}
+			}
+		}
+
+	}
+
+}
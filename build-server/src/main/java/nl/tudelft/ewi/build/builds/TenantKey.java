@@ -0,0 +1,90 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.base.Strings;
+import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRequest;
+import nl.tudelft.ewi.build.jaxrs.models.GitSource;
+import nl.tudelft.ewi.build.jaxrs.models.Source;
+
+import java.net.URI;
+
+/**
+ * The {@code TenantKey} determines for which tenant a {@link BuildRequest} is
+ * scheduled. The {@link FairShareScheduler} shares the container slots
+ * between tenants, so that a single tenant pushing many commits can not
+ * starve the other tenants.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public enum TenantKey {
+
+	/**
+	 * All requests authenticated with the same client credential share a
+	 * tenant.
+	 */
+	CLIENT {
+		@Override
+		String getTenant(final Config config, final BuildRequest buildRequest) {
+			return config.getClientId();
+		}
+	},
+
+	/**
+	 * All requests with a callback URL on the same host share a tenant.
+	 */
+	CALLBACK_HOST {
+		@Override
+		String getTenant(final Config config, final BuildRequest buildRequest) {
+			return getHost(buildRequest.getCallbackUrl());
+		}
+	},
+
+	/**
+	 * All requests for the same repository share a tenant. Requests for a
+	 * source without a repository are keyed by their callback host.
+	 */
+	REPOSITORY {
+		@Override
+		String getTenant(final Config config, final BuildRequest buildRequest) {
+			Source source = buildRequest.getSource();
+			if(source instanceof GitSource) {
+				String repositoryUrl = ((GitSource) source).getRepositoryUrl();
+				if(!Strings.isNullOrEmpty(repositoryUrl)) {
+					return repositoryUrl;
+				}
+			}
+			return CALLBACK_HOST.getTenant(config, buildRequest);
+		}
+	};
+
+	/**
+	 * Tenant for requests that can not be attributed to a tenant.
+	 */
+	public static final String DEFAULT_TENANT = "default";
+
+	/**
+	 * @param config the {@link Config}
+	 * @param buildRequest the {@link BuildRequest}
+	 * @return the tenant for the build request, or {@link #DEFAULT_TENANT}
+	 */
+	public String getTenantOf(final Config config, final BuildRequest buildRequest) {
+		String tenant = getTenant(config, buildRequest);
+		return Strings.isNullOrEmpty(tenant) ? DEFAULT_TENANT : tenant;
+	}
+
+	abstract String getTenant(final Config config, final BuildRequest buildRequest);
+
+	private static String getHost(final String url) {
+		if(Strings.isNullOrEmpty(url)) {
+			return null;
+		}
+
+		try {
+			return URI.create(url).getHost();
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+package nl.tudelft.ewi.build.callbacks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.jboss.resteasy.util.Base64;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.Config;
+
+/**
+ * The {@code CallbackClient} posts to the hosts that receive the results of
+ * the builds, both for the {@link CallbackDispatcher} and for the plugins that
+ * send files from a build. It keeps a single pool of at most
+ * {@link Config#getCallbackConnections()} connections, and does not retry a
+ * request by itself.
+ *
+ * Bodies for hosts in {@link Config#getCallbackGzipHosts()} are compressed
+ * with gzip, until the host responds with {@code 415 Unsupported Media Type}.
+ * From then on, the host receives uncompressed bodies.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+@Singleton
+public class CallbackClient implements Closeable {
+
+	private final CloseableHttpClient client;
+	private final String authorization;
+	private final CallbackHosts gzipHosts;
+
+	// The hosts that rejected a compressed body
+	private final Set<String> uncompressedHosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	@Inject
+	public CallbackClient(final Config config) {
+		int connections = Math.max(1, config.getCallbackConnections());
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(connections);
+		connectionManager.setDefaultMaxPerRoute(Math.max(1, Math.min(connections, config.getCallbackConnectionsPerHost())));
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(config.getCallbackTimeout())
+				.setSocketTimeout(config.getCallbackTimeout())
+				.build();
+		this.client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				// Failed requests are retried by the callers instead
+				.disableAutomaticRetries()
+				.build();
+		this.gzipHosts = new CallbackHosts(config.getCallbackGzipHosts());
+
+		String userPass = config.getClientId() + ":" + config.getClientSecret();
+		this.authorization = "Basic " + Base64.encodeBytes(userPass.getBytes(Charsets.UTF_8));
+	}
+
+	/**
+	 * @param url the URL to post to
+	 * @return true if a body for the URL should be compressed with gzip
+	 */
+	public boolean isCompressed(final String url) {
+		return gzipHosts.contains(url) && !uncompressedHosts.contains(getHost(url));
+	}
+
+	/**
+	 * Create an authorized request.
+	 * @param url the URL to post to
+	 * @param entity the body, already compressed if the body is
+	 * 		{@link #isCompressed(String) compressed}
+	 * @return the request
+	 */
+	public HttpPost createPost(final String url, final HttpEntity entity) {
+		HttpPost post = new HttpPost(url);
+		post.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+		post.setEntity(entity);
+		return post;
+	}
+
+	/**
+	 * Send a request and discard the response body, so that the connection
+	 * returns to the pool.
+	 * @param post the request
+	 * @param compressed whether the body of the request is compressed
+	 * @return the status code of the response
+	 * @throws IOException if the request failed
+	 */
+	public int execute(final HttpPost post, final boolean compressed) throws IOException {
+		try (CloseableHttpResponse response = client.execute(post)) {
+			EntityUtils.consume(response.getEntity());
+			int status = response.getStatusLine().getStatusCode();
+			if (compressed && status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+				String host = getHost(post.getURI().toString());
+				log.warn("Callback host {} does not accept gzip, sending uncompressed bodies", host);
+				uncompressedHosts.add(host);
+			}
+			return status;
+		}
+	}
+
+	/**
+	 * Send a file, compressed if the host accepts gzip. A host that rejects
+	 * the compressed file receives it again, uncompressed.
+	 * @param url the URL to post to
+	 * @param entity the repeatable, uncompressed body
+	 * @return the status code of the response
+	 * @throws IOException if the request failed
+	 */
+	public int send(final String url, final HttpEntity entity) throws IOException {
+		if (isCompressed(url)) {
+			int status = execute(createPost(url, new GzipCompressingEntity(entity)), true);
+			if (status != HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+				return status;
+			}
+		}
+		return execute(createPost(url, entity), false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		client.close();
+	}
+
+	static String getHost(final String url) {
+		try {
+			URI uri = URI.create(url);
+			return Strings.nullToEmpty(uri.getHost()) + ":" + uri.getPort();
+		}
+		catch (IllegalArgumentException e) {
+			return url;
+		}
+	}
+
+}
@@ -0,0 +1,610 @@
+package nl.tudelft.ewi.build.callbacks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.eclipse.jetty.util.component.AbstractLifeCycle.AbstractLifeCycleListener;
+import org.eclipse.jetty.util.component.LifeCycle;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.builds.BuildManager;
+import nl.tudelft.ewi.build.builds.BuildManager.Build;
+import nl.tudelft.ewi.build.jaxrs.json.MappingModule;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRequest;
+import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+import nl.tudelft.ewi.build.jaxrs.models.CallbackStatistics;
+
+/**
+ * The {@code CallbackDispatcher} returns the {@link BuildResult} of a build to
+ * the callback URL of its {@link BuildRequest} once the build is done. The
+ * dispatcher is created when the server starts, and then also delivers the
+ * results of the builds that the {@link BuildManager} recovered after a
+ * restart.
+ *
+ * Results are posted with the {@link CallbackClient}, which keeps a single
+ * pool of connections.
+ * At most {@link Config#getCallbackConnectionsPerHost()} requests to a host
+ * are in progress at the same time, and further results for the host wait in
+ * a queue of their own, so that a slow host does not delay the results for
+ * other hosts. A failed attempt is retried after an exponential backoff with
+ * jitter. No thread waits for a retry: the retry is scheduled and queued for
+ * its host again once the backoff has passed.
+ *
+ * Results are added to the {@link CallbackOutbox} before they are delivered,
+ * and removed from it once they are delivered, so that the results that were
+ * not delivered are delivered again when the server restarts. While a result
+ * is in the outbox, it is retried until it is delivered or until it is older
+ * than {@link Config#getCallbackRetention()} hours. Every request carries
+ * the UUID of the build in the {@value #IDEMPOTENCY_KEY_HEADER} header, so
+ * that the receiver can ignore a result that it already received.
+ *
+ * Hosts in {@link Config#getCallbackBatchHosts()} receive their results in
+ * batches: results for the same callback URL are collected for at most
+ * {@link Config#getCallbackBatchWindow()} milliseconds or up to
+ * {@link Config#getCallbackBatchSize()} results, and are then posted as a
+ * single JSON array. The idempotency key of a batch lists the UUIDs of all
+ * its builds, separated by commas. A batch is retried as a whole.
+ *
+ * Results are serialized while they are sent, so that the memory for a
+ * request does not grow with the size of the result. Bodies for hosts in
+ * {@link Config#getCallbackGzipHosts()} are compressed with gzip, until the
+ * host responds with {@code 415 Unsupported Media Type}. The next attempt
+ * then sends the result uncompressed.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+@Singleton
+public class CallbackDispatcher extends AbstractLifeCycleListener implements LifeCycle.Listener {
+
+	private static final long MAXIMUM_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+	private final CallbackClient client;
+	private final ObjectMapper mapper;
+	private final int connectionsPerHost;
+	private final int maximumAttempts;
+	private final long backoffMillis;
+	private final long retentionMillis;
+	private final long timeoutMillis;
+	private final CallbackOutbox outbox;
+	private final CallbackHosts batchHosts;
+	private final int batchSize;
+	private final long batchWindowMillis;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService retryExecutor;
+
+	// Guarded by this
+	private final Map<String, Host> hosts = Maps.newHashMap();
+
+	// Guarded by this, the batches that are still collecting results
+	private final Map<String, Delivery> batches = Maps.newHashMap();
+
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong failedAttempts = new AtomicLong();
+	private final AtomicLong deliveryMillis = new AtomicLong();
+	private final AtomicLong maximumDeliveryMillis = new AtomicLong();
+	private final AtomicLong attemptMillis = new AtomicLong();
+	private final AtomicLong serializedBytes = new AtomicLong();
+	private final AtomicLong sentBytes = new AtomicLong();
+
+	@Inject
+	public CallbackDispatcher(final Config config, final CallbackClient client, final BuildManager manager) {
+		this(config, client);
+		for (Build build : manager.getBuilds()) {
+			dispatch(build);
+		}
+	}
+
+	CallbackDispatcher(final Config config, final CallbackClient client) {
+		this.client = client;
+		int connections = Math.max(1, config.getCallbackConnections());
+		this.connectionsPerHost = Math.max(1, Math.min(connections, config.getCallbackConnectionsPerHost()));
+		this.maximumAttempts = Math.max(1, config.getCallbackAttempts());
+		this.backoffMillis = Math.max(1, config.getCallbackBackoff());
+		this.retentionMillis = TimeUnit.HOURS.toMillis(Math.max(0, config.getCallbackRetention()));
+		this.timeoutMillis = Math.max(0, config.getCallbackTimeout());
+		this.batchHosts = new CallbackHosts(config.getCallbackBatchHosts());
+		this.batchSize = Math.max(1, config.getCallbackBatchSize());
+		this.batchWindowMillis = Math.max(0, config.getCallbackBatchWindow());
+
+		this.mapper = new ObjectMapper();
+		mapper.registerModule(new MappingModule());
+		// The entity closes the connection stream
+		mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+		// One thread per connection, threads only wait for the callback hosts
+		this.executor = Executors.newFixedThreadPool(connections, new ThreadFactoryBuilder()
+				.setNameFormat("callback-%d").setDaemon(true).build());
+		this.retryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("callback-retry").setDaemon(true).build());
+
+		this.outbox = openOutbox(config);
+		if (outbox != null) {
+			for (CallbackOutbox.Entry entry : outbox.getPending()) {
+				log.info("Returning build result of {} again after a restart", entry.getUuid());
+				pending.incrementAndGet();
+				enqueue(entry.getCallbackUrl(), entry.getResult(), entry.getCreatedAt());
+			}
+		}
+	}
+
+	private static CallbackOutbox openOutbox(final Config config) {
+		String directory = config.getCallbackOutboxDirectory();
+		if (Strings.isNullOrEmpty(directory)) {
+			log.info("Callback outbox is disabled");
+			return null;
+		}
+		try {
+			return new CallbackOutbox(new File(directory));
+		}
+		catch (IOException e) {
+			log.error("Failed to open the callback outbox in " + directory + ", results are not delivered after a restart", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Return the result of a build to its callback URL once it is done. This
+	 * does nothing if the build has no callback URL.
+	 * @param build the {@link Build}
+	 */
+	public void dispatch(final Build build) {
+		final BuildRequest buildRequest = build.getBuildRequest();
+		if (Strings.isNullOrEmpty(buildRequest.getCallbackUrl())) {
+			return;
+		}
+
+		Futures.addCallback(build, new FutureCallback<BuildResult>() {
+
+			@Override
+			public void onSuccess(BuildResult result) {
+				deliver(buildRequest.getCallbackUrl(), result);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				// Cancelled builds have no result to return
+			}
+
+		});
+	}
+
+	/**
+	 * Post a {@link BuildResult} to a callback URL. This waits until the
+	 * result is in the {@link CallbackOutbox}, but not for the delivery.
+	 * @param callbackUrl the callback URL
+	 * @param result the {@link BuildResult}
+	 */
+	public void deliver(final String callbackUrl, final BuildResult result) {
+		log.info("Returning build results to callback URL: {}", callbackUrl);
+		pending.incrementAndGet();
+		if (outbox != null) {
+			try {
+				outbox.add(callbackUrl, result).get();
+			}
+			catch (ExecutionException e) {
+				log.warn("Failed to add the build result of " + result.getUuid()
+						+ " to the outbox, it is not delivered after a restart", e.getCause());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		enqueue(callbackUrl, result, System.currentTimeMillis());
+	}
+
+	private void enqueue(final String callbackUrl, final BuildResult result, final long createdAt) {
+		if (!batchHosts.contains(callbackUrl)) {
+			Delivery delivery = new Delivery(callbackUrl, false);
+			delivery.add(result, createdAt);
+			submit(delivery);
+			return;
+		}
+
+		Delivery opened = null;
+		Delivery full = null;
+		synchronized (this) {
+			Delivery batch = batches.get(callbackUrl);
+			if (batch == null) {
+				batch = opened = new Delivery(callbackUrl, true);
+				batches.put(callbackUrl, batch);
+			}
+			batch.add(result, createdAt);
+			if (batch.results.size() >= batchSize) {
+				batches.remove(callbackUrl);
+				full = batch;
+			}
+		}
+
+		if (full != null) {
+			submit(full);
+		}
+		else if (opened != null) {
+			final Delivery batch = opened;
+			try {
+				retryExecutor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush(batch);
+					}
+				}, batchWindowMillis, TimeUnit.MILLISECONDS);
+			}
+			catch (RuntimeException e) {
+				log.warn("Could not return build result to: {}, the dispatcher is stopped", callbackUrl);
+			}
+		}
+	}
+
+	/**
+	 * Send a batch once its window has passed, unless it was already sent
+	 * because it was full.
+	 */
+	private void flush(final Delivery batch) {
+		synchronized (this) {
+			if (batches.get(batch.callbackUrl) != batch) {
+				return;
+			}
+			batches.remove(batch.callbackUrl);
+		}
+		submit(batch);
+	}
+
+	/**
+	 * Create the body of a request. The payload is serialized while it is
+	 * written to the connection, and compressed with gzip if requested, so
+	 * that only the fixed size buffers of the serializer and the compressor
+	 * are in memory for a request, rather than the whole body.
+	 * @param payload the object to post as JSON
+	 * @param compress whether to compress the body
+	 * @return the {@link HttpEntity}
+	 */
+	HttpEntity createEntity(final Object payload, final boolean compress) {
+		EntityTemplate json = new EntityTemplate(new ContentProducer() {
+			@Override
+			public void writeTo(OutputStream outputStream) throws IOException {
+				mapper.writeValue(outputStream, payload);
+			}
+		});
+		json.setContentType(ContentType.APPLICATION_JSON.toString());
+
+		HttpEntity entity = new CountingEntity(json, serializedBytes);
+		if (compress) {
+			entity = new GzipCompressingEntity(entity);
+		}
+		return new CountingEntity(entity, sentBytes);
+	}
+
+	/**
+	 * @return the {@link CallbackStatistics} of the delivered results
+	 */
+	public CallbackStatistics getStatistics() {
+		long deliveredCount = delivered.get();
+		long attemptCount = attempts.get();
+
+		CallbackStatistics statistics = new CallbackStatistics();
+		statistics.setPending(pending.get());
+		statistics.setActive(active.get());
+		statistics.setDelivered(deliveredCount);
+		statistics.setFailed(failed.get());
+		statistics.setAttempts(attemptCount);
+		statistics.setFailedAttempts(failedAttempts.get());
+		statistics.setSerializedBytes(serializedBytes.get());
+		statistics.setSentBytes(sentBytes.get());
+		if (deliveredCount > 0) {
+			statistics.setAverageDeliveryMillis(deliveryMillis.get() / deliveredCount);
+			statistics.setMaximumDeliveryMillis(maximumDeliveryMillis.get());
+		}
+		if (attemptCount > 0) {
+			statistics.setAverageAttemptMillis(attemptMillis.get() / attemptCount);
+		}
+		return statistics;
+	}
+
+	@Override
+	public void lifeCycleStopping(final LifeCycle event) {
+		stop();
+	}
+
+	/**
+	 * Stop delivering results. The attempts that are in progress may finish
+	 * within the callback timeout, and the results that are not delivered
+	 * then are delivered after a restart if they are in the
+	 * {@link CallbackOutbox}. The {@link CallbackClient} is closed as well,
+	 * because the dispatcher stops after the {@link BuildManager}.
+	 */
+	public void stop() {
+		retryExecutor.shutdownNow();
+		executor.shutdown();
+		try {
+			// An attempt takes at most the connect and the socket timeout
+			if (!executor.awaitTermination(2 * timeoutMillis, TimeUnit.MILLISECONDS)) {
+				log.info("Stopping {} callback attempts that are still in progress", active.get());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+		if (outbox != null) {
+			outbox.close();
+		}
+		try {
+			client.close();
+		}
+		catch (IOException e) {
+			log.warn("Failed to close the callback client", e);
+		}
+	}
+
+	/**
+	 * Compute the backoff before an attempt. The backoff doubles for every
+	 * attempt, up to {@value #MAXIMUM_BACKOFF_MILLIS} milliseconds, and a
+	 * random part of up to half of it is subtracted, so that the retries for
+	 * the results of builds that finished together are spread.
+	 * @param backoffMillis the backoff before the second attempt
+	 * @param attempt the number of attempts that failed
+	 * @param random the {@link Random} for the jitter
+	 * @return the backoff in milliseconds
+	 */
+	static long getBackoff(final long backoffMillis, final int attempt, final Random random) {
+		long backoff = backoffMillis;
+		for (int i = 1; i < attempt && backoff < MAXIMUM_BACKOFF_MILLIS; i++) {
+			backoff *= 2;
+		}
+		backoff = Math.min(backoff, MAXIMUM_BACKOFF_MILLIS);
+		long jitter = (long) (random.nextDouble() * (backoff / 2));
+		return backoff - jitter;
+	}
+
+	private void submit(final Delivery delivery) {
+		synchronized (this) {
+			Host host = hosts.get(delivery.host);
+			if (host == null) {
+				host = new Host();
+				hosts.put(delivery.host, host);
+			}
+			if (host.active >= connectionsPerHost) {
+				host.queue.add(delivery);
+				return;
+			}
+			host.active++;
+		}
+		execute(delivery);
+	}
+
+	/**
+	 * Release the connection of a finished attempt, and start the next
+	 * attempt that waits for the host.
+	 */
+	private void release(final String hostName) {
+		Delivery next;
+		synchronized (this) {
+			Host host = hosts.get(hostName);
+			next = host.queue.poll();
+			if (next == null && --host.active == 0) {
+				hosts.remove(hostName);
+			}
+		}
+		if (next != null) {
+			execute(next);
+		}
+	}
+
+	private void execute(final Delivery delivery) {
+		try {
+			executor.execute(delivery);
+		}
+		catch (RuntimeException e) {
+			log.warn("Could not return build result to: {}, the dispatcher is stopped", delivery.callbackUrl);
+		}
+	}
+
+	private static void updateMaximum(final AtomicLong maximum, final long value) {
+		long current;
+		while (value > (current = maximum.get())) {
+			if (maximum.compareAndSet(current, value)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The deliveries for a host. Guarded by the {@link CallbackDispatcher}.
+	 */
+	private static class Host {
+
+		private final Queue<Delivery> queue = Queues.newArrayDeque();
+		private int active;
+
+	}
+
+	/**
+	 * Counts the bytes that an {@link HttpEntity} writes.
+	 */
+	private static class CountingEntity extends HttpEntityWrapper {
+
+		private final AtomicLong count;
+
+		CountingEntity(final HttpEntity entity, final AtomicLong count) {
+			super(entity);
+			this.count = count;
+		}
+
+		@Override
+		public void writeTo(final OutputStream outputStream) throws IOException {
+			CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+			try {
+				super.writeTo(countingOutputStream);
+			}
+			finally {
+				count.addAndGet(countingOutputStream.getCount());
+			}
+		}
+
+	}
+
+	/**
+	 * The delivery of one result, or of a batch of results, to a callback URL.
+	 */
+	private class Delivery implements Runnable {
+
+		private final String callbackUrl;
+		private final String host;
+		private final boolean batch;
+		private final List<BuildResult> results = Lists.newArrayList();
+		private final long created = System.nanoTime();
+		private long createdAt = Long.MAX_VALUE;
+		private int attempt;
+
+		Delivery(final String callbackUrl, final boolean batch) {
+			this.callbackUrl = callbackUrl;
+			this.host = CallbackClient.getHost(callbackUrl);
+			this.batch = batch;
+		}
+
+		private void add(final BuildResult result, final long resultCreatedAt) {
+			results.add(result);
+			createdAt = Math.min(createdAt, resultCreatedAt);
+		}
+
+		@Override
+		public void run() {
+			boolean success = false;
+			long start = System.nanoTime();
+			active.incrementAndGet();
+			try {
+				success = post();
+			}
+			finally {
+				active.decrementAndGet();
+				attempts.incrementAndGet();
+				attemptMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+				release(host);
+			}
+
+			int count = results.size();
+			if (success) {
+				complete();
+				long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - created);
+				delivered.addAndGet(count);
+				deliveryMillis.addAndGet(millis * count);
+				updateMaximum(maximumDeliveryMillis, millis);
+				log.info("{} build result(s) successfully returned to: {}", count, callbackUrl);
+				return;
+			}
+
+			failedAttempts.incrementAndGet();
+			if (++attempt == maximumAttempts) {
+				failed.addAndGet(count);
+				log.error("Could not return {} build result(s) to: {}", count, callbackUrl);
+			}
+
+			if (attempt < maximumAttempts || isRetained()) {
+				retry(getBackoff(backoffMillis, attempt, ThreadLocalRandom.current()));
+			}
+			else {
+				log.error("Giving up to return build result(s) of {} to: {}", getIdempotencyKey(), callbackUrl);
+				complete();
+			}
+		}
+
+		/**
+		 * @return true if the results are kept in the {@link CallbackOutbox}
+		 * 		until they are delivered
+		 */
+		private boolean isRetained() {
+			return outbox != null && System.currentTimeMillis() - createdAt < retentionMillis;
+		}
+
+		private void complete() {
+			pending.addAndGet(-results.size());
+			if (outbox != null) {
+				for (BuildResult result : results) {
+					outbox.remove(result.getUuid());
+				}
+			}
+		}
+
+		private String getIdempotencyKey() {
+			List<String> uuids = Lists.newArrayListWithCapacity(results.size());
+			for (BuildResult result : results) {
+				uuids.add(String.valueOf(result.getUuid()));
+			}
+			return Joiner.on(',').join(uuids);
+		}
+
+		private boolean post() {
+			try {
+				boolean compress = client.isCompressed(callbackUrl);
+				HttpPost post = client.createPost(callbackUrl, createEntity(batch ? results : results.get(0), compress));
+				post.setHeader(IDEMPOTENCY_KEY_HEADER, getIdempotencyKey());
+				int status = client.execute(post, compress);
+				if (status >= 200 && status < 300) {
+					return true;
+				}
+				log.warn("Could not return build result to: {}, status was: {}", callbackUrl, status);
+			}
+			catch (IOException | RuntimeException e) {
+				log.warn("Could not return build result to: " + callbackUrl, e);
+			}
+			return false;
+		}
+
+		private void retry(final long delayMillis) {
+			log.info("Retrying to return build result to: {} in {} ms", callbackUrl, delayMillis);
+			try {
+				retryExecutor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						submit(Delivery.this);
+					}
+				}, delayMillis, TimeUnit.MILLISECONDS);
+			}
+			catch (RuntimeException e) {
+				log.warn("Could not return build result to: {}, the dispatcher is stopped", callbackUrl);
+			}
+		}
+
+	}
+
+}
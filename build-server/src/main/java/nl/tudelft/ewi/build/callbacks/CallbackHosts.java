@@ -0,0 +1,52 @@
+package nl.tudelft.ewi.build.callbacks;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Sets;
+
+/**
+ * The {@code CallbackHosts} are the receiving hosts that opted in to a
+ * feature in the configuration. A host is listed either by its name, or by
+ * its name and port.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class CallbackHosts {
+
+	private final Set<String> hosts = Sets.newHashSet();
+
+	/**
+	 * Create {@code CallbackHosts}.
+	 * @param hosts the configured hosts, may be null
+	 */
+	public CallbackHosts(final Collection<String> hosts) {
+		if (hosts != null) {
+			for (String host : hosts) {
+				this.hosts.add(host.toLowerCase(Locale.ROOT));
+			}
+		}
+	}
+
+	/**
+	 * @param url a callback URL
+	 * @return true if the host of the URL is listed
+	 */
+	public boolean contains(final String url) {
+		if (hosts.isEmpty()) {
+			return false;
+		}
+		try {
+			URI uri = URI.create(url);
+			String host = Strings.nullToEmpty(uri.getHost()).toLowerCase(Locale.ROOT);
+			return hosts.contains(host) || hosts.contains(host + ":" + uri.getPort());
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,349 @@
+package nl.tudelft.ewi.build.callbacks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.jaxrs.json.MappingModule;
+import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+
+/**
+ * The {@code CallbackOutbox} keeps the build results that are not yet
+ * returned to their callback URL on disk, so that they are delivered after
+ * the server restarts. Results and the marks of delivered results are
+ * appended as lines of JSON to a single file. The writes are group
+ * committed: a single thread writes all writes that were requested while
+ * the previous writes were forced to disk, and forces them at once.
+ *
+ * Once the file holds more delivered results than pending results, it is
+ * compacted by writing the pending results to a new file, which replaces
+ * the old file. A result that was partially written before a crash is
+ * discarded.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class CallbackOutbox {
+
+	private static final String FILE_NAME = "outbox.jsonl";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final byte LINE_TERMINATOR = '\n';
+
+	/**
+	 * Minimum number of delivered results in the file before it is compacted.
+	 */
+	private static final int COMPACTION_MINIMUM = 1000;
+
+	/**
+	 * Marks the end of the writes for the writer.
+	 */
+	private static final Write CLOSE = new Write(null);
+
+	private final File file;
+	private final ObjectMapper mapper;
+	private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+	private final Thread writer;
+
+	// Guarded by itself, and only changed by the writer once it is started
+	private final Map<UUID, Entry> pending = Maps.newLinkedHashMap();
+
+	// Only accessed by the writer once it is started
+	private FileChannel channel;
+	private int delivered;
+
+	// Guarded by this
+	private boolean closed;
+	private volatile long commits;
+
+	/**
+	 * Open a {@code CallbackOutbox}.
+	 * @param directory the directory for the outbox file
+	 * @throws IOException if the outbox could not be read
+	 */
+	public CallbackOutbox(final File directory) throws IOException {
+		Preconditions.checkNotNull(directory);
+		this.file = new File(directory, FILE_NAME);
+		this.mapper = new ObjectMapper();
+		mapper.registerModule(new MappingModule());
+		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create outbox directory " + directory);
+		}
+
+		load();
+		compact();
+		this.writer = new Thread(new Writer(), "callback-outbox");
+		writer.setDaemon(true);
+		writer.start();
+		log.info("Opened callback outbox with {} pending results in {}", pending.size(), directory);
+	}
+
+	private void load() throws IOException {
+		if(!file.exists()) {
+			return;
+		}
+
+		byte[] data = Files.readAllBytes(file.toPath());
+		int start = 0;
+		for(int i = 0; i < data.length; i++) {
+			if(data[i] == LINE_TERMINATOR) {
+				try {
+					apply(mapper.readValue(data, start, i - start, Entry.class));
+				}
+				catch (IOException e) {
+					log.warn("Skipping unreadable entry at " + start + " in " + file, e);
+				}
+				start = i + 1;
+			}
+		}
+		if(start < data.length) {
+			log.warn("Discarding incomplete entry at {} in {}", start, file);
+		}
+	}
+
+	private void apply(final Entry entry) {
+		if(entry.isDelivered()) {
+			pending.remove(entry.getUuid());
+			delivered++;
+		}
+		else {
+			pending.put(entry.getUuid(), entry);
+		}
+	}
+
+	/**
+	 * @return the results that are not delivered yet
+	 */
+	public List<Entry> getPending() {
+		synchronized (pending) {
+			return Lists.newArrayList(pending.values());
+		}
+	}
+
+	/**
+	 * Add a result to the outbox.
+	 * @param callbackUrl the callback URL
+	 * @param result the {@link BuildResult}
+	 * @return a {@link ListenableFuture} that completes once the result is
+	 * 		on disk
+	 */
+	public ListenableFuture<Void> add(final String callbackUrl, final BuildResult result) {
+		Entry entry = new Entry();
+		entry.setUuid(result.getUuid());
+		entry.setCallbackUrl(callbackUrl);
+		entry.setCreatedAt(System.currentTimeMillis());
+		entry.setResult(result);
+		return write(entry);
+	}
+
+	/**
+	 * Mark a result as delivered, so that it is not delivered again after
+	 * the server restarts.
+	 * @param uuid {@link UUID} of the build
+	 * @return a {@link ListenableFuture} that completes once the mark is on
+	 * 		disk
+	 */
+	public ListenableFuture<Void> remove(final UUID uuid) {
+		Entry entry = new Entry();
+		entry.setUuid(uuid);
+		entry.setDelivered(true);
+		return write(entry);
+	}
+
+	private synchronized ListenableFuture<Void> write(final Entry entry) {
+		Write write = new Write(entry);
+		if(closed) {
+			write.future.setException(new IOException("The callback outbox is closed"));
+		}
+		else {
+			writes.add(write);
+		}
+		return write.future;
+	}
+
+	/**
+	 * @return the number of times writes were forced to disk
+	 */
+	public long getCommits() {
+		return commits;
+	}
+
+	/**
+	 * Stop writing to the outbox. This waits for the writes that were
+	 * requested before, later writes fail.
+	 */
+	public void close() {
+		synchronized (this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			writes.add(CLOSE);
+		}
+		try {
+			writer.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Replace the file by a file with only the pending results.
+	 */
+	private void compact() throws IOException {
+		File temporary = new File(file.getParentFile(), FILE_NAME + TEMPORARY_SUFFIX);
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		synchronized (pending) {
+			for(Entry entry : pending.values()) {
+				outputStream.write(mapper.writeValueAsBytes(entry));
+				outputStream.write(LINE_TERMINATOR);
+			}
+		}
+
+		try(FileChannel temporaryChannel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(temporaryChannel, ByteBuffer.wrap(outputStream.toByteArray()));
+			temporaryChannel.force(false);
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		FileChannel previous = channel;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		delivered = 0;
+		if(previous != null) {
+			previous.close();
+		}
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * An entry in the outbox, either a result that is to be delivered or the
+	 * mark of a delivered result.
+	 */
+	@Data
+	public static class Entry {
+
+		private UUID uuid;
+
+		private String callbackUrl;
+
+		/**
+		 * Time at which the result was added, in milliseconds since the epoch.
+		 */
+		private long createdAt;
+
+		private BuildResult result;
+
+		private boolean delivered;
+
+	}
+
+	private static class Write {
+
+		private final Entry entry;
+		private final SettableFuture<Void> future = SettableFuture.create();
+
+		Write(final Entry entry) {
+			this.entry = entry;
+		}
+
+	}
+
+	private class Writer implements Runnable {
+
+		@Override
+		public void run() {
+			List<Write> batch = Lists.newArrayList();
+			boolean running = true;
+			while(running) {
+				try {
+					batch.add(writes.take());
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+				writes.drainTo(batch);
+				running = !batch.remove(CLOSE);
+				commit(batch);
+				batch.clear();
+			}
+
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				log.warn("Failed to close the callback outbox " + file, e);
+			}
+		}
+
+		private void commit(final List<Write> batch) {
+			if(batch.isEmpty()) {
+				return;
+			}
+			try {
+				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+				for(Write write : batch) {
+					outputStream.write(mapper.writeValueAsBytes(write.entry));
+					outputStream.write(LINE_TERMINATOR);
+				}
+				writeFully(channel, ByteBuffer.wrap(outputStream.toByteArray()));
+				channel.force(false);
+				commits++;
+			}
+			catch (IOException e) {
+				log.error("Failed to write to the callback outbox " + file, e);
+				for(Write write : batch) {
+					write.future.setException(e);
+				}
+				return;
+			}
+
+			synchronized (pending) {
+				for(Write write : batch) {
+					apply(write.entry);
+				}
+			}
+			for(Write write : batch) {
+				write.future.set(null);
+			}
+
+			if(delivered >= COMPACTION_MINIMUM && delivered > pending.size()) {
+				try {
+					compact();
+				}
+				catch (IOException e) {
+					log.warn("Failed to compact the callback outbox " + file, e);
+				}
+			}
+		}
+
+	}
+
+}
@@ -3,51 +3,53 @@ package nl.tudelft.ewi.build.extensions.plugins;
 import com.google.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
 import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.callbacks.CallbackClient;
 import nl.tudelft.ewi.build.jaxrs.models.BuildInstruction;
 import nl.tudelft.ewi.build.jaxrs.models.plugins.FileHookPlugin;
-import org.jboss.resteasy.util.Base64;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
+import javax.ws.rs.ProcessingException;
 import java.io.File;
+import java.io.IOException;
 
 /**
  * The {@code AbstractFileHookInterpreter} can be used for implementations of
  * {@link FileHookPlugin} that want to send a file from the build to a destination.
+ * The file is streamed from disk with the {@link CallbackClient}, and compressed
+ * with gzip while it is sent if the destination host is in
+ * {@link Config#getCallbackGzipHosts()} and accepts it.
  *
  * @author Jan-Willem Gmelig Meyling
  */
 @Slf4j
 public abstract class AbstractFileHookInterpreter<T extends FileHookPlugin<V>, V extends BuildInstruction> implements PluginInterpreter<T, V> {
 
-    private final Config config;
+    private final CallbackClient client;
 
     @Inject
-    public AbstractFileHookInterpreter(Config config) {
-        this.config = config;
+    public AbstractFileHookInterpreter(CallbackClient client) {
+        this.client = client;
     }
 
     @Override
     public void after(T plugin, V buildInstruction, File stagingDirectory) {
-        String userPass = config.getClientId() + ":"
-                + config.getClientSecret();
-        String authorization = "Basic "
-                + Base64.encodeBytes(userPass.getBytes());
         File file = new File(stagingDirectory, plugin.getFilePath());
 
         if(file.exists()) {
-            Client client = ClientBuilder.newClient();
+            ContentType contentType = plugin.getContentType() != null
+                    ? ContentType.parse(plugin.getContentType()) : ContentType.DEFAULT_BINARY;
 
+            log.info("Sending {}", plugin);
+            int status;
             try {
-                log.info("Sending {}", plugin);
-                client.target(plugin.getCallbackUrl())
-                    .request()
-                    .header("Authorization", authorization)
-                    .post(Entity.entity(file, plugin.getContentType()));
+                status = client.send(plugin.getCallbackUrl(), new FileEntity(file, contentType));
             }
-            finally {
-                client.close();
+            catch (IOException e) {
+                throw new ProcessingException("Failed to send " + plugin, e);
+            }
+            if(status < 200 || status >= 300) {
+                throw new ProcessingException("Failed to send " + plugin + ", status was: " + status);
             }
         }
         else {
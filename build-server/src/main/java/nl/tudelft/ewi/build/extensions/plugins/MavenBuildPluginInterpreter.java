@@ -3,7 +3,7 @@ package nl.tudelft.ewi.build.extensions.plugins;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
-import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.callbacks.CallbackClient;
 import nl.tudelft.ewi.build.jaxrs.models.MavenBuildInstruction;
 import nl.tudelft.ewi.build.jaxrs.models.plugins.MavenBuildPlugin;
 
@@ -20,8 +20,8 @@ import java.util.List;
 public class MavenBuildPluginInterpreter extends AbstractFileHookInterpreter<MavenBuildPlugin, MavenBuildInstruction> {
 
     @Inject
-    public MavenBuildPluginInterpreter(Config config) {
-        super(config);
+    public MavenBuildPluginInterpreter(CallbackClient client) {
+        super(client);
     }
 
     @Override
@@ -0,0 +1,335 @@
+package nl.tudelft.ewi.build.extensions.staging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.Config;
+
+/**
+ * The {@code CheckoutStore} keeps the checked out files of every tree that
+ * was built, keyed by the id of the tree. When a commit with the same tree is
+ * built again, for example a rebuild or a commit that only changed its
+ * message, its files are placed in the staging directory from the store
+ * instead of being checked out again.
+ *
+ * The files are placed as copy-on-write clones on filesystems that support
+ * them. Otherwise they are hard links to read-only files, and the size and
+ * modification time of every file are checked before a tree is used again,
+ * so that a tree that was modified by a build anyway is checked out again
+ * instead. When the trees together are larger than
+ * {@link Config#getCheckoutStoreMaximumSize()}, the least recently used trees
+ * that are not in use are removed.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+@Singleton
+public class CheckoutStore {
+
+	private static final String TREE = "tree";
+	private static final String MANIFEST = "manifest";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final String REMOVED_SUFFIX = ".removed";
+
+	private final File directory;
+	private final long maximumSize;
+	private final LinkMode linkMode;
+
+	// Guarded by this
+	private final Map<String, Checkout> checkouts = Maps.newHashMap();
+
+	@Inject
+	public CheckoutStore(final Config config) {
+		String checkoutDirectory = config.getCheckoutStoreDirectory();
+		this.directory = Strings.isNullOrEmpty(checkoutDirectory) ? null : new File(checkoutDirectory);
+		this.maximumSize = config.getCheckoutStoreMaximumSize();
+		this.linkMode = directory != null ? LinkMode.of(config.getCheckoutLinkMode(), directory) : null;
+
+		if (directory != null) {
+			load();
+			log.info("Using {} checked out trees in {}, linked as {}", checkouts.size(), directory, linkMode);
+		}
+	}
+
+	/**
+	 * @return true if checked out trees are stored
+	 */
+	public boolean isEnabled() {
+		return directory != null;
+	}
+
+	private void load() {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			log.warn("Could not create checkout directory {}", directory);
+			return;
+		}
+
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(REMOVED_SUFFIX) || file.getName().endsWith(TEMPORARY_SUFFIX)) {
+				// A tree that was not removed or stored completely before a restart
+				FileUtils.deleteQuietly(file);
+			}
+			else if (new File(file, TREE).isDirectory() && file.getName().indexOf('-') > 0) {
+				String name = file.getName().substring(0, file.getName().indexOf('-'));
+				if (checkouts.containsKey(name)) {
+					FileUtils.deleteQuietly(file);
+					continue;
+				}
+				Checkout checkout = new Checkout(name, file);
+				checkout.size = FileUtils.sizeOfDirectory(file);
+				checkout.lastUsed = file.lastModified();
+				checkouts.put(name, checkout);
+			}
+		}
+	}
+
+	/**
+	 * Place the files of a tree in a staging directory, if the tree is in the
+	 * store.
+	 * @param treeId the id of the tree
+	 * @param stagingDirectory the staging directory
+	 * @return true if the files were placed, false if the tree is not in the
+	 * 		store
+	 * @throws IOException if the files could not be placed
+	 */
+	public boolean checkout(final ObjectId treeId, final File stagingDirectory) throws IOException {
+		Checkout checkout = acquire(treeId.name());
+		if (checkout == null) {
+			return false;
+		}
+
+		try {
+			if (linkMode == LinkMode.HARDLINK && !checkout.isIntact()) {
+				log.warn("Files of tree {} were modified, removing it from the checkout store", treeId.name());
+				remove(checkout);
+				return false;
+			}
+			linkMode.link(new File(checkout.directory, TREE), stagingDirectory);
+			return true;
+		}
+		finally {
+			release(checkout);
+		}
+	}
+
+	/**
+	 * Store the files of a tree that was checked out into a staging
+	 * directory. This must be done before the build can modify the files.
+	 * @param treeId the id of the tree
+	 * @param stagingDirectory the staging directory
+	 * @throws IOException if the files could not be stored
+	 */
+	public void store(final ObjectId treeId, final File stagingDirectory) throws IOException {
+		String name = treeId.name();
+		synchronized (this) {
+			if (checkouts.containsKey(name)) {
+				return;
+			}
+		}
+
+		// Every stored tree has its own directory, so that a tree can be stored
+		// again while a modified copy is still being removed
+		Checkout checkout = new Checkout(name, new File(directory, name + "-" + UUID.randomUUID()));
+		File temporary = new File(directory, checkout.directory.getName() + TEMPORARY_SUFFIX);
+		try {
+			LinkMode.copy(stagingDirectory, new File(temporary, TREE), Constants.DOT_GIT);
+			if (linkMode == LinkMode.HARDLINK) {
+				writeManifest(temporary);
+			}
+
+			checkout.size = FileUtils.sizeOfDirectory(temporary);
+			checkout.lastUsed = System.currentTimeMillis();
+			synchronized (this) {
+				if (checkouts.containsKey(name)) {
+					// Stored by a concurrent build of the same tree
+					return;
+				}
+				if (!temporary.renameTo(checkout.directory)) {
+					throw new IOException("Could not store tree " + name + " in " + checkout.directory);
+				}
+				checkouts.put(name, checkout);
+			}
+			log.info("Stored tree {} in {}", name, checkout.directory);
+		}
+		finally {
+			FileUtils.deleteQuietly(temporary);
+		}
+		evict();
+	}
+
+	/**
+	 * Make the files of a tree read-only, and write their sizes and
+	 * modification times to the manifest.
+	 */
+	private static void writeManifest(final File checkoutDirectory) throws IOException {
+		final Path tree = new File(checkoutDirectory, TREE).toPath();
+		try (final BufferedWriter writer = Files.newBufferedWriter(new File(checkoutDirectory, MANIFEST).toPath(),
+				Charsets.UTF_8)) {
+			Files.walkFileTree(tree, new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+					if (attributes.isRegularFile()) {
+						file.toFile().setWritable(false, false);
+						writer.write(attributes.size() + "\t" + attributes.lastModifiedTime().toMillis() + "\t"
+								+ tree.relativize(file) + "\n");
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+			});
+		}
+	}
+
+	private synchronized Checkout acquire(final String name) {
+		Checkout checkout = checkouts.get(name);
+		if (checkout == null) {
+			return null;
+		}
+		checkout.users++;
+		checkout.lastUsed = System.currentTimeMillis();
+		return checkout;
+	}
+
+	private void release(final Checkout checkout) {
+		boolean removed;
+		synchronized (this) {
+			checkout.users--;
+			removed = checkout.removed && checkout.users == 0;
+		}
+		if (removed) {
+			delete(checkout);
+		}
+		else if (!checkout.removed) {
+			checkout.directory.setLastModified(System.currentTimeMillis());
+			evict();
+		}
+	}
+
+	private synchronized void remove(final Checkout checkout) {
+		if (checkouts.get(checkout.name) == checkout) {
+			checkouts.remove(checkout.name);
+		}
+		checkout.removed = true;
+	}
+
+	private void delete(final Checkout checkout) {
+		// Renamed first, so that an incomplete tree is not used after a restart
+		File target = new File(directory, checkout.directory.getName() + REMOVED_SUFFIX);
+		if (!checkout.directory.renameTo(target)) {
+			log.warn("Could not remove checked out tree {}", checkout.directory);
+			return;
+		}
+		log.info("Removing checked out tree {}", checkout.directory);
+		FileUtils.deleteQuietly(target);
+	}
+
+	/**
+	 * Remove the least recently used trees that are not in use, until the
+	 * trees fit in the maximum size.
+	 */
+	private void evict() {
+		List<Checkout> removed = Lists.newArrayList();
+		synchronized (this) {
+			long size = 0;
+			for (Checkout checkout : checkouts.values()) {
+				size += checkout.size;
+			}
+			if (size <= maximumSize) {
+				return;
+			}
+
+			List<Checkout> leastRecentlyUsed = Lists.newArrayList(checkouts.values());
+			Collections.sort(leastRecentlyUsed, new Comparator<Checkout>() {
+				@Override
+				public int compare(Checkout o1, Checkout o2) {
+					return Long.compare(o1.lastUsed, o2.lastUsed);
+				}
+			});
+
+			for (Checkout checkout : leastRecentlyUsed) {
+				if (size <= maximumSize) {
+					break;
+				}
+				if (checkout.users > 0) {
+					continue;
+				}
+				remove(checkout);
+				size -= checkout.size;
+				removed.add(checkout);
+			}
+		}
+
+		for (Checkout checkout : removed) {
+			delete(checkout);
+		}
+	}
+
+	/**
+	 * The stored files of a tree.
+	 */
+	private static class Checkout {
+
+		private final String name;
+		private final File directory;
+
+		// Guarded by the CheckoutStore
+		private long size;
+		private long lastUsed;
+		private int users;
+		private boolean removed;
+
+		Checkout(final String name, final File directory) {
+			this.name = name;
+			this.directory = directory;
+		}
+
+		/**
+		 * @return true if the files still have the size and modification time
+		 * 		of the manifest
+		 */
+		private boolean isIntact() throws IOException {
+			Path tree = new File(directory, TREE).toPath();
+			List<String> lines = Files.readAllLines(new File(directory, MANIFEST).toPath(), Charsets.UTF_8);
+			for (String line : lines) {
+				String[] fields = line.split("\t", 3);
+				Path file = tree.resolve(fields[2]);
+				if (!Files.isRegularFile(file)
+						|| Files.size(file) != Long.parseLong(fields[0])
+						|| Files.getLastModifiedTime(file).toMillis() != Long.parseLong(fields[1])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+}
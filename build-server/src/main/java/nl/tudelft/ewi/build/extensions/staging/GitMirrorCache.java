@@ -0,0 +1,332 @@
+package nl.tudelft.ewi.build.extensions.staging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import lombok.extern.slf4j.Slf4j;
+import nl.tudelft.ewi.build.Config;
+
+/**
+ * The {@code GitMirrorCache} keeps a bare mirror of every repository that is
+ * built, so that a build only fetches the commits that were pushed since the
+ * previous build of the repository, and no network access is needed at all
+ * when the commit was already fetched. The staging directory is then cloned
+ * from the mirror on the local disk.
+ *
+ * A mirror is updated under the write lock of its repository, and cloned
+ * under its read lock, so that builds of the same repository can clone in
+ * parallel. When the mirrors together are larger than
+ * {@link Config#getGitMirrorMaximumSize()}, the least recently used mirrors
+ * that are not in use are removed.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+@Singleton
+public class GitMirrorCache {
+
+	private static final String REMOVED_SUFFIX = ".removed";
+
+	private static final RefSpec[] REF_SPECS = {
+		new RefSpec("+refs/heads/*:refs/heads/*"),
+		new RefSpec("+refs/tags/*:refs/tags/*")
+	};
+
+	private final File directory;
+	private final long maximumSize;
+
+	// Guarded by this
+	private final Map<String, Mirror> mirrors = Maps.newHashMap();
+
+	@Inject
+	public GitMirrorCache(final Config config) {
+		String mirrorDirectory = config.getGitMirrorDirectory();
+		this.directory = Strings.isNullOrEmpty(mirrorDirectory) ? null : new File(mirrorDirectory);
+		this.maximumSize = config.getGitMirrorMaximumSize();
+
+		if (directory != null) {
+			load();
+			log.info("Using {} git mirrors in {}", mirrors.size(), directory);
+		}
+	}
+
+	/**
+	 * @return true if repositories are mirrored
+	 */
+	public boolean isEnabled() {
+		return directory != null;
+	}
+
+	private void load() {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			log.warn("Could not create git mirror directory {}", directory);
+			return;
+		}
+
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.getName().endsWith(REMOVED_SUFFIX)) {
+				// A mirror that was not removed completely before a restart
+				FileUtils.deleteQuietly(file);
+			}
+			else if (file.isDirectory()) {
+				Mirror mirror = new Mirror(file);
+				mirror.size = FileUtils.sizeOfDirectory(file);
+				mirror.lastUsed = file.lastModified();
+				mirrors.put(file.getName(), mirror);
+			}
+		}
+	}
+
+	/**
+	 * Get the mirror of a repository, and lock it for reading. If the mirror
+	 * does not contain the commit yet, the commits that are missing are
+	 * fetched first. When the branch of the commit is known, only that
+	 * branch is fetched, unless it does not contain the commit. The lock must
+	 * be unlocked once the mirror is cloned.
+	 * @param repositoryUrl URL of the repository
+	 * @param branchName the branch of the commit, may be null
+	 * @param commitId the commit that is built
+	 * @return the locked {@link Mirror}
+	 * @throws IOException if the repository could not be fetched
+	 */
+	public Mirror acquire(final String repositoryUrl, final String branchName, final String commitId)
+			throws IOException {
+		String name = Hashing.sha1().hashString(repositoryUrl, Charsets.UTF_8).toString();
+		while (true) {
+			Mirror mirror = getMirror(name);
+			Lock readLock = mirror.lock.readLock();
+			Lock writeLock = mirror.lock.writeLock();
+
+			readLock.lock();
+			try {
+				if (isCurrent(name, mirror) && mirror.contains(commitId)) {
+					return used(mirror);
+				}
+			}
+			catch (IOException | RuntimeException e) {
+				readLock.unlock();
+				throw e;
+			}
+			readLock.unlock();
+
+			writeLock.lock();
+			try {
+				if (!isCurrent(name, mirror)) {
+					// The mirror was evicted while it was not locked
+					continue;
+				}
+				if (!mirror.contains(commitId)) {
+					mirror.fetch(repositoryUrl, branchName, commitId);
+				}
+				// Downgrade to the read lock
+				readLock.lock();
+			}
+			finally {
+				writeLock.unlock();
+			}
+			return used(mirror);
+		}
+	}
+
+	private synchronized boolean isCurrent(final String name, final Mirror mirror) {
+		return mirrors.get(name) == mirror;
+	}
+
+	private Mirror used(final Mirror mirror) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			mirror.lastUsed = now;
+		}
+		mirror.directory.setLastModified(now);
+		return mirror;
+	}
+
+	private synchronized Mirror getMirror(final String name) {
+		Mirror mirror = mirrors.get(name);
+		if (mirror == null) {
+			mirror = new Mirror(new File(directory, name));
+			mirrors.put(name, mirror);
+		}
+		return mirror;
+	}
+
+	/**
+	 * Remove the least recently used mirrors that are not in use, until the
+	 * mirrors fit in the maximum size.
+	 */
+	private void evict() {
+		List<File> removed = Lists.newArrayList();
+		synchronized (this) {
+			long size = 0;
+			for (Mirror mirror : mirrors.values()) {
+				size += mirror.size;
+			}
+			if (size <= maximumSize) {
+				return;
+			}
+
+			List<Mirror> leastRecentlyUsed = Lists.newArrayList(mirrors.values());
+			Collections.sort(leastRecentlyUsed, new Comparator<Mirror>() {
+				@Override
+				public int compare(Mirror o1, Mirror o2) {
+					return Long.compare(o1.lastUsed, o2.lastUsed);
+				}
+			});
+
+			for (Mirror mirror : leastRecentlyUsed) {
+				if (size <= maximumSize) {
+					break;
+				}
+				Lock writeLock = mirror.lock.writeLock();
+				if (!writeLock.tryLock()) {
+					continue;
+				}
+				try {
+					// Renamed first, so that a new mirror can be created right away
+					File target = new File(directory, mirror.directory.getName() + REMOVED_SUFFIX);
+					if (mirror.directory.exists() && !mirror.directory.renameTo(target)) {
+						log.warn("Could not remove git mirror {}", mirror.directory);
+						continue;
+					}
+					mirrors.remove(mirror.directory.getName());
+					size -= mirror.size;
+					removed.add(target);
+				}
+				finally {
+					writeLock.unlock();
+				}
+			}
+		}
+
+		for (File file : removed) {
+			log.info("Removing git mirror {}", file);
+			FileUtils.deleteQuietly(file);
+		}
+	}
+
+	/**
+	 * A bare mirror of a repository.
+	 */
+	public class Mirror {
+
+		private final File directory;
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		// Guarded by the GitMirrorCache
+		private long size;
+		private long lastUsed;
+
+		Mirror(final File directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * @return the directory of the bare repository
+		 */
+		public File getDirectory() {
+			return directory;
+		}
+
+		/**
+		 * Unlock the mirror after it was cloned.
+		 */
+		public void release() {
+			lock.readLock().unlock();
+			evict();
+		}
+
+		private boolean contains(final String commitId) throws IOException {
+			if (commitId == null || !ObjectId.isId(commitId) || !new File(directory, "objects").isDirectory()) {
+				return false;
+			}
+			try (Repository repository = new FileRepositoryBuilder().setGitDir(directory).setMustExist(true).build()) {
+				return repository.hasObject(ObjectId.fromString(commitId));
+			}
+		}
+
+		private void fetch(final String repositoryUrl, final String branchName, final String commitId)
+				throws IOException {
+			long start = System.nanoTime();
+			if (!new File(directory, "objects").isDirectory()) {
+				log.info("Creating git mirror of {} in {}", repositoryUrl, directory);
+				try {
+					Git.init().setBare(true).setDirectory(directory).call().close();
+				}
+				catch (GitAPIException e) {
+					throw new IOException(e);
+				}
+			}
+
+			GitObjectStatistics before = GitObjectStatistics.of(directory);
+			if (branchName != null) {
+				String branch = Constants.R_HEADS + branchName;
+				try {
+					fetch(repositoryUrl, false, new RefSpec("+" + branch + ":" + branch));
+				}
+				catch (IOException e) {
+					log.info("Could not fetch branch " + branchName + " of " + repositoryUrl, e);
+				}
+			}
+			if (!contains(commitId)) {
+				if (branchName != null) {
+					log.info("Branch {} of {} does not contain {}, fetching all branches",
+							branchName, repositoryUrl, commitId);
+				}
+				fetch(repositoryUrl, true, REF_SPECS);
+			}
+			GitObjectStatistics fetched = GitObjectStatistics.of(directory).minus(before);
+
+			long size = FileUtils.sizeOfDirectory(directory);
+			synchronized (GitMirrorCache.this) {
+				this.size = size;
+			}
+			log.info("Fetched {} objects ({} bytes) from {} into git mirror in {} ms", fetched.getObjects(),
+					fetched.getBytes(), repositoryUrl, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+
+		private void fetch(final String repositoryUrl, final boolean removeDeletedRefs, final RefSpec... refSpecs)
+				throws IOException {
+			try (Git git = Git.open(directory)) {
+				git.fetch()
+					.setRemote(repositoryUrl)
+					.setRefSpecs(refSpecs)
+					.setRemoveDeletedRefs(removeDeletedRefs)
+					.call();
+			}
+			catch (GitAPIException e) {
+				throw new IOException(e);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,98 @@
+package nl.tudelft.ewi.build.extensions.staging;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import lombok.Value;
+
+/**
+ * The {@code GitObjectStatistics} are the number of objects in a Git object
+ * directory and the bytes that they take on disk. The difference before and
+ * after a fetch tells how much was transferred.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Value
+class GitObjectStatistics {
+
+	private static final int PACK_INDEX_MAGIC = 0xff744f63;
+	private static final int FANOUT_ENTRIES = 256;
+
+	private final long objects;
+
+	private final long bytes;
+
+	/**
+	 * Count the objects of a repository.
+	 * @param gitDirectory the Git directory of the repository
+	 * @return the {@code GitObjectStatistics}
+	 */
+	static GitObjectStatistics of(final File gitDirectory) {
+		long objects = 0;
+		long bytes = 0;
+
+		File objectDirectory = new File(gitDirectory, "objects");
+		File[] directories = objectDirectory.listFiles();
+		if (directories == null) {
+			return new GitObjectStatistics(0, 0);
+		}
+
+		for (File directory : directories) {
+			File[] files = directory.listFiles();
+			if (files == null) {
+				continue;
+			}
+			if (directory.getName().equals("pack")) {
+				for (File file : files) {
+					if (file.getName().endsWith(".pack")) {
+						bytes += file.length();
+					}
+					else if (file.getName().endsWith(".idx")) {
+						objects += readObjectCount(file);
+					}
+				}
+			}
+			else if (directory.getName().length() == 2) {
+				// Loose objects
+				for (File file : files) {
+					objects++;
+					bytes += file.length();
+				}
+			}
+		}
+		return new GitObjectStatistics(objects, bytes);
+	}
+
+	/**
+	 * The last entry of the fan-out table of a pack index is the number of
+	 * objects in the pack. Version 2 indexes start with a header.
+	 */
+	private static long readObjectCount(final File index) {
+		try (DataInputStream inputStream = new DataInputStream(new FileInputStream(index))) {
+			int skip = (FANOUT_ENTRIES - 1) * 4;
+			int first = inputStream.readInt();
+			if (first == PACK_INDEX_MAGIC) {
+				inputStream.readInt();
+			}
+			else {
+				skip -= 4;
+			}
+			inputStream.skipBytes(skip);
+			return inputStream.readInt() & 0xffffffffL;
+		}
+		catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param before the statistics before a fetch
+	 * @return the objects and bytes that were added since
+	 */
+	GitObjectStatistics minus(final GitObjectStatistics before) {
+		return new GitObjectStatistics(objects - before.objects, bytes - before.bytes);
+	}
+
+}
@@ -1,37 +1,206 @@
 package nl.tudelft.ewi.build.extensions.staging;
 
+import com.google.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
 import nl.tudelft.ewi.build.builds.Logger;
 import nl.tudelft.ewi.build.jaxrs.models.GitSource;
+import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.api.CloneCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * The {@code GitStagingDirectoryPreparer} clones a Git repository into the
+ * staging directory and checks out the requested commit. When the
+ * {@link GitMirrorCache} is enabled, the repository shares the objects of its
+ * local mirror instead of cloning from the remote.
+ *
+ * When the branch of the commit is known, only that branch is cloned, and
+ * all branches only if it does not contain the commit. The clone does not
+ * check out the default branch, so that only the tree of the commit is
+ * written to the staging directory. When the {@link CheckoutStore} is
+ * enabled and already contains the tree of the commit, the files are placed
+ * from the store instead of being checked out.
+ */
 @Slf4j
 public class GitStagingDirectoryPreparer implements StagingDirectoryPreparer<GitSource> {
 
+	private final GitMirrorCache mirrorCache;
+	private final CheckoutStore checkoutStore;
+
+	@Inject
+	public GitStagingDirectoryPreparer(GitMirrorCache mirrorCache, CheckoutStore checkoutStore) {
+		this.mirrorCache = mirrorCache;
+		this.checkoutStore = checkoutStore;
+	}
+
 	public void prepareStagingDirectory(GitSource source, Logger logger, File stagingDirectory) throws IOException {
-		Git git = cloneRepository(source, logger, stagingDirectory);
-		checkoutCommit(source, logger, git);
+		try (Git git = cloneRepository(source, logger, stagingDirectory)) {
+			ObjectId treeId = checkoutStore.isEnabled() ? resolveTree(git, source) : null;
+			if(treeId != null && checkoutStoredTree(source, git, treeId, stagingDirectory)) {
+				return;
+			}
+
+			checkoutCommit(source, logger, git);
+			if(treeId != null) {
+				try {
+					checkoutStore.store(treeId, stagingDirectory);
+				}
+				catch (IOException e) {
+					log.warn("Could not store tree " + treeId.name() + " in the checkout store", e);
+				}
+			}
+		}
 	}
 
 	private Git cloneRepository(GitSource source, Logger logger, File stagingDirectory) throws IOException {
+		if(!mirrorCache.isEnabled()) {
+			return cloneRepository(source.getRepositoryUrl(), source, logger, stagingDirectory);
+		}
+
+		GitMirrorCache.Mirror mirror;
+		try {
+			mirror = mirrorCache.acquire(source.getRepositoryUrl(), source.getBranchName(), source.getCommitId());
+		}
+		catch (IOException e) {
+			logger.println("[FATAL] Failed to fetch from repository: " + source.getRepositoryUrl());
+			throw e;
+		}
+
+		try {
+			return linkRepository(mirror.getDirectory(), source, logger, stagingDirectory);
+		}
+		finally {
+			mirror.release();
+		}
+	}
+
+	/**
+	 * Create a repository that shares the objects of the mirror, like a local
+	 * {@code git clone} does. Objects are never modified once written, so the
+	 * object files are hard links to those of the mirror, and no objects are
+	 * copied at all. The refs of the mirror become the remote branches and tags
+	 * of the repository.
+	 */
+	private Git linkRepository(File mirrorDirectory, GitSource source, Logger logger, File stagingDirectory)
+			throws IOException {
+		long start = System.nanoTime();
+		log.info("Linking from git mirror of repository: {}", source.getRepositoryUrl());
+		Git git;
+		try {
+			git = Git.init().setDirectory(stagingDirectory).call();
+		}
+		catch (GitAPIException e) {
+			logger.println("[FATAL] Failed to clone from repository: " + source.getRepositoryUrl());
+			throw new IOException(e);
+		}
+
+		try {
+			Repository repository = git.getRepository();
+			LinkMode.HARDLINK.link(new File(mirrorDirectory, "objects"), new File(repository.getDirectory(), "objects"));
+
+			String remote = Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/";
+			try (Repository mirror = new FileRepositoryBuilder().setGitDir(mirrorDirectory).setMustExist(true).build()) {
+				for(Map.Entry<String, Ref> entry : mirror.getRefDatabase().getRefs(Constants.R_HEADS).entrySet()) {
+					updateRef(repository, remote + entry.getKey(), entry.getValue().getObjectId());
+				}
+				for(Map.Entry<String, Ref> entry : mirror.getRefDatabase().getRefs(Constants.R_TAGS).entrySet()) {
+					updateRef(repository, Constants.R_TAGS + entry.getKey(), entry.getValue().getObjectId());
+				}
+			}
+
+			// Point the repository at the remote, as if it was cloned from there
+			StoredConfig gitConfig = repository.getConfig();
+			gitConfig.setString("remote", Constants.DEFAULT_REMOTE_NAME, "url", source.getRepositoryUrl());
+			gitConfig.setString("remote", Constants.DEFAULT_REMOTE_NAME, "fetch",
+					"+" + Constants.R_HEADS + "*:" + remote + "*");
+			gitConfig.save();
+		}
+		catch (IOException e) {
+			git.close();
+			logger.println("[FATAL] Failed to clone from repository: " + source.getRepositoryUrl());
+			throw e;
+		}
+
+		GitObjectStatistics linked = GitObjectStatistics.of(git.getRepository().getDirectory());
+		log.info("Linked {} objects ({} bytes) from git mirror of {} in {} ms", linked.getObjects(),
+				linked.getBytes(), source.getRepositoryUrl(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return git;
+	}
+
+	private Git cloneRepository(String uri, GitSource source, Logger logger, File stagingDirectory) throws IOException {
+		long start = System.nanoTime();
+		Git git = null;
 		try {
 			log.info("Cloning from repository: {}", source.getRepositoryUrl());
-			CloneCommand clone = Git.cloneRepository();
-			clone.setBare(false);
-			clone.setDirectory(stagingDirectory);
-            clone.setCloneAllBranches(true);
-            clone.setURI(source.getRepositoryUrl());
-            return clone.call();
+			if(source.getBranchName() != null) {
+				git = cloneBranch(uri, source, stagingDirectory);
+			}
+			if(git == null) {
+				git = clone(uri, stagingDirectory)
+					.setCloneAllBranches(true)
+					.call();
+			}
 		}
 		catch (GitAPIException e) {
 			logger.println("[FATAL] Failed to clone from repository: " + source.getRepositoryUrl());
 			throw new IOException(e);
 		}
+
+		GitObjectStatistics cloned = GitObjectStatistics.of(git.getRepository().getDirectory());
+		log.info("Cloned {} objects ({} bytes) from {} in {} ms", cloned.getObjects(), cloned.getBytes(),
+				source.getRepositoryUrl(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return git;
+	}
+
+	/**
+	 * Clone only the branch of the commit.
+	 * @return the clone, or null if the branch does not contain the commit
+	 */
+	private Git cloneBranch(String uri, GitSource source, File stagingDirectory) throws IOException {
+		String branch = Constants.R_HEADS + source.getBranchName();
+		try {
+			Git git = clone(uri, stagingDirectory)
+				.setBranchesToClone(Collections.singleton(branch))
+				.setBranch(branch)
+				.call();
+			if(ObjectId.isId(source.getCommitId())
+					&& git.getRepository().hasObject(ObjectId.fromString(source.getCommitId()))) {
+				return git;
+			}
+			git.close();
+		}
+		catch (GitAPIException e) {
+			log.info("Could not clone branch " + source.getBranchName() + " of " + source.getRepositoryUrl(), e);
+		}
+
+		log.info("Branch {} of {} does not contain {}, cloning all branches", source.getBranchName(),
+				source.getRepositoryUrl(), source.getCommitId());
+		FileUtils.cleanDirectory(stagingDirectory);
+		return null;
+	}
+
+	private static CloneCommand clone(String uri, File stagingDirectory) {
+		return Git.cloneRepository()
+			.setBare(false)
+			.setDirectory(stagingDirectory)
+			.setURI(uri)
+			// The commit is checked out afterwards
+			.setNoCheckout(true);
 	}
 
 	private void checkoutCommit(GitSource source, Logger logger, Git git) throws IOException {
@@ -48,17 +217,119 @@ public class GitStagingDirectoryPreparer implements StagingDirectoryPreparer<Git
 					.call();
 			}
 			else {
+				// The branch may already exist at a later commit
+				updateBranch(git.getRepository(), branchName, resolveCommit(git, source));
 				git.checkout()
-					.setName(source.getBranchName())
-					.setStartPoint(source.getCommitId())
+					.setName(branchName)
 					.setForce(true)
 					.call();
 			}
 		}
+		catch (IOException e) {
+			logger.println("[FATAL] Failed to checkout to specified commit: " + source.getCommitId());
+			throw e;
+		}
 		catch (GitAPIException e) {
 			logger.println("[FATAL] Failed to checkout to specified commit: " + source.getCommitId());
 			throw new IOException(e);
 		}
 	}
+
+	/**
+	 * Place the files of the commit from the {@link CheckoutStore}, and point
+	 * the branch and index at the commit without writing the files again.
+	 * @return true if the tree was in the store
+	 */
+	private boolean checkoutStoredTree(GitSource source, Git git, ObjectId treeId, File stagingDirectory)
+			throws IOException {
+		long start = System.nanoTime();
+		try {
+			if(!checkoutStore.checkout(treeId, stagingDirectory)) {
+				return false;
+			}
+
+			Repository repository = git.getRepository();
+			ObjectId commitId = resolveCommit(git, source);
+			String branchName = source.getBranchName();
+			if(branchName == null) {
+				RefUpdate head = repository.updateRef(Constants.HEAD, true);
+				head.setNewObjectId(commitId);
+				check(head, head.forceUpdate());
+			}
+			else {
+				updateBranch(repository, branchName, commitId);
+				RefUpdate head = repository.updateRef(Constants.HEAD);
+				check(head, head.link(Constants.R_HEADS + branchName));
+			}
+			git.reset()
+				.setMode(ResetType.MIXED)
+				.setRef(commitId.name())
+				.call();
+		}
+		catch (GitAPIException | IOException e) {
+			log.warn("Could not check out tree " + treeId.name() + " from the checkout store", e);
+			cleanWorkTree(stagingDirectory);
+			return false;
+		}
+
+		log.info("Checked out tree {} of revision {} from the checkout store in {} ms", treeId.name(),
+				source.getCommitId(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return true;
+	}
+
+	private static ObjectId resolveTree(Git git, GitSource source) {
+		try {
+			return git.getRepository().resolve(source.getCommitId() + "^{tree}");
+		}
+		catch (IOException | RuntimeException e) {
+			log.info("Could not resolve the tree of " + source.getCommitId(), e);
+			return null;
+		}
+	}
+
+	private static ObjectId resolveCommit(Git git, GitSource source) throws IOException {
+		ObjectId commitId = git.getRepository().resolve(source.getCommitId() + "^{commit}");
+		if(commitId == null) {
+			throw new IOException("Unknown revision " + source.getCommitId());
+		}
+		return commitId;
+	}
+
+	private static void updateBranch(Repository repository, String branchName, ObjectId commitId) throws IOException {
+		updateRef(repository, Constants.R_HEADS + branchName, commitId);
+	}
+
+	private static void updateRef(Repository repository, String name, ObjectId objectId) throws IOException {
+		RefUpdate update = repository.updateRef(name);
+		update.setNewObjectId(objectId);
+		check(update, update.forceUpdate());
+	}
+
+	private static void check(RefUpdate update, RefUpdate.Result result) throws IOException {
+		switch (result) {
+			case NEW:
+			case FORCED:
+			case FAST_FORWARD:
+			case NO_CHANGE:
+				return;
+			default:
+				throw new IOException("Could not update " + update.getName() + ": " + result);
+		}
+	}
+
+	/**
+	 * Remove everything but the Git directory.
+	 */
+	private static void cleanWorkTree(File stagingDirectory) throws IOException {
+		File[] files = stagingDirectory.listFiles();
+		if(files == null) {
+			return;
+		}
+		for(File file : files) {
+			if(!file.getName().equals(Constants.DOT_GIT)) {
+				FileUtils.forceDelete(file);
+			}
+		}
+	}
 	
 }
@@ -0,0 +1,184 @@
+package nl.tudelft.ewi.build.extensions.staging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.base.Charsets;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The {@code LinkMode} is the way in which files of a shared tree are placed
+ * in a staging directory.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+enum LinkMode {
+
+	/**
+	 * Copy-on-write clones of the files, on filesystems that support them
+	 * (such as Btrfs and XFS). The clones share their blocks until they are
+	 * written.
+	 */
+	REFLINK {
+
+		@Override
+		void link(final File source, final File target) throws IOException {
+			if (!target.isDirectory() && !target.mkdirs()) {
+				throw new IOException("Could not create " + target);
+			}
+			Process process = new ProcessBuilder("cp", "-R", "--reflink=always", source.getAbsolutePath() + "/.",
+					target.getAbsolutePath())
+				.redirectErrorStream(true)
+				.start();
+			try {
+				if (!process.waitFor(5, TimeUnit.MINUTES) || process.exitValue() != 0) {
+					process.destroy();
+					throw new IOException("Could not reflink " + source + " to " + target);
+				}
+			}
+			catch (InterruptedException e) {
+				process.destroy();
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+
+	},
+
+	/**
+	 * Hard links to the files. The files are shared, so a build that writes
+	 * to a file in place would change it for the other builds as well. The
+	 * shared files are therefore read-only.
+	 */
+	HARDLINK {
+
+		@Override
+		void link(final File source, final File target) throws IOException {
+			walk(source, target, true, null);
+		}
+
+	},
+
+	/**
+	 * Copies of the files.
+	 */
+	COPY {
+
+		@Override
+		void link(final File source, final File target) throws IOException {
+			walk(source, target, false, null);
+		}
+
+	};
+
+	/**
+	 * Place the files in a directory in another directory.
+	 * @param source the directory with the shared files
+	 * @param target the directory to place the files in, which is created
+	 * 		if it does not exist
+	 * @throws IOException if the files could not be placed
+	 */
+	abstract void link(File source, File target) throws IOException;
+
+	/**
+	 * Get the {@code LinkMode} for a directory.
+	 * @param configured the configured mode, or {@code auto} to use reflinks
+	 * 		if the filesystem supports them, and hard links otherwise
+	 * @param directory a directory on the filesystem
+	 * @return the {@code LinkMode}
+	 */
+	static LinkMode of(final String configured, final File directory) {
+		if (configured != null && !configured.equalsIgnoreCase("auto")) {
+			return valueOf(configured.toUpperCase(Locale.ROOT));
+		}
+		return supportsReflinks(directory) ? REFLINK : HARDLINK;
+	}
+
+	private static boolean supportsReflinks(final File directory) {
+		File source = new File(directory, ".reflink-test");
+		File target = new File(directory, ".reflink-test-clone");
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				return false;
+			}
+			Files.write(source.toPath(), "test".getBytes(Charsets.UTF_8));
+			Process process = new ProcessBuilder("cp", "--reflink=always", source.getAbsolutePath(),
+					target.getAbsolutePath())
+				.redirectErrorStream(true)
+				.start();
+			return process.waitFor(10, TimeUnit.SECONDS) && process.exitValue() == 0;
+		}
+		catch (IOException e) {
+			return false;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally {
+			FileUtils.deleteQuietly(source);
+			FileUtils.deleteQuietly(target);
+		}
+	}
+
+	/**
+	 * Copy the files in a directory to another directory.
+	 * @param source the directory to copy
+	 * @param target the directory to copy to
+	 * @param excluded name of a directory in the source that is not copied
+	 * @throws IOException if the files could not be copied
+	 */
+	static void copy(final File source, final File target, final String excluded) throws IOException {
+		walk(source, target, false, excluded);
+	}
+
+	private static void walk(final File source, final File target, final boolean hardLink, final String excluded)
+			throws IOException {
+		final Path sourcePath = source.toPath();
+		final Path targetPath = target.toPath();
+		final Path excludedPath = excluded != null ? sourcePath.resolve(excluded) : null;
+		Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+					throws IOException {
+				if (directory.equals(excludedPath)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				Files.createDirectories(targetPath.resolve(sourcePath.relativize(directory)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Path link = targetPath.resolve(sourcePath.relativize(file));
+				if (hardLink && attributes.isRegularFile()) {
+					try {
+						Files.createLink(link, file);
+						return FileVisitResult.CONTINUE;
+					}
+					catch (IOException | UnsupportedOperationException e) {
+						log.debug("Could not link {}, copying it instead", file);
+					}
+				}
+				Files.copy(file, link, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+	}
+
+}
@@ -1,27 +1,29 @@
 package nl.tudelft.ewi.build.jaxrs;
 
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 import javax.validation.Valid;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
-import javax.ws.rs.client.Invocation.Builder;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
-import javax.ws.rs.core.Response.StatusType;
-
-import org.jboss.resteasy.util.Base64;
 
 import com.google.common.base.Strings;
 import com.google.common.util.concurrent.FutureCallback;
@@ -29,12 +31,14 @@ import com.google.common.util.concurrent.Futures;
 
 import lombok.extern.slf4j.Slf4j;
 
-import nl.tudelft.ewi.build.Config;
 import nl.tudelft.ewi.build.builds.BuildManager;
 import nl.tudelft.ewi.build.builds.BuildManager.Build;
+import nl.tudelft.ewi.build.builds.LogBuffer;
+import nl.tudelft.ewi.build.callbacks.CallbackDispatcher;
 import nl.tudelft.ewi.build.jaxrs.filters.RequireAuthentication;
 import nl.tudelft.ewi.build.jaxrs.models.BuildRequest;
 import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+import nl.tudelft.ewi.build.jaxrs.models.BuildStatus;
 
 @Slf4j
 @Path("api/builds")
@@ -42,15 +46,22 @@ import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
 @Consumes(MediaType.APPLICATION_JSON)
 public class BuildsResource {
 
+	private static final int TOO_MANY_REQUESTS = 429;
+	private static final long DEFAULT_RETRY_AFTER_SECONDS = 30;
+	private static final int MAX_LOG_LINES = 10000;
+	private static final long FOLLOW_TIMEOUT_SECONDS = 30;
+	private static final String NEXT_OFFSET_HEADER = "X-Log-Next-Offset";
+	private static final String COMPLETE_HEADER = "X-Log-Complete";
+	private static final long MAX_WAIT_SECONDS = 300;
+	private static final Pattern WAIT_PATTERN = Pattern.compile("(\\d{1,9})(ms|s|m)?");
+
 	private final BuildManager manager;
-	private final ExecutorService executor = Executors
-			.newSingleThreadExecutor();
-	private final Config config;
+	private final CallbackDispatcher callbackDispatcher;
 
 	@Inject
-	public BuildsResource(final BuildManager manager, final Config config) {
+	public BuildsResource(final BuildManager manager, final CallbackDispatcher callbackDispatcher) {
 		this.manager = manager;
-		this.config = config;
+		this.callbackDispatcher = callbackDispatcher;
 	}
 
 	@POST
@@ -59,88 +70,201 @@ public class BuildsResource {
 		Build build = null;
 		try {
 			build = manager.schedule(buildRequest);
-			Futures.addCallback(build, new FutureCallback<BuildResult>() {
-
-				@Override
-				public void onSuccess(BuildResult result) {
-					if (Strings.isNullOrEmpty(buildRequest.getCallbackUrl())) {
-						return;
-					}
-
-					log.info("Returning build results to callback URL: {}",
-							buildRequest.getCallbackUrl());
-					for (int i = 0; i <= 4; i++) {
-						Client client = ClientBuilder.newClient();
-						try {
-							Response response = prepareCallback(client).post(
-									Entity.json(result));
-							StatusType statusInfo = response.getStatusInfo();
-							if (statusInfo.getStatusCode() >= 200
-									&& statusInfo.getStatusCode() < 300) {
-								log.info(
-										"Build result successfully returned to: {}",
-										buildRequest.getCallbackUrl());
-								return;
-							}
-							log.warn(
-									"Could not return build result to: {}, status was: {} - {}",
-									buildRequest.getCallbackUrl(),
-									response.getStatus(),
-									statusInfo.getReasonPhrase());
-						} catch (Throwable e) {
-							log.warn(e.getMessage(), e);
-						} finally {
-							if (client != null) {
-								client.close();
-							}
-						}
-
-						// Exponential backoff.
-						if (i < 4) {
-							try {
-								Thread.sleep(5000L * 2 ^ i);
-							} catch (InterruptedException e) {
-							}
-						}
-					}
-
-					log.error("Could not return build result to: {}",
-							buildRequest.getCallbackUrl());
-				}
-
-				private Builder prepareCallback(Client client) {
-					String userPass = config.getClientId() + ":"
-							+ config.getClientSecret();
-					String authorization = "Basic "
-							+ Base64.encodeBytes(userPass.getBytes());
-					return client.target(buildRequest.getCallbackUrl())
-							.request().header("Authorization", authorization);
-				}
-
-				@Override
-				public void onFailure(Throwable t) {
-					// TODO Auto-generated method stub
-
-				}
-
-			}, executor);
+			if (build == null) {
+				return tooManyRequests();
+			}
+
+			callbackDispatcher.dispatch(build);
 		} catch (Throwable e) {
 			log.error(e.getMessage(), e);
 		}
 
 		if (build == null) {
-			return Response.status(Status.CONFLICT)
-					.entity("Server cannot accept build request.").build();
+			return tooManyRequests();
+		}
+
+		return Response.ok(build.getBuildStatus()).build();
+	}
+
+	private Response tooManyRequests() {
+		Long retryAfter = manager.getEstimatedWaitSeconds(0);
+		return Response.status(TOO_MANY_REQUESTS)
+				.header("Retry-After", retryAfter != null ? retryAfter : DEFAULT_RETRY_AFTER_SECONDS)
+				.entity("Server cannot accept build request.").build();
+	}
+
+	/**
+	 * Query the state, timings and, once it is done, the result of a build.
+	 * Results of finished builds are retained for a limited time.
+	 * @param buildId the UUID of the build
+	 * @return the {@link BuildStatus} of the build
+	 */
+	@GET
+	@RequireAuthentication
+	@Path("{buildId}")
+	public BuildStatus getBuild(@PathParam("buildId") UUID buildId) {
+		Build build = manager.findBuild(buildId);
+		if (build == null) {
+			throw new NotFoundException("Build " + buildId + " is not available");
+		}
+		return build.getBuildStatus();
+	}
+
+	/**
+	 * Wait for the result of a build, for clients that have no callback URL.
+	 * The request does not hold a thread while it waits. If the build is not
+	 * done in time, the response is {@code 202 Accepted} with the
+	 * {@link BuildStatus} of the build.
+	 * @param buildId the UUID of the build
+	 * @param wait the time to wait, in seconds, or with a {@code ms},
+	 * 		{@code s} or {@code m} suffix, up to
+	 * 		{@value #MAX_WAIT_SECONDS} seconds
+	 * @param response the {@link AsyncResponse} that is resumed with the
+	 * 		{@link BuildResult}
+	 */
+	@GET
+	@RequireAuthentication
+	@Path("{buildId}/result")
+	public void awaitResult(@PathParam("buildId") final UUID buildId,
+			@QueryParam("wait") @DefaultValue("60s") final String wait,
+			@Suspended final AsyncResponse response) {
+		final Build build = manager.findBuild(buildId);
+		if (build == null) {
+			throw new NotFoundException("Build " + buildId + " is not available");
+		}
+
+		long waitMillis = Math.min(parseWait(wait), TimeUnit.SECONDS.toMillis(MAX_WAIT_SECONDS));
+		if (waitMillis <= 0 && !build.getResult().isDone()) {
+			response.resume(accepted(build));
+			return;
+		}
+
+		response.setTimeout(waitMillis, TimeUnit.MILLISECONDS);
+		response.setTimeoutHandler(new TimeoutHandler() {
+			@Override
+			public void handleTimeout(AsyncResponse asyncResponse) {
+				asyncResponse.resume(accepted(build));
+			}
+		});
+		Futures.addCallback(build.getResult(), new FutureCallback<BuildResult>() {
+			@Override
+			public void onSuccess(BuildResult result) {
+				response.resume(result);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				response.resume(t);
+			}
+		});
+	}
+
+	private static Response accepted(final Build build) {
+		return Response.status(Status.ACCEPTED).entity(build.getBuildStatus()).build();
+	}
+
+	private static long parseWait(final String wait) {
+		Matcher matcher = WAIT_PATTERN.matcher(wait.trim());
+		if (!matcher.matches()) {
+			throw new BadRequestException("Invalid wait time: " + wait);
+		}
+		long time = Long.parseLong(matcher.group(1));
+		String unit = Strings.nullToEmpty(matcher.group(2));
+		switch (unit) {
+			case "ms":
+				return time;
+			case "m":
+				return TimeUnit.MINUTES.toMillis(time);
+			default:
+				return TimeUnit.SECONDS.toMillis(time);
+		}
+	}
+
+	/**
+	 * Read a range of the full log of a running or recently finished build.
+	 * To follow the log of a running build, the request waits up to
+	 * {@value #FOLLOW_TIMEOUT_SECONDS} seconds for lines after the offset.
+	 * The {@value #NEXT_OFFSET_HEADER} header holds the offset from which to
+	 * continue, and the {@value #COMPLETE_HEADER} header tells whether the log
+	 * is complete.
+	 * @param buildId the UUID of the build
+	 * @param offset the first line to read
+	 * @param limit the maximum number of lines to read
+	 * @param follow whether to wait for lines if there are none after the offset
+	 * @param response the {@link AsyncResponse} that is resumed with the lines
+	 * 		of the log
+	 */
+	@GET
+	@RequireAuthentication
+	@Path("{buildId}/log")
+	public void getLog(@PathParam("buildId") final UUID buildId,
+			@QueryParam("offset") @DefaultValue("0") final int offset,
+			@QueryParam("limit") @DefaultValue("1000") final int limit,
+			@QueryParam("follow") @DefaultValue("false") final boolean follow,
+			@Suspended final AsyncResponse response) {
+		final LogBuffer logBuffer = manager.getLog(buildId);
+		if (logBuffer == null) {
+			throw new NotFoundException("Log of build " + buildId + " is not available");
+		}
+		if (!follow) {
+			response.resume(readLog(logBuffer, offset, limit));
+			return;
 		}
 
-		return Response.ok(build.getUUID()).build();
+		response.setTimeout(FOLLOW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		response.setTimeoutHandler(new TimeoutHandler() {
+			@Override
+			public void handleTimeout(AsyncResponse asyncResponse) {
+				asyncResponse.resume(readLog(logBuffer, offset, limit));
+			}
+		});
+		Futures.addCallback(manager.followLog(buildId, Math.max(0, offset)), new FutureCallback<LogBuffer>() {
+			@Override
+			public void onSuccess(LogBuffer result) {
+				response.resume(readLog(result, offset, limit));
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				response.resume(t);
+			}
+		});
+	}
+
+	/**
+	 * The lines are a view on the {@link LogBuffer}, so that watchers of a
+	 * log do not each copy it. Lines are only appended to the log, so the
+	 * view does not change.
+	 */
+	private static Response readLog(final LogBuffer logBuffer, final int offset, final int limit) {
+		boolean complete = logBuffer.isClosed();
+		int size = logBuffer.size();
+		int from = Math.max(0, Math.min(offset, size));
+		int to = Math.min(size, from + Math.max(0, Math.min(limit, MAX_LOG_LINES)));
+		return Response.ok(logBuffer.subList(from, to))
+				.header(NEXT_OFFSET_HEADER, to)
+				.header(COMPLETE_HEADER, complete && to == size)
+				.build();
 	}
 
+	/**
+	 * Kill a build. Responds with {@code 204 No Content} once the container of
+	 * the build is removed, or with {@code 202 Accepted} and the
+	 * {@link BuildStatus} of the build if the container is still being
+	 * removed. The build then completes in the background, and its status
+	 * remains available.
+	 * @param buildId the UUID of the build
+	 * @return the response
+	 */
 	@DELETE
 	@RequireAuthentication
 	@Path("{buildId}")
-	public void killBuild(@PathParam("buildId") UUID buildId) {
-		manager.killBuild(buildId);
+	public Response killBuild(@PathParam("buildId") UUID buildId) {
+		if (manager.killBuild(buildId)) {
+			return Response.noContent().build();
+		}
+		Build build = manager.findBuild(buildId);
+		return build != null ? accepted(build) : Response.status(Status.ACCEPTED).build();
 	}
 
 }
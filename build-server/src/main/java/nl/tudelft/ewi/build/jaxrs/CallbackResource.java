@@ -0,0 +1,37 @@
+package nl.tudelft.ewi.build.jaxrs;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import nl.tudelft.ewi.build.callbacks.CallbackDispatcher;
+import nl.tudelft.ewi.build.jaxrs.filters.RequireAuthentication;
+import nl.tudelft.ewi.build.jaxrs.models.CallbackStatistics;
+
+/**
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Path("api/callbacks")
+@Produces(MediaType.APPLICATION_JSON)
+public class CallbackResource {
+
+	private final CallbackDispatcher callbackDispatcher;
+
+	@Inject
+	public CallbackResource(final CallbackDispatcher callbackDispatcher) {
+		this.callbackDispatcher = callbackDispatcher;
+	}
+
+	/**
+	 * @return the latency and failures with which build results are returned
+	 * 		to their callback URLs
+	 */
+	@GET
+	@RequireAuthentication
+	public CallbackStatistics getCallbackStatistics() {
+		return callbackDispatcher.getStatistics();
+	}
+
+}
@@ -0,0 +1,38 @@
+package nl.tudelft.ewi.build.jaxrs;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import nl.tudelft.ewi.build.builds.BuildManager;
+import nl.tudelft.ewi.build.jaxrs.filters.RequireAuthentication;
+import nl.tudelft.ewi.build.jaxrs.models.ContainerPoolStatistics;
+
+/**
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Path("api/pool")
+@Produces(MediaType.APPLICATION_JSON)
+public class ContainerPoolResource {
+
+	private final BuildManager manager;
+
+	@Inject
+	public ContainerPoolResource(final BuildManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * @return the hit rate and time to first log for every pooled image
+	 */
+	@GET
+	@RequireAuthentication
+	public List<ContainerPoolStatistics> getContainerPoolStatistics() {
+		return manager.getContainerPoolStatistics();
+	}
+
+}
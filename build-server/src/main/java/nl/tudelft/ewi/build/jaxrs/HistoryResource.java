@@ -0,0 +1,109 @@
+package nl.tudelft.ewi.build.jaxrs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+import nl.tudelft.ewi.build.builds.BuildHistory;
+import nl.tudelft.ewi.build.builds.BuildManager;
+import nl.tudelft.ewi.build.jaxrs.filters.RequireAuthentication;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRecord;
+
+/**
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Path("api/history")
+@Produces(MediaType.APPLICATION_JSON)
+public class HistoryResource {
+
+	private static final int MAX_RECORDS = 1000;
+
+	private final BuildManager manager;
+
+	@Inject
+	public HistoryResource(final BuildManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Find finished builds, most recent first. Builds are found by repository
+	 * URL or commit id if given, and otherwise by the time at which they
+	 * finished.
+	 * @param repositoryUrl the URL of the repository
+	 * @param commitId the id of the commit
+	 * @param from the start of the range, in milliseconds since the epoch
+	 * @param to the end of the range, exclusive
+	 * @param limit the maximum number of builds
+	 * @return the {@link BuildRecord}s of the builds
+	 * @throws IOException if the history could not be read
+	 */
+	@GET
+	@RequireAuthentication
+	public List<BuildRecord> findBuilds(@QueryParam("repository") String repositoryUrl,
+			@QueryParam("commit") String commitId,
+			@QueryParam("from") @DefaultValue("0") long from,
+			@QueryParam("to") @DefaultValue("9223372036854775807") long to,
+			@QueryParam("limit") @DefaultValue("50") int limit) throws IOException {
+		BuildHistory history = getHistory();
+		int max = Math.max(0, Math.min(limit, MAX_RECORDS));
+		if (repositoryUrl != null) {
+			return history.findByRepository(repositoryUrl, max);
+		}
+		else if (commitId != null) {
+			return history.findByCommit(commitId, max);
+		}
+		return history.findRecent(from, to, max);
+	}
+
+	/**
+	 * @param buildId the UUID of the build
+	 * @return the {@link BuildRecord} of the build
+	 * @throws IOException if the history could not be read
+	 */
+	@GET
+	@RequireAuthentication
+	@Path("{buildId}")
+	public BuildRecord getBuild(@PathParam("buildId") UUID buildId) throws IOException {
+		BuildRecord record = getHistory().get(buildId);
+		if (record == null) {
+			throw new NotFoundException("Build " + buildId + " is not in the history");
+		}
+		return record;
+	}
+
+	/**
+	 * @param buildId the UUID of the build
+	 * @return the full log of the build
+	 */
+	@GET
+	@RequireAuthentication
+	@Path("{buildId}/log")
+	@Produces(MediaType.TEXT_PLAIN + ";charset=UTF-8")
+	public File getLog(@PathParam("buildId") UUID buildId) {
+		File logFile = getHistory().getLogFile(buildId);
+		if (logFile == null || !logFile.isFile()) {
+			throw new NotFoundException("Log of build " + buildId + " is not in the history");
+		}
+		return logFile;
+	}
+
+	private BuildHistory getHistory() {
+		BuildHistory history = manager.getHistory();
+		if (history == null) {
+			throw new NotFoundException("The build history is disabled");
+		}
+		return history;
+	}
+
+}
@@ -0,0 +1,36 @@
+package nl.tudelft.ewi.build.jaxrs;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import nl.tudelft.ewi.build.builds.BuildManager;
+import nl.tudelft.ewi.build.jaxrs.filters.RequireAuthentication;
+import nl.tudelft.ewi.build.jaxrs.models.LogIngestStatistics;
+
+/**
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Path("api/ingest")
+@Produces(MediaType.APPLICATION_JSON)
+public class LogIngestResource {
+
+	private final BuildManager manager;
+
+	@Inject
+	public LogIngestResource(final BuildManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * @return the throughput with which the build output is ingested
+	 */
+	@GET
+	@RequireAuthentication
+	public LogIngestStatistics getLogIngestStatistics() {
+		return manager.getLogIngestStatistics();
+	}
+
+}
@@ -0,0 +1,38 @@
+package nl.tudelft.ewi.build.jaxrs;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import nl.tudelft.ewi.build.builds.BuildManager;
+import nl.tudelft.ewi.build.jaxrs.filters.RequireAuthentication;
+import nl.tudelft.ewi.build.jaxrs.models.TenantStatistics;
+
+/**
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Path("api/tenants")
+@Produces(MediaType.APPLICATION_JSON)
+public class TenantsResource {
+
+	private final BuildManager manager;
+
+	@Inject
+	public TenantsResource(final BuildManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * @return the queue depth and wait time statistics for every tenant
+	 */
+	@GET
+	@RequireAuthentication
+	public List<TenantStatistics> getTenantStatistics() {
+		return manager.getTenantStatistics();
+	}
+
+}
@@ -0,0 +1,64 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+public class BuildExecutorsTest {
+
+	private final CountDownLatch blocked = new CountDownLatch(1);
+
+	private ListeningExecutorService executor;
+
+	@After
+	public void tearDown() {
+		blocked.countDown();
+		if(executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout=2000, expected=RejectedExecutionException.class)
+	public void testThatFullStageRejectsTask() {
+		executor = BuildExecutors.newStageExecutor("test", 1, 1);
+		fill(executor);
+		executor.execute(noop());
+	}
+
+	@Test(timeout=2000, expected=RejectedExecutionException.class)
+	public void testThatStoppedStageRejectsTask() {
+		executor = BuildExecutors.newStageExecutor("test", 1, 1);
+		executor.shutdown();
+		executor.execute(noop());
+	}
+
+	/**
+	 * Occupy the only thread of a stage and the only place in its queue.
+	 */
+	private void fill(ListeningExecutorService executor) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					blocked.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		executor.execute(noop());
+	}
+
+	private static Runnable noop() {
+		return new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+	}
+
+}
@@ -0,0 +1,144 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRecord;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRequest;
+import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+import nl.tudelft.ewi.build.jaxrs.models.GitSource;
+import nl.tudelft.ewi.build.jaxrs.models.MavenBuildInstruction;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BuildHistoryTest {
+
+	private static final long SEGMENT_SIZE = 4096;
+
+	private File directory;
+	private BuildHistory history;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDir();
+		history = new BuildHistory(directory, SEGMENT_SIZE, 0, 0, 0.5);
+	}
+
+	@After
+	public void tearDown() {
+		history.close();
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Test
+	public void testThatRecordsCanBeFound() throws IOException {
+		BuildRecord first = createRecord("repository-a", "commit-1", 1000);
+		BuildRecord second = createRecord("repository-a", "commit-2", 2000);
+		BuildRecord third = createRecord("repository-b", "commit-1", 3000);
+		LogBuffer logBuffer = new LogBuffer();
+		logBuffer.append("[INFO] BUILD SUCCESS");
+		history.record(first, logBuffer);
+		history.record(second, null);
+		history.record(third, null);
+
+		assertEquals(first, history.get(first.getUuid()));
+		assertNull(history.get(UUID.randomUUID()));
+		assertEquals(Lists.newArrayList(second, first), history.findByRepository("repository-a", 10));
+		assertEquals(Lists.newArrayList(third, first), history.findByCommit("commit-1", 10));
+		assertEquals(Lists.newArrayList(third), history.findByCommit("commit-1", 1));
+		assertEquals(Lists.newArrayList(second, first), history.findRecent(1000, 3000, 10));
+		assertEquals("[INFO] BUILD SUCCESS\n",
+				Files.toString(history.getLogFile(first.getUuid()), Charsets.UTF_8));
+		assertNull(history.getLogFile(second.getUuid()));
+	}
+
+	@Test
+	public void testThatRecordsSurviveARestart() throws IOException {
+		List<BuildRecord> records = Lists.newArrayList();
+		for (int i = 0; i < 20; i++) {
+			BuildRecord record = createRecord("repository", "commit-" + i, i);
+			history.record(record, null);
+			records.add(record);
+		}
+		history.close();
+
+		// A record that was not completely written before a crash
+		File last = null;
+		for (File segment : directory.listFiles()) {
+			if (segment.isFile() && (last == null || segment.getName().compareTo(last.getName()) > 0)) {
+				last = segment;
+			}
+		}
+		try (FileOutputStream outputStream = new FileOutputStream(last, true)) {
+			outputStream.write("{\"uuid\":".getBytes(Charsets.UTF_8));
+		}
+
+		history = new BuildHistory(directory, SEGMENT_SIZE, 0, 0, 0.5);
+		assertEquals(20, history.size());
+		assertEquals(Lists.reverse(records), history.findByRepository("repository", 100));
+
+		BuildRecord record = createRecord("repository", "commit", 100);
+		history.record(record, null);
+		assertEquals(record, history.get(record.getUuid()));
+	}
+
+	@Test
+	public void testThatOldRecordsAreCompacted() throws IOException {
+		history.close();
+		history = new BuildHistory(directory, SEGMENT_SIZE, 0, 10, 0.5);
+
+		List<UUID> uuids = Lists.newArrayList();
+		for (int i = 0; i < 100; i++) {
+			BuildRecord record = createRecord("repository", "commit", i);
+			history.record(record, new LogBuffer());
+			uuids.add(record.getUuid());
+		}
+
+		assertEquals(10, history.size());
+		assertNull(history.get(uuids.get(0)));
+		assertNull(history.getLogFile(uuids.get(0)));
+		assertNotNull(history.get(uuids.get(99)));
+		assertEquals(10, new File(directory, "logs").list().length);
+		// The segments hold little more than the records that are retained
+		assertTrue(directory.list().length <= 4);
+	}
+
+	private static BuildRecord createRecord(final String repositoryUrl, final String commitId, final long doneAt) {
+		GitSource source = new GitSource();
+		source.setRepositoryUrl(repositoryUrl);
+		source.setBranchName("master");
+		source.setCommitId(commitId);
+
+		BuildRequest request = new BuildRequest();
+		request.setSource(source);
+		request.setInstruction(new MavenBuildInstruction());
+
+		UUID uuid = UUID.randomUUID();
+		BuildResult result = new BuildResult();
+		result.setUuid(uuid);
+		result.setStatus(BuildResult.Status.SUCCEEDED);
+
+		BuildRecord record = new BuildRecord();
+		record.setUuid(uuid);
+		record.setRequest(request);
+		record.setResult(result);
+		record.setExitCode(0);
+		record.setSubmittedAt(doneAt - 100);
+		record.setDoneAt(doneAt);
+		return record;
+	}
+
+}
@@ -1,14 +1,24 @@
 package nl.tudelft.ewi.build.builds;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.spotify.docker.client.DockerClient;
-import com.spotify.docker.client.DockerClient.AttachParameter;
+import com.spotify.docker.client.DockerClient.ExecCreateParam;
+import com.spotify.docker.client.DockerClient.ExecStartParameter;
+import com.spotify.docker.client.DockerClient.ListContainersParam;
+import com.spotify.docker.client.DockerClient.LogsParam;
 import com.spotify.docker.client.DockerException;
+import com.spotify.docker.client.ImageNotFoundException;
+import com.spotify.docker.client.LogMessage;
 import com.spotify.docker.client.MockedLogStream;
+import com.spotify.docker.client.messages.Container;
 import com.spotify.docker.client.messages.ContainerConfig;
 import com.spotify.docker.client.messages.ContainerCreation;
-import com.spotify.docker.client.messages.ContainerExit;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.ContainerState;
+import com.spotify.docker.client.messages.ExecState;
+import com.spotify.docker.client.messages.ImageInfo;
 import lombok.extern.slf4j.Slf4j;
 import nl.tudelft.ewi.build.Config;
 import nl.tudelft.ewi.build.builds.BuildManager.Build;
@@ -17,18 +27,25 @@ import nl.tudelft.ewi.build.extensions.instructions.MavenBuildInstructionInterpr
 import nl.tudelft.ewi.build.extensions.staging.GitStagingDirectoryPreparer;
 import nl.tudelft.ewi.build.extensions.staging.StagingDirectoryPreparerRegistry;
 import nl.tudelft.ewi.build.jaxrs.json.MappingModule;
+import nl.tudelft.ewi.build.jaxrs.models.BuildRecord;
 import nl.tudelft.ewi.build.jaxrs.models.BuildRequest;
 import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+import nl.tudelft.ewi.build.jaxrs.models.BuildResult.FailureReason;
 import nl.tudelft.ewi.build.jaxrs.models.BuildResult.Status;
+import nl.tudelft.ewi.build.jaxrs.models.BuildStatus;
+import nl.tudelft.ewi.build.jaxrs.models.BuildStatus.State;
+import nl.tudelft.ewi.build.jaxrs.models.ContainerPoolStatistics;
 import nl.tudelft.ewi.build.jaxrs.models.GitSource;
 import nl.tudelft.ewi.build.jaxrs.models.MavenBuildInstruction;
+import nl.tudelft.ewi.build.jaxrs.models.ProvisioningTimings;
+import org.apache.commons.io.FileUtils;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
-import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -39,15 +56,35 @@ import org.mockito.stubbing.Answer;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.when;
 
 @Slf4j
@@ -62,26 +99,68 @@ public class BuildManagerTest {
 	@Mock private GitStagingDirectoryPreparer gitStagingDirectoryPreparer;
 	
 	private BuildManager manager;
+	private final Queue<Container> createdContainers = new ConcurrentLinkedQueue<>();
 
-	private static File stagingDirectory;
+	// Not shared between tests, because unfinished builds are recovered from it
+	private File stagingDirectory;
 
-	@BeforeClass
-	public static void createTempDir() {
-		stagingDirectory = Files.createTempDir();
-		stagingDirectory.deleteOnExit();
-	}
+	private volatile long gitPullDuration;
+	private boolean gitPullStubbed;
 
 	@Before
 	public void setUp() throws DockerException, InterruptedException {
+		stagingDirectory = Files.createTempDir();
 		when(config.getMaximumConcurrentJobs()).thenReturn(CONCURRENT_JOBS);
 		when(config.getStagingDirectory()).thenReturn(stagingDirectory.getAbsolutePath());
+		when(config.getMonitorInterval()).thenReturn(10);
+		when(config.getLogIngestThreads()).thenReturn(2);
+		when(config.getLogPollInterval()).thenReturn(10);
+		when(config.getRetainedResults()).thenReturn(10);
+		when(config.getResultRetention()).thenReturn(60);
 		
 		when(dockerClient.createContainer(Mockito.any(ContainerConfig.class), Mockito.anyString()))
-				.thenReturn(new ContainerCreation(UUID.randomUUID().toString()));
-		when(dockerClient.attachContainer(Mockito.anyString(), Mockito.<AttachParameter>anyVararg()))
+				.then(new Answer<ContainerCreation>() {
+					@Override
+					public ContainerCreation answer(InvocationOnMock invocation) throws Throwable {
+						return createContainer();
+					}
+				});
+		// The monitor inspects every listed container until it is no longer running
+		when(dockerClient.listContainers(Mockito.<ListContainersParam>anyVararg()))
+				.then(new Answer<List<Container>>() {
+					@Override
+					public List<Container> answer(InvocationOnMock invocation) throws Throwable {
+						return Lists.newArrayList(createdContainers);
+					}
+				});
+		when(dockerClient.logs(Mockito.anyString(), Mockito.<LogsParam>anyVararg()))
 				.thenReturn(new MockedLogStream());
-		when(dockerClient.waitContainer(Mockito.anyString())).thenReturn(new ContainerExit(0));
+		setContainerState(0, false);
 		
+		createManager();
+	}
+
+	private ContainerCreation createContainer() {
+		final String id = UUID.randomUUID().toString();
+		// Not a mock, because containers are also created while stubbing
+		createdContainers.add(new Container() {
+			@Override
+			public String id() {
+				return id;
+			}
+
+			@Override
+			public String status() {
+				return "Exited (0) Less than a second ago";
+			}
+		});
+		return new ContainerCreation(id);
+	}
+
+	private void createManager() {
+		if (manager != null) {
+			manager.lifeCycleStopping(null);
+		}
 		manager = new BuildManager(config, dockerClient,
 				new StagingDirectoryPreparerRegistry(gitStagingDirectoryPreparer),
 				new BuildInstructionInterpreterRegistry(mavenBuildInstructionInterpreter));
@@ -90,6 +169,7 @@ public class BuildManagerTest {
 	@After
 	public void tearDown() {
 		manager.lifeCycleStopping(null);
+		FileUtils.deleteQuietly(stagingDirectory);
 	}
 
 	@Test
@@ -116,15 +196,305 @@ public class BuildManagerTest {
 		assertNull(manager.schedule(createRequest()));
 	}
 
+	@Test(timeout=5000)
+	public void testThatJobIsQueuedWhenAtCapacity() throws Exception {
+		when(config.getMaximumQueuedJobs()).thenReturn(1);
+		setGitPullDuration(500l);
+		createManager();
+
+		for (int i = 0; i < CONCURRENT_JOBS; i++) {
+			manager.schedule(createRequest());
+		}
+
+		Build queued = manager.schedule(createRequest());
+		assertNotNull(queued);
+		BuildStatus buildStatus = queued.getBuildStatus();
+		assertEquals(State.QUEUED, buildStatus.getState());
+		assertEquals(Integer.valueOf(0), buildStatus.getQueuePosition());
+
+		assertNull(manager.schedule(createRequest()));
+		assertEquals(Status.SUCCEEDED, queued.get().getStatus());
+		assertEquals(State.DONE, queued.getBuildStatus().getState());
+		assertNotNull(manager.getEstimatedWaitSeconds(0));
+	}
+
+	@Test(timeout=5000, expected=CancellationException.class)
+	public void testThatQueuedJobCanBeKilled() throws Exception {
+		when(config.getMaximumQueuedJobs()).thenReturn(1);
+		setGitPullDuration(500l);
+		createManager();
+
+		for (int i = 0; i < CONCURRENT_JOBS; i++) {
+			manager.schedule(createRequest());
+		}
+
+		Build queued = manager.schedule(createRequest());
+		manager.killBuild(queued.getUUID());
+		assertNull(manager.getBuild(queued.getUUID()));
+		assertNotNull(manager.schedule(createRequest()));
+		queued.get();
+	}
+
+	@Test(timeout=5000)
+	public void testThatJobKilledWhileStoppingTerminates() throws Exception {
+		final CountDownLatch staging = new CountDownLatch(1);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				staging.countDown();
+				Thread.sleep(2000);
+				return null;
+			}
+		}).when(gitStagingDirectoryPreparer)
+				.prepareStagingDirectory(any(GitSource.class), any(Logger.class), any(File.class));
+		Build build = manager.schedule(createRequest());
+		staging.await();
+
+		// The cleanup stage no longer accepts the build once the server stops
+		manager.lifeCycleStopping(null);
+		manager.killBuild(build.getUUID());
+		assertEquals(FailureReason.CANCELLED, build.getResult().get().getFailureReason());
+	}
+
+	@Test(timeout=5000)
+	public void testThatKilledQueuedJobIsRetained() throws Exception {
+		when(config.getMaximumQueuedJobs()).thenReturn(1);
+		setGitPullDuration(500l);
+		createManager();
+
+		for (int i = 0; i < CONCURRENT_JOBS; i++) {
+			manager.schedule(createRequest());
+		}
+
+		Build queued = manager.schedule(createRequest());
+		manager.killBuild(queued.getUUID());
+		BuildStatus buildStatus = manager.findBuild(queued.getUUID()).getBuildStatus();
+		assertEquals(State.DONE, buildStatus.getState());
+		assertNull(buildStatus.getStagingAt());
+		assertEquals(FailureReason.CANCELLED, buildStatus.getResult().getFailureReason());
+		assertEquals(FailureReason.CANCELLED, queued.getResult().get().getFailureReason());
+	}
+
+	@Test(timeout=5000)
+	public void testThatKilledRunningJobIsRetained() throws Exception {
+		Build build = manager.schedule(createRequest());
+		assertTrue(manager.killBuild(build.getUUID()));
+		assertNull(manager.getBuild(build.getUUID()));
+		assertEquals(State.DONE, manager.findBuild(build.getUUID()).getBuildStatus().getState());
+		assertEquals(FailureReason.CANCELLED, build.getResult().get().getFailureReason());
+	}
+
+	@Test(timeout=5000)
+	public void testThatJobKilledBeforeItStartsDoesNotStart() throws Exception {
+		File historyDirectory = Files.createTempDir();
+		when(config.getMaximumConcurrentJobs()).thenReturn(1);
+		when(config.getHistoryDirectory()).thenReturn(historyDirectory.getAbsolutePath());
+		when(config.getHistorySegmentSize()).thenReturn(1024L * 1024);
+		createManager();
+
+		// Killed while it is journalled, before the scheduler hands it a slot
+		final AtomicReference<Build> killed = new AtomicReference<>();
+		BuildRequest request = new BuildRequest() {
+			@Override
+			public Integer getTimeout() {
+				for (Build build : manager.getBuilds()) {
+					if (killed.compareAndSet(null, build)) {
+						manager.killBuild(build.getUUID());
+					}
+				}
+				return super.getTimeout();
+			}
+		};
+		request.setSource(createRequest().getSource());
+		request.setInstruction(createRequest().getInstruction());
+
+		Build build = manager.schedule(request);
+		assertEquals(build, killed.get());
+		assertEquals(FailureReason.CANCELLED, build.getResult().get().getFailureReason());
+
+		// The slot is passed on instead of running the cancelled build
+		assertNotNull(manager.schedule(createRequest()).get());
+		assertNull(build.getBuildStatus().getStagingAt());
+		assertNull(manager.getHistory().get(build.getUUID()).getStagingAt());
+		Mockito.verify(gitStagingDirectoryPreparer, Mockito.times(1))
+				.prepareStagingDirectory(any(GitSource.class), any(Logger.class), any(File.class));
+
+		manager.lifeCycleStopping(null);
+		FileUtils.deleteQuietly(historyDirectory);
+	}
+
+	@Test(timeout=5000)
+	public void testThatQueuedJobIsPrefetched() throws Exception {
+		when(config.getMaximumQueuedJobs()).thenReturn(1);
+		when(config.getMaximumPrefetchedJobs()).thenReturn(1);
+		final Map<String, State> preparedIn = new ConcurrentHashMap<>();
+		final AtomicInteger prepared = new AtomicInteger();
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				File directory = (File) invocation.getArguments()[2];
+				Build build = manager.getBuild(UUID.fromString(directory.getName()));
+				preparedIn.put(directory.getName(), build.getBuildStatus().getState());
+				prepared.incrementAndGet();
+				Thread.sleep(500);
+				return null;
+			}
+		}).when(gitStagingDirectoryPreparer)
+				.prepareStagingDirectory(any(GitSource.class), any(Logger.class), any(File.class));
+		createManager();
+
+		for (int i = 0; i < CONCURRENT_JOBS; i++) {
+			manager.schedule(createRequest());
+		}
+
+		Build queued = manager.schedule(createRequest());
+		assertEquals(Status.SUCCEEDED, queued.get().getStatus());
+		assertEquals(State.QUEUED, preparedIn.get(queued.getUUID().toString()));
+		assertEquals(CONCURRENT_JOBS + 1, prepared.get());
+		assertFalse(new File(stagingDirectory, queued.getUUID().toString()).exists());
+	}
+
+	@Test(timeout=5000)
+	public void testThatKilledPrefetchedJobIsDiscarded() throws Exception {
+		when(config.getMaximumQueuedJobs()).thenReturn(1);
+		when(config.getMaximumPrefetchedJobs()).thenReturn(1);
+		setGitPullDuration(500l);
+		createManager();
+
+		for (int i = 0; i < CONCURRENT_JOBS; i++) {
+			manager.schedule(createRequest());
+		}
+
+		Build queued = manager.schedule(createRequest());
+		manager.killBuild(queued.getUUID());
+		assertEquals(FailureReason.CANCELLED, queued.getResult().get().getFailureReason());
+
+		// The prefetch is interrupted, and its staging directory is removed
+		File directory = new File(stagingDirectory, queued.getUUID().toString());
+		while (directory.exists()) {
+			Thread.sleep(10);
+		}
+		assertNotNull(manager.schedule(createRequest()).get());
+	}
+
+	@Test(timeout=30000)
+	public void testThatConcurrencyLimitHoldsUnderConcurrentScheduleAndKill() throws Exception {
+		assertThatConcurrencyLimitHolds();
+	}
+
+	@Test(timeout=30000)
+	public void testThatConcurrencyLimitHoldsWithPrefetching() throws Exception {
+		when(config.getMaximumPrefetchedJobs()).thenReturn(2);
+		assertThatConcurrencyLimitHolds();
+	}
+
+	private void assertThatConcurrencyLimitHolds() throws Exception {
+		final int threads = 8;
+		final int iterations = 200;
+		final AtomicInteger containers = new AtomicInteger();
+		final AtomicInteger maxContainers = new AtomicInteger();
+
+		when(config.getMaximumQueuedJobs()).thenReturn(5);
+		when(dockerClient.createContainer(Mockito.any(ContainerConfig.class), Mockito.anyString()))
+				.then(new Answer<ContainerCreation>() {
+					@Override
+					public ContainerCreation answer(InvocationOnMock invocation) throws Throwable {
+						int current = containers.incrementAndGet();
+						int max;
+						while ((max = maxContainers.get()) < current && !maxContainers.compareAndSet(max, current));
+						return createContainer();
+					}
+				});
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				containers.decrementAndGet();
+				return null;
+			}
+		}).when(dockerClient).removeContainer(Mockito.anyString(), Mockito.anyBoolean());
+		setGitPullDuration(1l);
+		createManager();
+
+		final List<Build> accepted = new CopyOnWriteArrayList<>();
+		final AtomicInteger rejected = new AtomicInteger();
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		ExecutorService clients = Executors.newFixedThreadPool(threads);
+
+		for (int t = 0; t < threads; t++) {
+			clients.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Random random = new Random();
+					startSignal.await();
+					for (int i = 0; i < iterations; i++) {
+						Build build = manager.schedule(createRequest());
+						if (build == null) {
+							rejected.incrementAndGet();
+						}
+						else {
+							accepted.add(build);
+						}
+
+						if (random.nextInt(3) == 0 && !accepted.isEmpty()) {
+							try {
+								manager.killBuild(accepted.get(random.nextInt(accepted.size())).getUUID());
+							}
+							catch (IllegalArgumentException e) {
+								// Build already finished or killed
+							}
+						}
+					}
+					return null;
+				}
+			});
+		}
+
+		startSignal.countDown();
+		clients.shutdown();
+		assertTrue(clients.awaitTermination(20, TimeUnit.SECONDS));
+
+		for (Build build : accepted) {
+			try {
+				build.get();
+			}
+			catch (CancellationException e) {
+				// Killed build
+			}
+			assertNull(manager.getBuild(build.getUUID()));
+		}
+
+		log.info("Accepted {}, rejected {}, max containers {}", accepted.size(), rejected.get(), maxContainers.get());
+		assertEquals(threads * iterations, accepted.size() + rejected.get());
+		assertTrue(maxContainers.get() <= CONCURRENT_JOBS);
+		assertEquals(0, containers.get());
+		assertNotNull(manager.schedule(createRequest()).get());
+	}
+
+	private void setContainerState(final int exitCode, final boolean oomKilled) throws DockerException, InterruptedException {
+		ContainerInfo containerInfo = Mockito.mock(ContainerInfo.class);
+		ContainerState containerState = Mockito.mock(ContainerState.class);
+		when(containerInfo.state()).thenReturn(containerState);
+		when(containerState.running()).thenReturn(false);
+		when(containerState.exitCode()).thenReturn(exitCode);
+		when(containerState.oomKilled()).thenReturn(oomKilled);
+		when(dockerClient.inspectContainer(Mockito.anyString())).thenReturn(containerInfo);
+	}
+
 	private void setGitPullDuration(final long duration) throws IOException {
+		gitPullDuration = duration;
+		if (gitPullStubbed) {
+			// Not stubbed again, because a running build may call the preparer meanwhile
+			return;
+		}
 		doAnswer(new Answer() {
 			@Override
 			public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
-				Thread.sleep(duration);
+				Thread.sleep(gitPullDuration);
 				return null;
 			}
 		}).when(gitStagingDirectoryPreparer)
-				.prepareStagingDirectory(any(GitSource.class), any(Logger.class), eq(stagingDirectory));
+				.prepareStagingDirectory(any(GitSource.class), any(Logger.class), any(File.class));
+		gitPullStubbed = true;
 	}
 
 	@Test
@@ -158,6 +528,188 @@ public class BuildManagerTest {
 		log.info("Result : {}", result.get());
 	}
 	
+	@Test(timeout=2000)
+	public void testThatFinishedBuildIsRetained() throws Exception {
+		Build build = manager.schedule(createRequest());
+		BuildResult result = build.get();
+		assertNull(manager.getBuild(build.getUUID()));
+
+		BuildStatus buildStatus = manager.findBuild(build.getUUID()).getBuildStatus();
+		assertEquals(State.DONE, buildStatus.getState());
+		assertEquals(result, buildStatus.getResult());
+		assertTrue(buildStatus.getSubmittedAt() <= buildStatus.getStagingAt());
+		assertTrue(buildStatus.getStagingAt() <= buildStatus.getRunningAt());
+		assertTrue(buildStatus.getRunningAt() <= buildStatus.getUploadingAt());
+		assertTrue(buildStatus.getUploadingAt() <= buildStatus.getDoneAt());
+		assertNotNull(manager.getLog(build.getUUID()));
+	}
+
+	@Test(timeout=5000)
+	public void testThatFinishedBuildIsRecorded() throws Exception {
+		File historyDirectory = Files.createTempDir();
+		when(config.getHistoryDirectory()).thenReturn(historyDirectory.getAbsolutePath());
+		when(config.getHistorySegmentSize()).thenReturn(1024L * 1024);
+		createManager();
+
+		Build build = manager.schedule(createRequest());
+		build.get();
+		BuildRecord record = manager.getHistory().get(build.getUUID());
+		assertEquals(Status.SUCCEEDED, record.getResult().getStatus());
+		assertEquals(Integer.valueOf(0), record.getExitCode());
+		assertNotNull(record.getDoneAt());
+		assertTrue(manager.getHistory().getLogFile(build.getUUID()).isFile());
+
+		manager.lifeCycleStopping(null);
+		FileUtils.deleteQuietly(historyDirectory);
+	}
+
+	@Test(timeout=5000)
+	public void testThatUnfinishedBuildIsRecoveredAfterRestart() throws Exception {
+		setGitPullDuration(1000l);
+		Build build = manager.schedule(createRequest());
+		setGitPullDuration(0l);
+		createManager();
+
+		Build recovered = manager.getBuild(build.getUUID());
+		assertNotNull(recovered);
+		assertEquals(Status.SUCCEEDED, recovered.get().getStatus());
+		// The build is removed from the journal after its listeners ran
+		BuildJournal journal = new BuildJournal(new File(stagingDirectory, ".builds"));
+		while (!journal.read().isEmpty()) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test(timeout=5000)
+	public void testThatRunningContainerIsReattachedAfterRestart() throws Exception {
+		UUID uuid = UUID.randomUUID();
+		BuildRecord record = new BuildRecord();
+		record.setUuid(uuid);
+		record.setRequest(createRequest());
+		record.setSubmittedAt(System.currentTimeMillis());
+		new BuildJournal(new File(stagingDirectory, ".builds")).write(record);
+		File buildDirectory = new File(stagingDirectory, uuid.toString());
+		buildDirectory.mkdirs();
+		// The container exited while the server was down
+		createdContainers.add(createLabelledContainer("reattached", uuid.toString(), "Exited (0) 1 minute ago"));
+
+		UUID orphan = UUID.randomUUID();
+		File orphanDirectory = new File(stagingDirectory, orphan.toString());
+		orphanDirectory.mkdirs();
+		createdContainers.add(createLabelledContainer("orphan", orphan.toString(), "Up 5 minutes"));
+		createManager();
+
+		Build build = manager.getBuild(uuid);
+		assertNotNull(build);
+		assertEquals(Status.SUCCEEDED, build.get().getStatus());
+		Mockito.verify(dockerClient, Mockito.never())
+				.createContainer(Mockito.any(ContainerConfig.class), Mockito.eq(uuid.toString()));
+		Mockito.verify(dockerClient).removeContainer("orphan", true);
+		Mockito.verify(dockerClient).removeContainer("reattached", true);
+		assertFalse(orphanDirectory.exists());
+		assertFalse(buildDirectory.exists());
+	}
+
+	private static Container createLabelledContainer(final String id, final String label, final String status) {
+		return new Container() {
+			@Override
+			public String id() {
+				return id;
+			}
+
+			@Override
+			public String status() {
+				return status;
+			}
+
+			@Override
+			public Map<String, String> labels() {
+				return Collections.singletonMap(ContainerMonitor.LABEL, label);
+			}
+		};
+	}
+
+	@Test(timeout=2000)
+	public void testThatRetainedResultsAreBounded() throws Exception {
+		when(config.getRetainedResults()).thenReturn(1);
+		createManager();
+
+		Build first = manager.schedule(createRequest());
+		first.get();
+		Build second = manager.schedule(createRequest());
+		second.get();
+		assertNull(manager.findBuild(first.getUUID()));
+		assertNotNull(manager.findBuild(second.getUUID()));
+	}
+
+	@Test(timeout=2000)
+	public void testBuildWithVirtualThreadsEnabled() throws Exception {
+		when(config.isVirtualThreadsEnabled()).thenReturn(true);
+		createManager();
+		assertEquals(Status.SUCCEEDED, manager.schedule(createRequest()).get().getStatus());
+	}
+
+	@Test(timeout=5000)
+	public void testBuildInWarmContainer() throws Exception {
+		ContainerInfo containerInfo = Mockito.mock(ContainerInfo.class);
+		ContainerState containerState = Mockito.mock(ContainerState.class);
+		when(containerInfo.state()).thenReturn(containerState);
+		when(containerState.running()).thenReturn(true);
+		when(dockerClient.inspectContainer(Mockito.anyString())).thenReturn(containerInfo);
+
+		MockedLogStream logStream = new MockedLogStream();
+		logStream.addMessage(new LogMessage(LogMessage.Stream.STDOUT, ByteBuffer.wrap("[INFO] BUILD SUCCESS\n".getBytes())));
+		ExecState execState = Mockito.mock(ExecState.class);
+		when(execState.running()).thenReturn(false);
+		when(execState.exitCode()).thenReturn(0);
+		when(dockerClient.execCreate(Mockito.anyString(), Mockito.any(String[].class), Mockito.<ExecCreateParam>anyVararg()))
+				.thenReturn("exec");
+		when(dockerClient.execStart(Mockito.anyString(), Mockito.<ExecStartParameter>anyVararg()))
+				.thenReturn(new MockedLogStream());
+		when(dockerClient.logs(Mockito.anyString(), Mockito.<LogsParam>anyVararg())).thenReturn(logStream);
+		when(dockerClient.execInspect("exec")).thenReturn(execState);
+		ImageInfo imageInfo = Mockito.mock(ImageInfo.class);
+		when(imageInfo.config()).thenReturn(ContainerConfig.builder().entrypoint("/entrypoint.sh").build());
+		when(dockerClient.inspectImage("java-maven")).thenReturn(imageInfo);
+
+		when(config.getPooledImages()).thenReturn(Lists.newArrayList("java-maven"));
+		when(config.getMaximumPoolSize()).thenReturn(1);
+		createManager();
+
+		while (manager.getContainerPoolStatistics().get(0).getIdleContainers() < 1) {
+			Thread.sleep(10);
+		}
+
+		BuildResult result = manager.schedule(createRequest()).get();
+		assertEquals(Status.SUCCEEDED, result.getStatus());
+		ArgumentCaptor<String[]> command = ArgumentCaptor.forClass(String[].class);
+		Mockito.verify(dockerClient).execCreate(Mockito.anyString(), command.capture(),
+				Mockito.<ExecCreateParam>anyVararg());
+		// The entrypoint of the image runs the build command, as in a container of its own
+		assertEquals("/entrypoint.sh", command.getValue()[3]);
+
+		ContainerPoolStatistics statistics = manager.getContainerPoolStatistics().get(0);
+		assertEquals(1, statistics.getHits());
+		assertEquals(0, statistics.getMisses());
+		assertNotNull(statistics.getAverageTimeToFirstLogMillisOnHit());
+	}
+
+	@Test(timeout=2000)
+	public void testBuildWithNonZeroExit() throws Exception {
+		setContainerState(1, false);
+		BuildResult result = manager.schedule(createRequest()).get();
+		assertEquals(Status.FAILED, result.getStatus());
+		assertEquals(FailureReason.NON_ZERO_EXIT, result.getFailureReason());
+	}
+
+	@Test(timeout=2000)
+	public void testBuildThatRanOutOfMemory() throws Exception {
+		setContainerState(137, true);
+		BuildResult result = manager.schedule(createRequest()).get();
+		assertEquals(Status.FAILED, result.getStatus());
+		assertEquals(FailureReason.OUT_OF_MEMORY, result.getFailureReason());
+	}
+
 	@Test(timeout=2000) // kill test after 2 seconds
 	public void testBuildWithTimeout() throws DockerException, InterruptedException, ExecutionException {
 		BuildRequest buildRequest = createRequest();
@@ -170,14 +722,105 @@ public class BuildManagerTest {
 		Assert.assertThat(buildResult.getLogLines(), Matchers.hasItem("[FATAL] Build timed out!"));
 	}
 
+	@Test(timeout=3000)
+	public void testBuildWithCloneTimeout() throws Exception {
+		when(config.getCloneTimeout()).thenReturn(1);
+		setGitPullDuration(20000l);
+
+		BuildResult buildResult = manager.schedule(createRequest()).get();
+		assertEquals(Status.FAILED, buildResult.getStatus());
+		Assert.assertThat(buildResult.getLogLines(), Matchers.hasItem("[FATAL] Preparing the sources timed out!"));
+	}
+
+	@Test(timeout=5000)
+	public void testThatContainerIsCreatedWhileStaging() throws Exception {
+		final AtomicBoolean staging = new AtomicBoolean();
+		final AtomicBoolean createdWhileStaging = new AtomicBoolean();
+		final CountDownLatch stagingStarted = new CountDownLatch(1);
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				staging.set(true);
+				stagingStarted.countDown();
+				Thread.sleep(500);
+				staging.set(false);
+				return null;
+			}
+		}).when(gitStagingDirectoryPreparer)
+				.prepareStagingDirectory(any(GitSource.class), any(Logger.class), any(File.class));
+		when(dockerClient.createContainer(Mockito.any(ContainerConfig.class), Mockito.anyString()))
+				.then(new Answer<ContainerCreation>() {
+					@Override
+					public ContainerCreation answer(InvocationOnMock invocation) throws Throwable {
+						// The creation may be submitted before the staging starts
+						stagingStarted.await(1, TimeUnit.SECONDS);
+						createdWhileStaging.set(staging.get());
+						Thread.sleep(200);
+						return createContainer();
+					}
+				});
+
+		Build build = manager.schedule(createRequest());
+		assertEquals(Status.SUCCEEDED, build.get().getStatus());
+		assertTrue(createdWhileStaging.get());
+
+		ProvisioningTimings timings = build.getBuildStatus().getProvisioning();
+		assertTrue(timings.getStagingMillis() >= 500);
+		assertTrue(timings.getCreateMillis() >= 200);
+		assertNotNull(timings.getImageCheckMillis());
+		assertNotNull(timings.getStartMillis());
+		assertTrue(timings.getSavedMillis() >= 100);
+	}
+
+	@Test(timeout=5000)
+	public void testThatContainerIsRemovedWhenStagingFails() throws Exception {
+		doThrow(new IOException("Repository not found")).when(gitStagingDirectoryPreparer)
+				.prepareStagingDirectory(any(GitSource.class), any(Logger.class), any(File.class));
+
+		Build build = manager.schedule(createRequest());
+		assertEquals(FailureReason.ERROR, build.getResult().get().getFailureReason());
+
+		Container container = createdContainers.peek();
+		assertNotNull(container);
+		Mockito.verify(dockerClient).removeContainer(container.id(), true);
+		Mockito.verify(dockerClient, Mockito.never()).startContainer(Mockito.anyString());
+	}
+
+	@Test(timeout=5000)
+	public void testThatBuildForMissingImageFails() throws Exception {
+		when(dockerClient.inspectImage(Mockito.anyString())).thenThrow(new ImageNotFoundException("maven"));
+
+		BuildResult buildResult = manager.schedule(createRequest()).get();
+		assertEquals(Status.FAILED, buildResult.getStatus());
+		Assert.assertThat(buildResult.getLogLines(), Matchers.hasItem(Matchers.startsWith("[FATAL] Image ")));
+		Mockito.verify(dockerClient, Mockito.never())
+				.createContainer(Mockito.any(ContainerConfig.class), Mockito.anyString());
+	}
+
+	@Test(timeout=3000)
+	public void testBuildWithIdleTimeout() throws Exception {
+		when(config.getIdleTimeout()).thenReturn(1);
+		setContainerExitDuration(20000l); // container without output
+
+		BuildResult buildResult = manager.schedule(createRequest()).get();
+		assertEquals(Status.FAILED, buildResult.getStatus());
+		Assert.assertThat(buildResult.getLogLines(),
+				Matchers.hasItem("[FATAL] Build did not produce output for 1 seconds!"));
+	}
+
 	private void setContainerExitDuration(final long duration) throws DockerException, InterruptedException {
-		when(dockerClient.waitContainer(Mockito.anyString())).then(new Answer<ContainerExit>() {
+		final long exitTime = System.currentTimeMillis() + duration;
+		when(dockerClient.inspectContainer(Mockito.anyString())).then(new Answer<ContainerInfo>() {
 
 			@Override
-			public ContainerExit answer(InvocationOnMock invocation)
+			public ContainerInfo answer(InvocationOnMock invocation)
 					throws Throwable {
-				Thread.sleep(duration); // sleep 20 seconds
-				return new ContainerExit(0);
+				ContainerInfo containerInfo = Mockito.mock(ContainerInfo.class);
+				ContainerState containerState = Mockito.mock(ContainerState.class);
+				when(containerInfo.state()).thenReturn(containerState);
+				when(containerState.running()).thenReturn(System.currentTimeMillis() < exitTime);
+				when(containerState.exitCode()).thenReturn(0);
+				return containerInfo;
 			}
 
 		});
@@ -0,0 +1,93 @@
+package nl.tudelft.ewi.build.builds;
+
+import nl.tudelft.ewi.build.builds.DeadlineService.Deadline;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeadlineServiceTest {
+
+	private DeadlineService deadlineService;
+
+	@Before
+	public void setUp() {
+		Executor directExecutor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+		deadlineService = new DeadlineService(directExecutor, 10, TimeUnit.MILLISECONDS, 8);
+	}
+
+	@After
+	public void tearDown() {
+		deadlineService.stop();
+	}
+
+	@Test(timeout=2000)
+	public void testThatDeadlineExpires() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		Deadline deadline = deadlineService.schedule(countDown(latch), 50, TimeUnit.MILLISECONDS);
+		latch.await();
+		assertTrue(deadline.isExpired());
+		assertEquals(0, deadlineService.getPendingDeadlines());
+	}
+
+	@Test
+	public void testThatCancelledDeadlineDoesNotExpire() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		Deadline deadline = deadlineService.schedule(countDown(latch), 50, TimeUnit.MILLISECONDS);
+		assertTrue(deadline.cancel());
+		assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+		assertTrue(deadline.isCancelled());
+		assertFalse(deadline.cancel());
+		assertEquals(0, deadlineService.getPendingDeadlines());
+	}
+
+	@Test(timeout=2000)
+	public void testThatDeadlineBeyondOneRotationDoesNotExpireEarly() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+		// The wheel of 8 buckets of 10 ms rotates every 80 ms
+		deadlineService.schedule(countDown(latch), 300, TimeUnit.MILLISECONDS);
+		latch.await();
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+	}
+
+	@Test(timeout=5000)
+	public void testThatManyDeadlinesExpire() throws InterruptedException {
+		int count = 10000;
+		CountDownLatch latch = new CountDownLatch(count / 2);
+		Random random = new Random();
+
+		for (int i = 0; i < count; i++) {
+			Deadline deadline = deadlineService.schedule(countDown(latch), random.nextInt(500), TimeUnit.MILLISECONDS);
+			if (i % 2 == 0) {
+				deadline.cancel();
+			}
+		}
+
+		latch.await();
+		assertEquals(0, deadlineService.getPendingDeadlines());
+	}
+
+	private static Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+	}
+
+}
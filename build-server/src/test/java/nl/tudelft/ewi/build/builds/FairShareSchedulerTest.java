@@ -0,0 +1,193 @@
+package nl.tudelft.ewi.build.builds;
+
+import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.builds.FairShareScheduler.Admission;
+import nl.tudelft.ewi.build.jaxrs.models.TenantStatistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FairShareSchedulerTest {
+
+	private static final String A = "a";
+	private static final String B = "b";
+
+	@Mock private Config config;
+
+	private FairShareScheduler<String> scheduler;
+
+	@Before
+	public void setUp() {
+		when(config.getMaximumConcurrentJobs()).thenReturn(1);
+		when(config.getMaximumQueuedJobs()).thenReturn(100);
+		when(config.getTenantWeight(anyString())).thenReturn(1);
+	}
+
+	@Test
+	public void testThatTenantsAlternate() {
+		scheduler = new FairShareScheduler<>(config);
+		assertEquals(Admission.STARTED, scheduler.offer(A, "a0"));
+		for (int i = 1; i <= 3; i++) {
+			assertEquals(Admission.QUEUED, scheduler.offer(A, "a" + i));
+		}
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Admission.QUEUED, scheduler.offer(B, "b" + i));
+		}
+
+		assertEquals("b0", scheduler.release(A));
+		assertEquals("a1", scheduler.release(B));
+		assertEquals("b1", scheduler.release(A));
+		assertEquals("a2", scheduler.release(B));
+		assertEquals("b2", scheduler.release(A));
+		assertEquals("a3", scheduler.release(B));
+		assertNull(scheduler.release(A));
+		assertEquals(0, scheduler.getRunningBuilds());
+	}
+
+	@Test
+	public void testThatTenantThatBuiltAloneIsNotStarved() {
+		scheduler = new FairShareScheduler<>(config);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(Admission.STARTED, scheduler.offer(A, "alone" + i));
+			assertNull(scheduler.release(A));
+		}
+
+		assertEquals(Admission.STARTED, scheduler.offer(A, "a0"));
+		for (int i = 1; i <= 3; i++) {
+			scheduler.offer(A, "a" + i);
+		}
+		for (int i = 0; i < 3; i++) {
+			scheduler.offer(B, "b" + i);
+		}
+
+		assertEquals("b0", scheduler.release(A));
+		assertEquals("a1", scheduler.release(B));
+		assertEquals("b1", scheduler.release(A));
+		assertEquals("a2", scheduler.release(B));
+		assertEquals("b2", scheduler.release(A));
+		assertEquals("a3", scheduler.release(B));
+	}
+
+	@Test
+	public void testThatWeightDeterminesShare() {
+		when(config.getTenantWeight(A)).thenReturn(2);
+		scheduler = new FairShareScheduler<>(config);
+		assertEquals(Admission.STARTED, scheduler.offer(B, "blocker"));
+		for (int i = 0; i < 6; i++) {
+			scheduler.offer(A, "a" + i);
+			scheduler.offer(B, "b" + i);
+		}
+
+		String tenant = B;
+		int startedForA = 0;
+		for (int i = 0; i < 9; i++) {
+			String next = scheduler.release(tenant);
+			tenant = next.substring(0, 1);
+			if (tenant.equals(A)) {
+				startedForA++;
+			}
+		}
+		assertEquals(6, startedForA);
+	}
+
+	@Test
+	public void testThatTenantCapIsEnforced() {
+		when(config.getMaximumConcurrentJobs()).thenReturn(3);
+		when(config.getTenantMaximumConcurrentJobs(A)).thenReturn(1);
+		scheduler = new FairShareScheduler<>(config);
+
+		assertEquals(Admission.STARTED, scheduler.offer(A, "a0"));
+		assertEquals(Admission.QUEUED, scheduler.offer(A, "a1"));
+		assertEquals(Admission.STARTED, scheduler.offer(B, "b0"));
+		assertEquals(Admission.STARTED, scheduler.offer(B, "b1"));
+		assertEquals(Admission.QUEUED, scheduler.offer(B, "b2"));
+
+		// The slot of B goes to B, because A is at its cap
+		assertEquals("b2", scheduler.release(B));
+		assertEquals("a1", scheduler.release(A));
+	}
+
+	@Test
+	public void testThatQueuedBuildCanBeRemoved() {
+		scheduler = new FairShareScheduler<>(config);
+		scheduler.offer(A, "a0");
+		scheduler.offer(A, "a1");
+		scheduler.offer(A, "a2");
+		scheduler.offer(B, "b0");
+
+		// B did not start a build yet, so it goes before the queue of A
+		assertEquals(Integer.valueOf(0), scheduler.getQueuePosition(B, "b0"));
+		assertEquals(Integer.valueOf(1), scheduler.getQueuePosition(A, "a1"));
+		assertEquals(Integer.valueOf(2), scheduler.getQueuePosition(A, "a2"));
+		assertNull(scheduler.getQueuePosition(A, "a0"));
+
+		assertTrue(scheduler.remove(A, "a1"));
+		assertFalse(scheduler.remove(A, "a1"));
+		assertEquals(2, scheduler.getQueuedBuilds());
+		assertEquals("b0", scheduler.release(A));
+	}
+
+	@Test
+	public void testThatPrefetchFollowsStartOrder() {
+		when(config.getMaximumPrefetchedJobs()).thenReturn(2);
+		scheduler = new FairShareScheduler<>(config);
+		scheduler.offer(A, "a0");
+		scheduler.offer(A, "a1");
+		scheduler.offer(A, "a2");
+		scheduler.offer(B, "b0");
+
+		assertEquals("b0", scheduler.prefetch());
+		assertEquals("a1", scheduler.prefetch());
+		// The window is full
+		assertNull(scheduler.prefetch());
+		assertEquals(2, scheduler.getPrefetchedBuilds());
+
+		// A prefetched build that starts makes room in the window
+		assertEquals("b0", scheduler.release(A));
+		assertEquals(1, scheduler.getPrefetchedBuilds());
+		assertEquals("a2", scheduler.prefetch());
+
+		assertTrue(scheduler.remove(A, "a2"));
+		assertEquals(1, scheduler.getPrefetchedBuilds());
+		assertNull(scheduler.prefetch());
+	}
+
+	@Test
+	public void testThatStatisticsAreCollected() throws InterruptedException {
+		when(config.getMaximumQueuedJobs()).thenReturn(1);
+		scheduler = new FairShareScheduler<>(config);
+		scheduler.offer(A, "a0");
+		scheduler.offer(A, "a1");
+		assertEquals(Admission.REJECTED, scheduler.offer(B, "b0"));
+		Thread.sleep(20);
+		scheduler.release(A);
+
+		List<TenantStatistics> statistics = scheduler.getStatistics();
+		assertEquals(2, statistics.size());
+
+		TenantStatistics a = statistics.get(0);
+		assertEquals(A, a.getTenant());
+		assertEquals(1, a.getRunningBuilds());
+		assertEquals(0, a.getQueuedBuilds());
+		assertEquals(2, a.getStartedBuilds());
+		assertTrue(a.getMaximumWaitMillis() >= 20);
+		assertTrue(a.getAverageWaitMillis() >= 10);
+
+		TenantStatistics b = statistics.get(1);
+		assertEquals(B, b.getTenant());
+		assertEquals(1, b.getRejectedBuilds());
+	}
+
+}
@@ -0,0 +1,63 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LineDecoderTest {
+
+	private final LineDecoder decoder = new LineDecoder(10);
+
+	@Test
+	public void testThatFramesAreSplitIntoLines() {
+		ByteBuffer buffer = wrap("one\r\ntwo\nthr");
+		assertEquals("one", decoder.decode(buffer));
+		assertEquals("two", decoder.decode(buffer));
+		assertNull(decoder.decode(buffer));
+
+		assertEquals("three", decoder.decode(wrap("ee\n")));
+		assertNull(decoder.flush());
+	}
+
+	@Test
+	public void testThatCodePointsAreCarriedAcrossFrames() {
+		byte[] bytes = "café\n".getBytes(Charsets.UTF_8);
+		assertNull(decoder.decode(ByteBuffer.wrap(bytes, 0, 4)));
+		assertEquals("café", decoder.decode(ByteBuffer.wrap(bytes, 4, bytes.length - 4)));
+	}
+
+	@Test
+	public void testThatLongLinesAreTruncated() {
+		ByteBuffer buffer = wrap(Strings.repeat("€", 25) + "\nnext\n");
+		assertEquals(Strings.repeat("€", 10), decoder.decode(buffer));
+		assertEquals("next", decoder.decode(buffer));
+	}
+
+	@Test
+	public void testThatPartialLineIsFlushed() {
+		assertNull(decoder.decode(wrap("[INFO] BUILD")));
+		assertEquals("[INFO] BUI", decoder.flush());
+		assertNull(decoder.flush());
+	}
+
+	@Test
+	public void testThatBinaryOutputIsTruncated() {
+		byte[] bytes = new byte[1000];
+		Arrays.fill(bytes, (byte) 0x85);
+		assertNull(decoder.decode(ByteBuffer.wrap(bytes)));
+		// The line is cut off at the size of the buffer, four bytes per code point
+		assertEquals(Strings.repeat("\uFFFD", 40), decoder.decode(wrap("\n")));
+		assertEquals("next", decoder.decode(wrap("next\n")));
+	}
+
+	private static ByteBuffer wrap(final String value) {
+		return ByteBuffer.wrap(value.getBytes(Charsets.UTF_8));
+	}
+
+}
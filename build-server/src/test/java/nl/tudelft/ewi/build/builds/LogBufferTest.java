@@ -0,0 +1,111 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.spotify.docker.client.LogMessage;
+import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LogBufferTest {
+
+	private final LogBuffer buffer = new LogBuffer();
+
+	@Test
+	public void testThatLinesCanBeRead() {
+		buffer.append("[INFO] BUILD SUCCESS");
+		buffer.append("");
+		buffer.append("café");
+		assertEquals(Lists.newArrayList("[INFO] BUILD SUCCESS", "", "café"), buffer);
+	}
+
+	@Test
+	public void testThatLinesSpanChunks() {
+		String line = Strings.repeat("é", 1000);
+		for (int i = 0; i < 20; i++) {
+			buffer.append(line);
+		}
+
+		assertEquals(20, buffer.size());
+		for (String read : buffer) {
+			assertEquals(line, read);
+		}
+		assertTrue(buffer.getMemoryUsage() >= 20 * 2000);
+		assertTrue(buffer.getMemoryUsage() < 20 * 2000 + 2 * LogBuffer.CHUNK_SIZE);
+	}
+
+	@Test
+	public void testThatLinesAreSpilledToDisk() {
+		File directory = Files.createTempDir();
+		LogBuffer buffer = new LogBuffer(directory, "build", 2 * LogBuffer.CHUNK_SIZE);
+		int lines = 100000;
+		for (int i = 0; i < lines; i++) {
+			buffer.append("[INFO] Line " + i);
+		}
+
+		assertTrue(buffer.getSpilledBytes() > 0);
+		assertTrue(buffer.getMemoryUsage() < 4 * LogBuffer.CHUNK_SIZE + lines / LogBuffer.INDEX_INTERVAL * 16);
+		assertEquals("[INFO] Line 0", buffer.get(0));
+		assertEquals("[INFO] Line 54321", buffer.get(54321));
+		assertEquals("[INFO] Line 54322", buffer.get(54322));
+
+		List<String> headAndTail = buffer.getHeadAndTail(2, 1);
+		assertEquals(Lists.newArrayList("[INFO] Line 0", "[INFO] Line 1",
+				"[WARN] Omitted 99997 lines of the log...", "[INFO] Line 99999"), headAndTail);
+
+		buffer.delete();
+		assertEquals(0, directory.list().length);
+		directory.delete();
+	}
+
+	@Test
+	public void testThatReadersAreNotifiedOfNewLines() {
+		buffer.append("[INFO] Scanning for projects...");
+		assertTrue(buffer.await(0).isDone());
+
+		ListenableFuture<Void> first = buffer.await(1);
+		ListenableFuture<Void> second = buffer.await(1);
+		assertFalse(first.isDone());
+		assertSame(first, second);
+
+		buffer.append("[INFO] BUILD SUCCESS");
+		assertTrue(first.isDone());
+
+		ListenableFuture<Void> next = buffer.await(2);
+		assertFalse(next.isDone());
+		buffer.close();
+		assertTrue(next.isDone());
+		assertTrue(buffer.await(3).isDone());
+	}
+
+	@Test
+	public void testThatLoggerJoinsLinesAcrossFrames() {
+		BuildResult buildResult = new BuildResult();
+		BuildResultLogger logger = new BuildResultLogger(buildResult);
+		logger.consume(message(LogMessage.Stream.STDOUT, "[INFO] Tests "));
+		logger.consume(message(LogMessage.Stream.STDERR, "warning\n"));
+		logger.consume(message(LogMessage.Stream.STDOUT, "run: 4\n[INFO] BUILD"));
+		logger.println("[FATAL] Build was cancelled!");
+		logger.close();
+
+		assertEquals(Lists.newArrayList("warning", "[INFO] Tests run: 4", "[INFO] BUILD",
+				"[FATAL] Build was cancelled!"), buildResult.getLogLines());
+		assertEquals(4, logger.getLineCount());
+	}
+
+	private static LogMessage message(final LogMessage.Stream stream, final String content) {
+		return new LogMessage(stream, ByteBuffer.wrap(content.getBytes(Charsets.UTF_8)));
+	}
+
+}
@@ -0,0 +1,126 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.spotify.docker.client.LogMessage;
+import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput and allocation rate of decoding container output
+ * per frame with the {@link LineDecoder}. This is not a unit test; run it
+ * with {@code mvn exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.tudelft.ewi.build.builds.LogDecodingBenchmark}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class LogDecodingBenchmark {
+
+	private static final int MAX_LINE_LENGTH = 120;
+	private static final int FRAMES = 200000;
+	private static final int ITERATIONS = 5;
+
+	public static void main(String[] args) {
+		ByteBuffer[] frames = createFrames();
+		long bytes = 0;
+		for(ByteBuffer frame : frames) {
+			bytes += frame.remaining();
+		}
+
+		for(int i = 0; i < ITERATIONS; i++) {
+			report("per frame", bytes, measure(frames, false));
+			report("decoder", bytes, measure(frames, true));
+		}
+
+		// The logger as a whole, which also stores the lines
+		long start = System.nanoTime();
+		long allocated = getAllocatedBytes();
+		BuildResultLogger logger = new BuildResultLogger(new BuildResult());
+		for(ByteBuffer frame : frames) {
+			logger.consume(new LogMessage(LogMessage.Stream.STDOUT, frame.duplicate()));
+		}
+		logger.close();
+		report("logger", bytes, new long[] { System.nanoTime() - start, getAllocatedBytes() - allocated });
+	}
+
+	/**
+	 * Maven output in frames of arbitrary size, with some lines over the
+	 * maximum length.
+	 */
+	private static ByteBuffer[] createFrames() {
+		String[] lines = {
+			"[INFO] Scanning for projects...",
+			"[INFO] ------------------------------------------------------------------------",
+			"Running nl.tudelft.jpacman.board.BoardTest",
+			"Tests run: 4, Failures: 0, Errors: 0, Skipped: 0, Time elapsed: 0.021 sec",
+			"[WARNING] " + Strings.repeat("Some very long warning about a deprecated API ", 6)
+		};
+
+		StringBuilder output = new StringBuilder();
+		for(int i = 0; output.length() < FRAMES * 64; i++) {
+			output.append(lines[i % lines.length]).append('\n');
+		}
+
+		byte[] data = output.toString().getBytes(Charsets.UTF_8);
+		ByteBuffer[] frames = new ByteBuffer[FRAMES];
+		int offset = 0;
+		for(int i = 0; i < FRAMES; i++) {
+			int length = 32 + (i * 31) % 64;
+			frames[i] = ByteBuffer.wrap(data, offset, length).slice();
+			offset += length;
+		}
+		return frames;
+	}
+
+	/**
+	 * @return the elapsed nanoseconds and allocated bytes
+	 */
+	private static long[] measure(final ByteBuffer[] frames, final boolean useDecoder) {
+		LineDecoder decoder = new LineDecoder(MAX_LINE_LENGTH);
+		long checksum = 0;
+		long start = System.nanoTime();
+		long allocated = getAllocatedBytes();
+
+		for(ByteBuffer frame : frames) {
+			ByteBuffer content = frame.duplicate();
+			if(useDecoder) {
+				String line;
+				while((line = decoder.decode(content)) != null) {
+					checksum += line.length();
+				}
+			}
+			else {
+				String line = Charsets.UTF_8.decode(content).toString();
+				if(line.length() > MAX_LINE_LENGTH) {
+					line = line.substring(0, MAX_LINE_LENGTH);
+				}
+				checksum += line.length();
+			}
+		}
+
+		long[] result = { System.nanoTime() - start, getAllocatedBytes() - allocated };
+		if(checksum == 42) {
+			System.out.print("");
+		}
+		return result;
+	}
+
+	private static void report(final String name, final long bytes, final long[] result) {
+		double seconds = result[0] / (double) TimeUnit.SECONDS.toNanos(1);
+		System.out.println(String.format("%-10s %8.1f MB/s %8.2f allocated bytes per input byte",
+				name, bytes / seconds / 1e6, result[1] / (double) bytes));
+	}
+
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if(threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadMXBean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+}
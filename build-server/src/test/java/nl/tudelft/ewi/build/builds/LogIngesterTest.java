@@ -0,0 +1,131 @@
+package nl.tudelft.ewi.build.builds;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.DockerClient.LogsParam;
+import com.spotify.docker.client.LogMessage;
+import com.spotify.docker.client.MockedLogStream;
+import nl.tudelft.ewi.build.jaxrs.models.LogIngestStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LogIngesterTest {
+
+	private static final String CONTAINER = "container";
+
+	@Mock private DockerClient dockerClient;
+
+	private LogIngester logIngester;
+
+	@Before
+	public void setUp() {
+		logIngester = new LogIngester(dockerClient, 2, 10, TimeUnit.MILLISECONDS);
+	}
+
+	@After
+	public void tearDown() {
+		logIngester.stop();
+	}
+
+	@Test(timeout=2000)
+	public void testThatLinesAreIngestedOnce() throws Exception {
+		when(dockerClient.logs(Mockito.eq(CONTAINER), Mockito.<LogsParam>anyVararg())).thenReturn(
+				stream("2016-01-01T00:00:01.000000001Z one", "2016-01-01T00:00:02.5Z two"),
+				// Lines since the last second are returned again
+				stream("2016-01-01T00:00:02.5Z two", "2016-01-01T00:00:02.5Z three", "2016-01-01T00:00:03Z four"),
+				stream());
+
+		final List<String> lines = new CopyOnWriteArrayList<>();
+		LogIngester.Subscription subscription = logIngester.subscribe(CONTAINER, new LogIngester.Sink() {
+			@Override
+			public void consume(LogMessage message) {
+				lines.add(Charsets.UTF_8.decode(message.content()).toString());
+			}
+		});
+
+		subscription.drain().get();
+		assertEquals(Lists.newArrayList("one\n", "two\n", "three\n", "four\n"), lines);
+
+		LogIngestStatistics statistics = logIngester.getStatistics();
+		assertEquals(4, statistics.getLines());
+		assertEquals(19, statistics.getBytes());
+		assertEquals(0, statistics.getSubscriptions());
+	}
+
+	@Test(timeout=2000)
+	public void testThatFramesWithoutTimestampAreIngestedOnce() throws Exception {
+		when(dockerClient.logs(Mockito.eq(CONTAINER), Mockito.<LogsParam>anyVararg())).thenReturn(
+				stream("banner"),
+				// The log is returned from the start until a timestamp is seen
+				stream("banner", "2016-01-01T00:00:01Z one", "garbage"),
+				stream("2016-01-01T00:00:01Z one", "garbage", "2016-01-01T00:00:02Z two"),
+				stream());
+
+		final List<String> lines = new CopyOnWriteArrayList<>();
+		LogIngester.Subscription subscription = logIngester.subscribe(CONTAINER, new LogIngester.Sink() {
+			@Override
+			public void consume(LogMessage message) {
+				lines.add(Charsets.UTF_8.decode(message.content()).toString());
+			}
+		});
+
+		subscription.drain().get();
+		assertEquals(Lists.newArrayList("banner\n", "one\n", "two\n"), lines);
+	}
+
+	@Test(timeout=2000)
+	public void testThatLinesAreCountedByLineEndings() throws Exception {
+		MockedLogStream stream = new MockedLogStream();
+		stream.addMessage(new LogMessage(LogMessage.Stream.STDOUT,
+				ByteBuffer.wrap("2016-01-01T00:00:01Z one\ntwo\nthree\n".getBytes(Charsets.UTF_8))));
+		stream.addMessage(new LogMessage(LogMessage.Stream.STDOUT,
+				ByteBuffer.wrap("2016-01-01T00:00:02Z partial".getBytes(Charsets.UTF_8))));
+		when(dockerClient.logs(Mockito.eq(CONTAINER), Mockito.<LogsParam>anyVararg())).thenReturn(
+				stream, stream());
+
+		logIngester.subscribe(CONTAINER, new LogIngester.Sink() {
+			@Override
+			public void consume(LogMessage message) {
+			}
+		}).drain().get();
+
+		assertEquals(3, logIngester.getStatistics().getLines());
+	}
+
+	@Test
+	public void testParseTimestamp() {
+		assertEquals(TimeUnit.SECONDS.toNanos(1451606400L), parse("2016-01-01T00:00:00Z"));
+		assertEquals(TimeUnit.SECONDS.toNanos(1451606400L) + 123456789L, parse("2016-01-01T00:00:00.123456789Z"));
+		assertEquals(TimeUnit.SECONDS.toNanos(951782400L) + 500000000L, parse("2000-02-29T00:00:00.5Z"));
+		assertEquals(-1, parse("[INFO] BUILD SUCCESS"));
+	}
+
+	private static long parse(final String timestamp) {
+		ByteBuffer buffer = ByteBuffer.wrap(timestamp.getBytes(Charsets.UTF_8));
+		return LogIngester.parseTimestamp(buffer, buffer.limit());
+	}
+
+	private static MockedLogStream stream(final String... lines) {
+		MockedLogStream stream = new MockedLogStream();
+		for (String line : lines) {
+			stream.addMessage(new LogMessage(LogMessage.Stream.STDOUT, ByteBuffer.wrap((line + "\n").getBytes(Charsets.UTF_8))));
+		}
+		return stream;
+	}
+
+}
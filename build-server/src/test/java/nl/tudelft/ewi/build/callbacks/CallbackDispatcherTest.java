@@ -0,0 +1,428 @@
+package nl.tudelft.ewi.build.callbacks;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.extensions.plugins.MavenBuildPluginInterpreter;
+import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+import nl.tudelft.ewi.build.jaxrs.models.CallbackStatistics;
+import nl.tudelft.ewi.build.jaxrs.models.MavenBuildInstruction;
+import nl.tudelft.ewi.build.jaxrs.models.plugins.MavenBuildPlugin;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.ProcessingException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class CallbackDispatcherTest {
+
+	private static final int CONNECTIONS_PER_HOST = 2;
+
+	private final Queue<String> received = new ConcurrentLinkedQueue<>();
+	private final CountDownLatch slowHost = new CountDownLatch(1);
+	private final AtomicInteger slowRequests = new AtomicInteger();
+	private final AtomicInteger maximumSlowRequests = new AtomicInteger();
+	private final AtomicInteger flakyRequests = new AtomicInteger();
+	private final AtomicBoolean outage = new AtomicBoolean();
+	private final Queue<String> idempotencyKeys = new ConcurrentLinkedQueue<>();
+	private final Queue<String> encodings = new ConcurrentLinkedQueue<>();
+
+	private Server server;
+	private int port;
+	private Config config;
+	private CallbackDispatcher dispatcher;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new Server();
+		ServerConnector connector = new ServerConnector(server);
+		connector.setPort(0);
+		server.addConnector(connector);
+
+		ServletContextHandler handler = new ServletContextHandler();
+		handler.addServlet(new ServletHolder(new HttpServlet() {
+			@Override
+			protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+				InputStream inputStream = request.getInputStream();
+				String encoding = Strings.nullToEmpty(request.getHeader("Content-Encoding"));
+				encodings.add(encoding);
+				if (encoding.equals("gzip")) {
+					if (request.getPathInfo().equals("/identity")) {
+						IOUtils.copy(inputStream, NullOutputStream.NULL_OUTPUT_STREAM);
+						response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+						return;
+					}
+					inputStream = new GZIPInputStream(inputStream);
+				}
+				String body = CharStreams.toString(new InputStreamReader(inputStream, Charsets.UTF_8));
+				switch (request.getPathInfo()) {
+					case "/slow":
+						awaitSlowHost();
+						break;
+					case "/outage":
+						if (outage.get()) {
+							response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+							return;
+						}
+						break;
+					case "/flaky":
+						if (flakyRequests.incrementAndGet() <= 2) {
+							response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+							return;
+						}
+						break;
+					default:
+						break;
+				}
+				received.add(body);
+				idempotencyKeys.add(Strings.nullToEmpty(request.getHeader("Idempotency-Key")));
+				response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			}
+		}), "/*");
+		server.setHandler(handler);
+		server.start();
+		port = connector.getLocalPort();
+
+		config = Mockito.mock(Config.class);
+		when(config.getCallbackConnections()).thenReturn(8);
+		when(config.getCallbackConnectionsPerHost()).thenReturn(CONNECTIONS_PER_HOST);
+		when(config.getCallbackAttempts()).thenReturn(3);
+		when(config.getCallbackBackoff()).thenReturn(10);
+		when(config.getCallbackTimeout()).thenReturn(10000);
+		dispatcher = new CallbackDispatcher(config, new CallbackClient(config));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		slowHost.countDown();
+		dispatcher.stop();
+		server.stop();
+	}
+
+	private void awaitSlowHost() {
+		int requests = slowRequests.incrementAndGet();
+		int maximum;
+		while (requests > (maximum = maximumSlowRequests.get())
+				&& !maximumSlowRequests.compareAndSet(maximum, requests)) {
+			// Retry
+		}
+		try {
+			slowHost.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			slowRequests.decrementAndGet();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testThatSlowHostDoesNotDelayOtherHosts() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			dispatcher.deliver("http://127.0.0.1:" + port + "/slow", createResult());
+		}
+		BuildResult result = createResult();
+		dispatcher.deliver("http://localhost:" + port + "/fast", result);
+
+		awaitDelivered(1);
+		assertThat(received.peek(), containsString(result.getUuid().toString()));
+		while (slowRequests.get() < CONNECTIONS_PER_HOST) {
+			Thread.sleep(10);
+		}
+		assertEquals(CONNECTIONS_PER_HOST, maximumSlowRequests.get());
+
+		slowHost.countDown();
+		awaitDelivered(6);
+		assertThat(maximumSlowRequests.get(), lessThanOrEqualTo(CONNECTIONS_PER_HOST));
+		assertEquals(0, dispatcher.getStatistics().getPending());
+	}
+
+	@Test(timeout = 10000)
+	public void testThatStoppingWaitsForAttemptsInProgress() throws Exception {
+		dispatcher.deliver("http://127.0.0.1:" + port + "/slow", createResult());
+		while (slowRequests.get() < 1) {
+			Thread.sleep(10);
+		}
+
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				slowHost.countDown();
+			}
+		}.start();
+		dispatcher.lifeCycleStopping(null);
+		assertEquals(1, received.size());
+		assertEquals(1, dispatcher.getStatistics().getDelivered());
+	}
+
+	@Test(timeout = 10000)
+	public void testThatFailedAttemptsAreRetried() throws Exception {
+		dispatcher.deliver("http://localhost:" + port + "/flaky", createResult());
+		awaitDelivered(1);
+
+		CallbackStatistics statistics = dispatcher.getStatistics();
+		assertEquals(3, statistics.getAttempts());
+		assertEquals(2, statistics.getFailedAttempts());
+		assertEquals(0, statistics.getFailed());
+		assertTrue(statistics.getAverageDeliveryMillis() != null);
+	}
+
+	@Test(timeout = 10000)
+	public void testThatUndeliverableResultFails() throws Exception {
+		when(config.getCallbackAttempts()).thenReturn(2);
+		dispatcher.stop();
+		dispatcher = new CallbackDispatcher(config, new CallbackClient(config));
+
+		dispatcher.deliver("http://localhost:" + port + "/flaky", createResult());
+		while (dispatcher.getStatistics().getFailed() < 1) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, dispatcher.getStatistics().getAttempts());
+		assertEquals(0, dispatcher.getStatistics().getPending());
+	}
+
+	@Test(timeout = 10000)
+	public void testThatUndeliveredResultIsDeliveredAfterRestart() throws Exception {
+		File outboxDirectory = Files.createTempDir();
+		try {
+			when(config.getCallbackOutboxDirectory()).thenReturn(outboxDirectory.getAbsolutePath());
+			when(config.getCallbackAttempts()).thenReturn(1);
+			when(config.getCallbackBackoff()).thenReturn(60000);
+			when(config.getCallbackRetention()).thenReturn(1);
+			dispatcher.stop();
+			dispatcher = new CallbackDispatcher(config, new CallbackClient(config));
+
+			outage.set(true);
+			BuildResult result = createResult();
+			dispatcher.deliver("http://localhost:" + port + "/outage", result);
+			while (dispatcher.getStatistics().getFailed() < 1) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, dispatcher.getStatistics().getPending());
+			dispatcher.stop();
+
+			outage.set(false);
+			dispatcher = new CallbackDispatcher(config, new CallbackClient(config));
+			awaitDelivered(1);
+			assertThat(received.peek(), containsString(result.getUuid().toString()));
+			assertEquals(result.getUuid().toString(), idempotencyKeys.peek());
+
+			// Stopping waits for the delivery to be marked in the outbox
+			dispatcher.stop();
+			dispatcher = new CallbackDispatcher(config, new CallbackClient(config));
+			assertEquals(0, dispatcher.getStatistics().getPending());
+		}
+		finally {
+			FileUtils.deleteQuietly(outboxDirectory);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testThatResultsForBatchHostAreBatched() throws Exception {
+		when(config.getCallbackBatchHosts()).thenReturn(Lists.newArrayList("LOCALHOST"));
+		when(config.getCallbackBatchSize()).thenReturn(2);
+		when(config.getCallbackBatchWindow()).thenReturn(100);
+		dispatcher.stop();
+		dispatcher = new CallbackDispatcher(config, new CallbackClient(config));
+
+		List<BuildResult> results = Lists.newArrayList(createResult(), createResult(), createResult());
+		for (BuildResult result : results) {
+			dispatcher.deliver("http://localhost:" + port + "/batch", result);
+		}
+		dispatcher.deliver("http://127.0.0.1:" + port + "/single", createResult());
+		awaitDelivered(4);
+
+		assertEquals(3, dispatcher.getStatistics().getAttempts());
+		List<String> batches = Lists.newArrayList();
+		for (String body : received) {
+			if (body.startsWith("[")) {
+				batches.add(body);
+			}
+		}
+		assertEquals(2, batches.size());
+		assertThat(batches.get(0), containsString(results.get(0).getUuid().toString()));
+		assertThat(batches.get(0), containsString(results.get(1).getUuid().toString()));
+		assertThat(batches.get(1), containsString(results.get(2).getUuid().toString()));
+		assertTrue(idempotencyKeys.contains(results.get(0).getUuid() + "," + results.get(1).getUuid()));
+	}
+
+	@Test(timeout = 10000)
+	public void testThatResultsForGzipHostAreCompressed() throws Exception {
+		when(config.getCallbackGzipHosts()).thenReturn(Lists.newArrayList("localhost"));
+		dispatcher.stop();
+		dispatcher = new CallbackDispatcher(config, new CallbackClient(config));
+
+		BuildResult result = createResult(1000);
+		dispatcher.deliver("http://localhost:" + port + "/gzip", result);
+		awaitDelivered(1);
+
+		assertEquals("gzip", encodings.peek());
+		assertThat(received.peek(), containsString(result.getUuid().toString()));
+		CallbackStatistics statistics = dispatcher.getStatistics();
+		assertThat(statistics.getSentBytes() * 10, lessThan(statistics.getSerializedBytes()));
+	}
+
+	@Test(timeout = 10000)
+	public void testThatHostRejectingGzipReceivesUncompressedResults() throws Exception {
+		when(config.getCallbackGzipHosts()).thenReturn(Lists.newArrayList("localhost"));
+		dispatcher.stop();
+		dispatcher = new CallbackDispatcher(config, new CallbackClient(config));
+
+		dispatcher.deliver("http://localhost:" + port + "/identity", createResult());
+		awaitDelivered(1);
+		assertEquals(Lists.newArrayList("gzip", ""), Lists.newArrayList(encodings));
+
+		dispatcher.deliver("http://localhost:" + port + "/identity", createResult());
+		awaitDelivered(2);
+		assertEquals(Lists.newArrayList("gzip", "", ""), Lists.newArrayList(encodings));
+		assertEquals(1, dispatcher.getStatistics().getFailedAttempts());
+	}
+
+	@Test(timeout = 10000)
+	public void testThatFileForHostRejectingGzipIsSentUncompressed() throws Exception {
+		when(config.getCallbackGzipHosts()).thenReturn(Lists.newArrayList("localhost"));
+		File stagingDirectory = Files.createTempDir();
+		try {
+			Files.write("report", new File(stagingDirectory, "report.txt"), Charsets.UTF_8);
+			sendFile("/identity", stagingDirectory);
+			assertEquals(Lists.newArrayList("gzip", ""), Lists.newArrayList(encodings));
+			assertEquals(Lists.newArrayList("report"), Lists.newArrayList(received));
+		}
+		finally {
+			FileUtils.deleteQuietly(stagingDirectory);
+		}
+	}
+
+	@Test(timeout = 10000, expected = ProcessingException.class)
+	public void testThatFailedFileIsReported() throws Exception {
+		outage.set(true);
+		File stagingDirectory = Files.createTempDir();
+		try {
+			Files.write("report", new File(stagingDirectory, "report.txt"), Charsets.UTF_8);
+			sendFile("/outage", stagingDirectory);
+		}
+		finally {
+			FileUtils.deleteQuietly(stagingDirectory);
+		}
+	}
+
+	private void sendFile(final String path, final File stagingDirectory) throws IOException {
+		MavenBuildPlugin plugin = new MavenBuildPlugin();
+		plugin.setCallbackUrl("http://localhost:" + port + path);
+		plugin.setFilePath("report.txt");
+		plugin.setContentType("text/plain");
+		try (CallbackClient client = new CallbackClient(config)) {
+			new MavenBuildPluginInterpreter(client).after(plugin, new MavenBuildInstruction(), stagingDirectory);
+		}
+	}
+
+	@Test
+	public void testThatSerializationMemoryDoesNotGrowWithResult() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled());
+
+		BuildResult result = createResult(10000);
+		for (boolean compress : new boolean[] { false, true }) {
+			// Warm up the serializer
+			dispatcher.createEntity(result, compress).writeTo(NullOutputStream.NULL_OUTPUT_STREAM);
+
+			long serialized = dispatcher.getStatistics().getSerializedBytes();
+			long threadId = Thread.currentThread().getId();
+			long allocated = threadBean.getThreadAllocatedBytes(threadId);
+			dispatcher.createEntity(result, compress).writeTo(NullOutputStream.NULL_OUTPUT_STREAM);
+			allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+			serialized = dispatcher.getStatistics().getSerializedBytes() - serialized;
+
+			assertThat(serialized, greaterThanOrEqualTo(500000L));
+			assertThat(allocated, lessThan(serialized / 10));
+		}
+	}
+
+	@Test
+	public void testThatBackoffIsExponentialWithJitter() {
+		Random random = new Random(0);
+		for (int attempt = 1; attempt <= 4; attempt++) {
+			long backoff = 5000L << (attempt - 1);
+			for (int i = 0; i < 100; i++) {
+				long delay = CallbackDispatcher.getBackoff(5000, attempt, random);
+				assertThat(delay, greaterThanOrEqualTo(backoff / 2));
+				assertThat(delay, lessThanOrEqualTo(backoff));
+			}
+		}
+		assertThat(CallbackDispatcher.getBackoff(5000, 100, random),
+				lessThanOrEqualTo(TimeUnit.MINUTES.toMillis(10)));
+	}
+
+	private void awaitDelivered(final long count) throws InterruptedException {
+		while (dispatcher.getStatistics().getDelivered() < count) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static BuildResult createResult() {
+		BuildResult result = new BuildResult();
+		result.setUuid(UUID.randomUUID());
+		result.setStatus(BuildResult.Status.SUCCEEDED);
+		return result;
+	}
+
+	private static BuildResult createResult(final int logLines) {
+		BuildResult result = createResult();
+		List<String> lines = Lists.newArrayListWithCapacity(logLines);
+		for (int i = 0; i < logLines; i++) {
+			lines.add("[INFO] Tests run: " + i + ", Failures: 0, Errors: 0, Skipped: 0, Time elapsed: 0.1 sec - in Test" + i);
+		}
+		result.setLogLines(lines);
+		result.setLogLineCount(logLines);
+		return result;
+	}
+
+}
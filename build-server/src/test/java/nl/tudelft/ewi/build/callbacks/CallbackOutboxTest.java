@@ -0,0 +1,136 @@
+package nl.tudelft.ewi.build.callbacks;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import nl.tudelft.ewi.build.jaxrs.models.BuildResult;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class CallbackOutboxTest {
+
+	private File directory;
+	private CallbackOutbox outbox;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDir();
+		outbox = new CallbackOutbox(directory);
+	}
+
+	@After
+	public void tearDown() {
+		outbox.close();
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Test(timeout = 10000)
+	public void testThatPendingResultsSurviveReopen() throws Exception {
+		BuildResult pending = createResult();
+		BuildResult delivered = createResult();
+		outbox.add("http://localhost/a", pending).get();
+		outbox.add("http://localhost/b", delivered).get();
+		outbox.remove(delivered.getUuid()).get();
+		reopen();
+
+		List<CallbackOutbox.Entry> entries = outbox.getPending();
+		assertEquals(1, entries.size());
+		assertEquals(pending.getUuid(), entries.get(0).getUuid());
+		assertEquals("http://localhost/a", entries.get(0).getCallbackUrl());
+		assertEquals(pending, entries.get(0).getResult());
+	}
+
+	@Test(timeout = 10000)
+	public void testThatIncompleteEntryIsDiscarded() throws Exception {
+		BuildResult result = createResult();
+		outbox.add("http://localhost/a", result).get();
+		outbox.close();
+		Files.append("{\"uuid\":\"" + UUID.randomUUID() + "\",\"callb", new File(directory, "outbox.jsonl"),
+				Charsets.UTF_8);
+		reopen();
+
+		List<CallbackOutbox.Entry> entries = outbox.getPending();
+		assertEquals(1, entries.size());
+		assertEquals(result.getUuid(), entries.get(0).getUuid());
+	}
+
+	@Test(timeout = 10000)
+	public void testThatConcurrentWritesAreCommittedTogether() throws Exception {
+		final int writes = 200;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		final List<ListenableFuture<Void>> futures = Lists.newCopyOnWriteArrayList();
+		for (int i = 0; i < writes; i++) {
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					futures.add(outbox.add("http://localhost/a", createResult()));
+				}
+			});
+		}
+		start.countDown();
+		executor.shutdown();
+		while (futures.size() < writes) {
+			Thread.sleep(10);
+		}
+		Futures.allAsList(futures).get();
+
+		assertEquals(writes, outbox.getPending().size());
+		assertThat(outbox.getCommits(), lessThan((long) writes));
+	}
+
+	@Test(timeout = 30000)
+	public void testThatDeliveredResultsAreCompacted() throws Exception {
+		BuildResult pending = createResult();
+		outbox.add("http://localhost/a", pending).get();
+		for (int i = 0; i < 3000; i++) {
+			BuildResult result = createResult();
+			outbox.add("http://localhost/b", result);
+			outbox.remove(result.getUuid());
+		}
+		outbox.add("http://localhost/c", createResult()).get();
+		// The file is compacted after the writes are completed, so wait for
+		// a later write as well
+		outbox.remove(UUID.randomUUID()).get();
+
+		File file = new File(directory, "outbox.jsonl");
+		assertThat(Files.readLines(file, Charsets.UTF_8).size(), lessThan(3000));
+		reopen();
+		assertEquals(2, outbox.getPending().size());
+		assertEquals(pending.getUuid(), outbox.getPending().get(0).getUuid());
+	}
+
+	private void reopen() throws Exception {
+		outbox.close();
+		outbox = new CallbackOutbox(directory);
+	}
+
+	private static BuildResult createResult() {
+		BuildResult result = new BuildResult();
+		result.setUuid(UUID.randomUUID());
+		result.setStatus(BuildResult.Status.SUCCEEDED);
+		return result;
+	}
+
+}
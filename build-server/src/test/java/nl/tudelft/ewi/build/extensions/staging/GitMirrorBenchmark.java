@@ -0,0 +1,98 @@
+package nl.tudelft.ewi.build.extensions.staging;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.builds.Logger;
+import nl.tudelft.ewi.build.jaxrs.models.GitSource;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares the time to prepare a staging directory by cloning from the
+ * remote with the time to prepare it from a cold and a warm
+ * {@link GitMirrorCache}, and from a cold and a warm {@link CheckoutStore}
+ * on top of the mirror. The remote is a local {@code file://} repository,
+ * so the difference for a remote on the network is larger. This is not a
+ * unit test; run it with {@code mvn exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=nl.tudelft.ewi.build.extensions.staging.GitMirrorBenchmark}.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+public class GitMirrorBenchmark {
+
+	private static final int FILES = 200;
+	private static final int COMMITS = 50;
+	private static final int ITERATIONS = 5;
+
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDir();
+		try {
+			File origin = new File(directory, "origin");
+			GitSource source = new GitSource();
+			source.setRepositoryUrl(origin.toURI().toString());
+			source.setCommitId(createRepository(origin));
+
+			Logger logger = Mockito.mock(Logger.class);
+			Config config = Mockito.mock(Config.class);
+			when(config.getGitMirrorMaximumSize()).thenReturn(Long.MAX_VALUE);
+			when(config.getCheckoutStoreMaximumSize()).thenReturn(Long.MAX_VALUE);
+			GitStagingDirectoryPreparer direct = preparer(config);
+			when(config.getGitMirrorDirectory()).thenReturn(new File(directory, "mirrors").getAbsolutePath());
+			GitStagingDirectoryPreparer mirrored = preparer(config);
+			when(config.getCheckoutStoreDirectory()).thenReturn(new File(directory, "checkouts").getAbsolutePath());
+			GitStagingDirectoryPreparer stored = preparer(config);
+
+			report("cold mirror", measure(mirrored, source, logger, new File(directory, "staging")));
+			report("cold store", measure(stored, source, logger, new File(directory, "staging")));
+			for (int i = 0; i < ITERATIONS; i++) {
+				report("remote", measure(direct, source, logger, new File(directory, "staging")));
+				report("warm mirror", measure(mirrored, source, logger, new File(directory, "staging")));
+				report("warm store", measure(stored, source, logger, new File(directory, "staging")));
+			}
+		}
+		finally {
+			FileUtils.deleteQuietly(directory);
+		}
+	}
+
+	private static GitStagingDirectoryPreparer preparer(Config config) {
+		return new GitStagingDirectoryPreparer(new GitMirrorCache(config), new CheckoutStore(config));
+	}
+
+	private static String createRepository(File directory) throws Exception {
+		try (Git git = Git.init().setDirectory(directory).call()) {
+			String commitId = null;
+			for (int commit = 0; commit < COMMITS; commit++) {
+				for (int file = 0; file < FILES; file++) {
+					Files.write(Strings.repeat("Line " + commit + " of file " + file + "\n", 100),
+							new File(directory, "File" + file + ".java"), Charsets.UTF_8);
+				}
+				git.add().addFilepattern(".").call();
+				commitId = git.commit().setMessage("Commit " + commit).call().getName();
+			}
+			return commitId;
+		}
+	}
+
+	private static long measure(GitStagingDirectoryPreparer preparer, GitSource source, Logger logger,
+			File stagingDirectory) throws Exception {
+		long start = System.nanoTime();
+		preparer.prepareStagingDirectory(source, logger, stagingDirectory);
+		long duration = System.nanoTime() - start;
+		FileUtils.deleteDirectory(stagingDirectory);
+		return duration;
+	}
+
+	private static void report(String name, long nanos) {
+		System.out.printf("%-12s %6d ms%n", name, TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
+}
@@ -0,0 +1,311 @@
+package nl.tudelft.ewi.build.extensions.staging;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import nl.tudelft.ewi.build.Config;
+import nl.tudelft.ewi.build.builds.Logger;
+import nl.tudelft.ewi.build.jaxrs.models.GitSource;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.nio.file.attribute.PosixFilePermission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class GitStagingDirectoryPreparerTest {
+
+	private File directory;
+	private File mirrorDirectory;
+	private File checkoutDirectory;
+	private Config config;
+	private Logger logger;
+	private int stagings;
+
+	@Before
+	public void setUp() {
+		directory = Files.createTempDir();
+		mirrorDirectory = new File(directory, "mirrors");
+		checkoutDirectory = new File(directory, "checkouts");
+		config = Mockito.mock(Config.class);
+		when(config.getGitMirrorDirectory()).thenReturn(mirrorDirectory.getAbsolutePath());
+		when(config.getGitMirrorMaximumSize()).thenReturn(Long.MAX_VALUE);
+		when(config.getCheckoutStoreMaximumSize()).thenReturn(Long.MAX_VALUE);
+		when(config.getCheckoutLinkMode()).thenReturn("hardlink");
+		logger = Mockito.mock(Logger.class);
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(directory);
+	}
+
+	@Test
+	public void testThatStagingDirectoryIsClonedFromMirror() throws Exception {
+		File origin = new File(directory, "origin");
+		RevCommit commit = commit(origin, "Hello");
+		File staging = prepare(preparer(), origin, commit);
+
+		assertEquals("Hello", Files.toString(new File(staging, "README"), Charsets.UTF_8));
+		try (Git git = Git.open(staging)) {
+			assertEquals(commit.getId(), git.getRepository().resolve("HEAD"));
+			assertEquals(origin.toURI().toString(),
+					git.getRepository().getConfig().getString("remote", "origin", "url"));
+		}
+		assertEquals(1, mirrorDirectory.list().length);
+	}
+
+	@Test
+	public void testThatObjectsAreSharedWithMirror() throws Exception {
+		File origin = new File(directory, "origin");
+		RevCommit commit = commit(origin, "Hello");
+		File staging = prepare(preparer(), origin, commit);
+
+		File mirrorObjects = new File(mirrorDirectory.listFiles()[0], "objects");
+		File stagingObjects = new File(staging, ".git/objects");
+		int shared = 0;
+		for (File file : FileUtils.listFiles(mirrorObjects, null, true)) {
+			String path = mirrorObjects.toURI().relativize(file.toURI()).getPath();
+			assertTrue(java.nio.file.Files.isSameFile(file.toPath(), new File(stagingObjects, path).toPath()));
+			shared++;
+		}
+		assertTrue(shared > 0);
+	}
+
+	@Test
+	public void testThatMirroredCommitNeedsNoRemote() throws Exception {
+		File origin = new File(directory, "origin");
+		RevCommit commit = commit(origin, "Hello");
+		String repositoryUrl = origin.toURI().toString();
+		GitStagingDirectoryPreparer preparer = preparer();
+		prepare(preparer, repositoryUrl, commit);
+
+		FileUtils.deleteDirectory(origin);
+		File staging = prepare(preparer, repositoryUrl, commit);
+		assertEquals("Hello", Files.toString(new File(staging, "README"), Charsets.UTF_8));
+	}
+
+	@Test
+	public void testThatNewCommitIsFetchedIntoMirror() throws Exception {
+		File origin = new File(directory, "origin");
+		GitStagingDirectoryPreparer preparer = preparer();
+		prepare(preparer, origin, commit(origin, "Hello"));
+
+		RevCommit commit = commit(origin, "World");
+		File staging = prepare(preparer, origin, commit);
+		assertEquals("World", Files.toString(new File(staging, "README"), Charsets.UTF_8));
+	}
+
+	@Test
+	public void testThatLeastRecentlyUsedMirrorIsEvicted() throws Exception {
+		File first = new File(directory, "first");
+		File second = new File(directory, "second");
+		RevCommit firstCommit = commit(first, "Hello");
+		RevCommit secondCommit = commit(second, "World");
+		prepare(preparer(), first, firstCommit);
+		File[] mirrors = mirrorDirectory.listFiles();
+		assertEquals(1, mirrors.length);
+		long size = FileUtils.sizeOfDirectory(mirrors[0]);
+		mirrors[0].setLastModified(System.currentTimeMillis() - 60000);
+
+		// Room for one mirror only
+		when(config.getGitMirrorMaximumSize()).thenReturn(size * 3 / 2);
+		GitStagingDirectoryPreparer preparer = preparer();
+		prepare(preparer, second, secondCommit);
+
+		assertFalse(mirrors[0].exists());
+		assertEquals(1, mirrorDirectory.list().length);
+		File staging = prepare(preparer, first, firstCommit);
+		assertTrue(new File(staging, "README").isFile());
+	}
+
+	@Test
+	public void testThatOnlyBranchOfCommitIsFetched() throws Exception {
+		File origin = new File(directory, "origin");
+		RevCommit commit = commit(origin, "Hello");
+		branch(origin, "feature", "World");
+		File staging = prepare(preparer(), origin, "master", commit);
+
+		assertEquals("Hello", Files.toString(new File(staging, "README"), Charsets.UTF_8));
+		File mirror = mirrorDirectory.listFiles()[0];
+		assertEquals(3, GitObjectStatistics.of(mirror).getObjects());
+		try (Git git = Git.open(mirror)) {
+			assertNull(git.getRepository().getRef("refs/heads/feature"));
+		}
+		try (Git git = Git.open(staging)) {
+			assertNull(git.getRepository().getRef("refs/remotes/origin/feature"));
+			assertEquals("refs/heads/master", git.getRepository().getFullBranch());
+		}
+	}
+
+	@Test
+	public void testThatAllBranchesAreFetchedIfBranchDoesNotContainCommit() throws Exception {
+		File origin = new File(directory, "origin");
+		commit(origin, "Hello");
+		RevCommit commit = branch(origin, "feature", "World");
+		for (String mirrorDirectory : new String[] { this.mirrorDirectory.getAbsolutePath(), null }) {
+			when(config.getGitMirrorDirectory()).thenReturn(mirrorDirectory);
+			GitStagingDirectoryPreparer preparer = preparer();
+			File staging = prepare(preparer, origin, "master", commit);
+			assertEquals("World", Files.toString(new File(staging, "README"), Charsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void testThatBranchIsCreatedForCommit() throws Exception {
+		File origin = new File(directory, "origin");
+		commit(origin, "Hello");
+		RevCommit commit = branch(origin, "feature", "World");
+		File staging = prepare(preparer(), origin, "feature", commit);
+
+		assertEquals("World", Files.toString(new File(staging, "README"), Charsets.UTF_8));
+		try (Git git = Git.open(staging)) {
+			assertEquals("refs/heads/feature", git.getRepository().getFullBranch());
+			assertEquals(commit.getId(), git.getRepository().resolve("HEAD"));
+		}
+	}
+
+	@Test
+	public void testThatRepositoryIsClonedWithoutMirror() throws Exception {
+		when(config.getGitMirrorDirectory()).thenReturn(null);
+		File origin = new File(directory, "origin");
+		RevCommit commit = commit(origin, "Hello");
+		File staging = prepare(preparer(), origin, commit);
+
+		assertEquals("Hello", Files.toString(new File(staging, "README"), Charsets.UTF_8));
+		assertFalse(mirrorDirectory.exists());
+	}
+
+	@Test
+	public void testThatBranchIsPointedAtCommit() throws Exception {
+		File origin = new File(directory, "origin");
+		RevCommit commit = commit(origin, "Hello");
+		commit(origin, "World");
+		File staging = prepare(preparer(), origin, "master", commit);
+
+		assertEquals("Hello", Files.toString(new File(staging, "README"), Charsets.UTF_8));
+		try (Git git = Git.open(staging)) {
+			assertEquals(commit.getId(), git.getRepository().resolve("HEAD"));
+		}
+	}
+
+	@Test
+	public void testThatStoredTreeIsLinkedIntoStagingDirectory() throws Exception {
+		when(config.getCheckoutStoreDirectory()).thenReturn(checkoutDirectory.getAbsolutePath());
+		File origin = new File(directory, "origin");
+		RevCommit first = commit(origin, "Hello");
+		GitStagingDirectoryPreparer preparer = preparer();
+		File firstStaging = prepare(preparer, origin, first);
+
+		// A commit with the same tree
+		RevCommit second;
+		try (Git git = Git.open(origin)) {
+			second = git.commit().setMessage("Rebuild").call();
+		}
+		File secondStaging = prepare(preparer, origin, "master", second);
+
+		File stored = stored(first, "README");
+		assertFalse(java.nio.file.Files.isSameFile(stored.toPath(), new File(firstStaging, "README").toPath()));
+		assertTrue(java.nio.file.Files.isSameFile(stored.toPath(), new File(secondStaging, "README").toPath()));
+		assertFalse(java.nio.file.Files.getPosixFilePermissions(stored.toPath()).contains(PosixFilePermission.OWNER_WRITE));
+		try (Git git = Git.open(secondStaging)) {
+			assertEquals("refs/heads/master", git.getRepository().getFullBranch());
+			assertEquals(second.getId(), git.getRepository().resolve("HEAD"));
+			assertTrue(git.status().call().isClean());
+		}
+	}
+
+	@Test
+	public void testThatModifiedStoredTreeIsCheckedOutAgain() throws Exception {
+		when(config.getCheckoutStoreDirectory()).thenReturn(checkoutDirectory.getAbsolutePath());
+		File origin = new File(directory, "origin");
+		RevCommit commit = commit(origin, "Hello");
+		GitStagingDirectoryPreparer preparer = preparer();
+		prepare(preparer, origin, commit);
+		File staging = prepare(preparer, origin, commit);
+
+		// A build that writes to a linked file in place
+		File readme = new File(staging, "README");
+		readme.setWritable(true);
+		Files.write("Goodbye", readme, Charsets.UTF_8);
+
+		staging = prepare(preparer, origin, commit);
+		assertEquals("Hello", Files.toString(new File(staging, "README"), Charsets.UTF_8));
+		try (Git git = Git.open(staging)) {
+			assertEquals(commit.getId(), git.getRepository().resolve("HEAD"));
+			assertTrue(git.status().call().isClean());
+		}
+
+		// The tree is stored again
+		staging = prepare(preparer, origin, commit);
+		File stored = stored(commit, "README");
+		assertTrue(java.nio.file.Files.isSameFile(stored.toPath(), new File(staging, "README").toPath()));
+		assertEquals("Hello", Files.toString(stored, Charsets.UTF_8));
+	}
+
+	private File stored(RevCommit commit, String path) {
+		File[] checkouts = checkoutDirectory.listFiles();
+		assertEquals(1, checkouts.length);
+		assertTrue(checkouts[0].getName().startsWith(commit.getTree().getName()));
+		return new File(checkouts[0], "tree/" + path);
+	}
+
+	private GitStagingDirectoryPreparer preparer() {
+		return new GitStagingDirectoryPreparer(new GitMirrorCache(config), new CheckoutStore(config));
+	}
+
+	private File prepare(GitStagingDirectoryPreparer preparer, File origin, RevCommit commit) throws Exception {
+		return prepare(preparer, origin.toURI().toString(), commit);
+	}
+
+	private File prepare(GitStagingDirectoryPreparer preparer, String repositoryUrl, RevCommit commit) throws Exception {
+		return prepare(preparer, repositoryUrl, null, commit);
+	}
+
+	private File prepare(GitStagingDirectoryPreparer preparer, File origin, String branchName, RevCommit commit)
+			throws Exception {
+		return prepare(preparer, origin.toURI().toString(), branchName, commit);
+	}
+
+	private File prepare(GitStagingDirectoryPreparer preparer, String repositoryUrl, String branchName,
+			RevCommit commit) throws Exception {
+		GitSource source = new GitSource();
+		source.setRepositoryUrl(repositoryUrl);
+		source.setBranchName(branchName);
+		source.setCommitId(commit.getName());
+		File staging = new File(directory, "staging-" + stagings++);
+		preparer.prepareStagingDirectory(source, logger, staging);
+		return staging;
+	}
+
+	private static RevCommit branch(File repository, String branchName, String content) throws Exception {
+		try (Git git = Git.open(repository)) {
+			git.checkout().setCreateBranch(true).setName(branchName).call();
+			RevCommit commit = commit(repository, content);
+			git.checkout().setName("master").call();
+			return commit;
+		}
+	}
+
+	private static RevCommit commit(File repository, String content) throws Exception {
+		Git git = repository.exists() ? Git.open(repository) : Git.init().setDirectory(repository).call();
+		try {
+			Files.write(content, new File(repository, "README"), Charsets.UTF_8);
+			git.add().addFilepattern("README").call();
+			return git.commit().setMessage(content).call();
+		}
+		finally {
+			git.close();
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+package nl.tudelft.ewi.build.jaxrs;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.jboss.resteasy.plugins.server.servlet.HttpServlet30Dispatcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.MediaType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Load test that suspends many more requests than there are Jetty threads,
+ * with the dispatcher that the build server registers. With the blocking
+ * dispatcher of RESTEasy, the waiters beyond the size of the thread pool
+ * would never be suspended.
+ *
+ * @author Jan-Willem Gmelig Meyling
+ */
+@Slf4j
+public class HttpServlet30DispatcherTest {
+
+	private static final int MAX_THREADS = 20;
+	private static final int WAITERS = 250;
+
+	private static final Queue<AsyncResponse> waiting = new ConcurrentLinkedQueue<>();
+
+	private Server server;
+	private QueuedThreadPool threadPool;
+	private int port;
+
+	@Path("waiters")
+	@Produces(MediaType.TEXT_PLAIN)
+	public static class WaitingResource {
+
+		@GET
+		public void await(@Suspended AsyncResponse response) {
+			waiting.add(response);
+		}
+
+		@GET
+		@Path("timeout")
+		public void awaitTimeout(@Suspended AsyncResponse response) {
+			response.setTimeout(100, TimeUnit.MILLISECONDS);
+			response.setTimeoutHandler(new TimeoutHandler() {
+				@Override
+				public void handleTimeout(AsyncResponse asyncResponse) {
+					asyncResponse.resume("timed out");
+				}
+			});
+		}
+
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		threadPool = new QueuedThreadPool(MAX_THREADS);
+		server = new Server(threadPool);
+		ServerConnector connector = new ServerConnector(server, 1, 1);
+		connector.setPort(0);
+		server.addConnector(connector);
+
+		ServletContextHandler handler = new ServletContextHandler();
+		ServletHolder servletHolder = handler.addServlet(HttpServlet30Dispatcher.class, "/");
+		servletHolder.setAsyncSupported(true);
+		servletHolder.setInitParameter("resteasy.resources", WaitingResource.class.getName());
+		server.setHandler(handler);
+		server.start();
+		port = connector.getLocalPort();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		waiting.clear();
+		server.stop();
+	}
+
+	@Test(timeout = 30000)
+	public void testThatWaitersDoNotHoldThreads() throws Exception {
+		int threadsBefore = threadPool.getThreads();
+		List<Socket> sockets = Lists.newArrayList();
+		for (int i = 0; i < WAITERS; i++) {
+			sockets.add(request("/waiters"));
+		}
+		while (waiting.size() < WAITERS) {
+			Thread.sleep(10);
+		}
+
+		int threadsWaiting = threadPool.getThreads();
+		int busyThreads = threadPool.getBusyThreads();
+		log.info("Jetty threads: {} before, {} with {} waiters, of which {} busy",
+				threadsBefore, threadsWaiting, WAITERS, busyThreads);
+		assertThat(threadsWaiting, lessThanOrEqualTo(MAX_THREADS));
+		// Only the acceptor and selector threads
+		assertThat(busyThreads, lessThanOrEqualTo(2));
+
+		for (AsyncResponse response : waiting) {
+			response.resume("done");
+		}
+		for (Socket socket : sockets) {
+			String response = read(socket);
+			assertThat(response, startsWith("HTTP/1.1 200"));
+			assertThat(response, containsString("done"));
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void testThatTimeoutHandlerResumes() throws Exception {
+		String response = read(request("/waiters/timeout"));
+		assertThat(response, startsWith("HTTP/1.1 200"));
+		assertThat(response, containsString("timed out"));
+	}
+
+	private Socket request(final String path) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		OutputStream outputStream = socket.getOutputStream();
+		outputStream.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+				.getBytes(Charsets.US_ASCII));
+		outputStream.flush();
+		return socket;
+	}
+
+	private static String read(final Socket socket) throws IOException {
+		try {
+			return new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.UTF_8);
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+}